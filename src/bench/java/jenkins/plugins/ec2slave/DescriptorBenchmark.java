@@ -0,0 +1,140 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import hudson.util.FormValidation;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.AvailabilityZone;
+import com.amazonaws.services.ec2.model.DescribeAvailabilityZonesResult;
+import com.amazonaws.services.ec2.model.DescribeImagesRequest;
+import com.amazonaws.services.ec2.model.DescribeImagesResult;
+import com.amazonaws.services.ec2.model.Image;
+
+/**
+ * Throughput and allocation of the form validation the configuration page
+ * fires on every change of a field, with the lookups already cached, i.e. the
+ * cost of the validation itself rather than of EC2.
+ * <p>
+ * The cache is warmed through a stand-in client whose handle has the same key
+ * as the one the descriptor asks the registry for, so the validations never get
+ * as far as creating a real client.
+ *
+ * @author Aaron Phillips
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DescriptorBenchmark {
+
+  private static final String ACCESS_KEY = "benchAccessKey", SECRET_KEY = "benchSecretKey";
+
+  private static final String AMIS = "us-east-1=ami-11111111, eu-west-1=ami-22222222";
+
+  private static final String REGIONS = "us-east-1, eu-west-1";
+
+  private EC2ImageSlave.DescriptorImpl descriptor;
+
+  private EC2ClientRegistry registry;
+
+  @Setup
+  public void setUp() {
+    descriptor = new EC2ImageSlave.DescriptorImpl();
+    final AmazonEC2 ec2 = (AmazonEC2) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class[] { AmazonEC2.class }, new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("describeImages")) {
+              String id = ((DescribeImagesRequest) args[0]).getImageIds().get(0);
+              return new DescribeImagesResult().withImages(new Image().withImageId(id)
+                  .withImageLocation("bench/" + id + ".manifest.xml").withDescription("benchmark image"));
+            }
+            if (method.getName().equals("describeAvailabilityZones")) {
+              return new DescribeAvailabilityZonesResult().withAvailabilityZones(
+                  new AvailabilityZone().withZoneName("us-east-1a"));
+            }
+            throw new UnsupportedOperationException(method.getName());
+          }
+        });
+    registry = new EC2ClientRegistry(new EC2ClientRegistry.ClientFactory() {
+      public AmazonEC2 create(String accessKey, String secretKey, String endpoint) {
+        return ec2;
+      }
+    });
+  }
+
+  /**
+   * Looks everything up again whenever an iteration starts, an iteration must not
+   * outlast {@link EC2LookupCache#TTL_SECONDS}
+   */
+  @Setup(Level.Iteration)
+  public void warmCache() {
+    EC2LookupCache cache = EC2LookupCache.get();
+    cache.getAvailabilityZones(registry.handle(ACCESS_KEY, SECRET_KEY, null));
+    for (String region : CapacityFallback.split(REGIONS)) {
+      cache.getImage(registry.handle(ACCESS_KEY, SECRET_KEY, RegionSelector.endpointOf(region)),
+          EC2ImageLaunchWrapper.amiFor(AMIS, region));
+    }
+  }
+
+  @Benchmark
+  public FormValidation testConnection() {
+    return descriptor.doTestConnection(ACCESS_KEY, SECRET_KEY);
+  }
+
+  @Benchmark
+  public FormValidation validateAmi() {
+    return descriptor.doValidateAmi(ACCESS_KEY, SECRET_KEY, AMIS, REGIONS);
+  }
+
+  @Benchmark
+  public String amiFor() {
+    return EC2ImageLaunchWrapper.amiFor(AMIS, "eu-west-1");
+  }
+
+  @Benchmark
+  public List<String> splitRegions() {
+    return CapacityFallback.split(REGIONS);
+  }
+}
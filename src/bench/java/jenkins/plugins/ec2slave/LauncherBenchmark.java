@@ -0,0 +1,149 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import hudson.model.TaskListener;
+import hudson.util.NullStream;
+import hudson.util.StreamTaskListener;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput and allocation of the launcher paths Jenkins hits over and over:
+ * the retention strategy asking {@link EC2ImageLaunchWrapper#isLaunchSupported()}
+ * and calling {@link EC2ImageLaunchWrapper#launch} again while the instance is
+ * still booting, and building the wrapper the way
+ * {@link EC2ImageSlave#getLauncher()} does.  EC2 is a {@link FakeEC2}, none of
+ * these paths should be calling it anyway.
+ * <p>
+ * Run with <tt>mvn -Pbenchmark test-compile exec:exec</tt>, the gc profiler's
+ * <tt>gc.alloc.rate.norm</tt> is the garbage each call leaves behind.
+ *
+ * @author Aaron Phillips
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LauncherBenchmark {
+
+  private EC2ClientRegistry.Handle handle;
+
+  private EC2ImageLaunchWrapper idle, launching;
+
+  private TaskListener listener;
+
+  private LaunchWaitPolicy waitPolicy;
+
+  @Setup
+  public void setUp() {
+    // the busy path logs every call, what we are after is the cost of building the message
+    Logger.getLogger(EC2ImageLaunchWrapper.class.getName()).setLevel(Level.WARNING);
+    InstanceReconciler.set(new InstanceReconciler("benchmark"));
+
+    handle = new FakeEC2().handle();
+    waitPolicy = new ExponentialBackoffWaitPolicy(1000, 10000, 60 * 1000L);
+    listener = new StreamTaskListener(new NullStream());
+
+    idle = newWrapper("bench-idle");
+    idle.setClientHandle(handle);
+
+    launching = newWrapper("bench-launching");
+    launching.setClientHandle(handle);
+    NodeLifecycle.Snapshot s = launching.getLifecycle().get();
+    // never started, so the node stays in LAUNCHING for the whole run
+    LaunchStateMachine machine = new LaunchStateMachine(launching, new PrintStream(new NullStream()), null, null,
+        null, LaunchStateMachine.Phase.REQUESTED);
+    if (!launching.getLifecycle().compareAndSet(s, s.launching(machine))) {
+      throw new IllegalStateException("bench-launching is already " + launching.getLifecycle().get());
+    }
+  }
+
+  private EC2ImageLaunchWrapper newWrapper(String nodeName) {
+    EC2ImageLaunchWrapper wrapper = new EC2ImageLaunchWrapper(null, "benchSecretKey", "benchAccessKey",
+        "us-east-1=ami-11111111,eu-west-1=ami-22222222", "m1.small", "bench", "default", null);
+    wrapper.setPool(2, 60);
+    wrapper.setNodeName(nodeName);
+    wrapper.setWaitPolicy(waitPolicy);
+    wrapper.setReadinessCheck(22, true);
+    wrapper.setInbound(false, "/home/jenkins");
+    wrapper.setRegions("us-east-1, eu-west-1", false);
+    wrapper.setBaking(0, 0);
+    wrapper.setCacheVolume(null, 0, nodeName);
+    return wrapper;
+  }
+
+  @Benchmark
+  public boolean isLaunchSupported() {
+    return idle.isLaunchSupported();
+  }
+
+  @Benchmark
+  public boolean isLaunchSupportedWhileLaunching() {
+    return launching.isLaunchSupported();
+  }
+
+  /**
+   * The retention strategy calling launch again while the instance boots
+   */
+  @Benchmark
+  public void launchWhileLaunching() throws IOException, InterruptedException {
+    launching.launch(null, listener);
+  }
+
+  /**
+   * What {@link EC2ImageSlave#getLauncher()} costs the first time per configuration
+   */
+  @Benchmark
+  public EC2ImageLaunchWrapper buildWrapper() {
+    return newWrapper("bench-build");
+  }
+
+  @Benchmark
+  public EC2ClientRegistry.Handle clientHandle() {
+    return EC2ClientRegistry.get().handle("benchAccessKey", "benchSecretKey", null);
+  }
+
+  @Benchmark
+  public String clientHandleKey() {
+    return idle.getClientHandle().withEndpoint(RegionSelector.endpointOf("eu-west-1")).getKey();
+  }
+}
@@ -0,0 +1,534 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Node;
+import hudson.model.PeriodicWork;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.model.BlockDeviceMapping;
+import com.amazonaws.services.ec2.model.CreateImageRequest;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.DeleteSnapshotRequest;
+import com.amazonaws.services.ec2.model.DeregisterImageRequest;
+import com.amazonaws.services.ec2.model.DescribeImagesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeVolumesRequest;
+import com.amazonaws.services.ec2.model.DetachVolumeRequest;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Image;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.Volume;
+
+/**
+ * Bakes the instance of a slave that has been building for a while into a new
+ * AMI before it is terminated, so that the next instance of the slave boots
+ * with the dependency caches and workspaces of the previous one.  An instance
+ * is baked once its slave ran a given number of builds, or once a given number
+ * of hours passed since the last bake, whichever comes first.
+ * <p>
+ * The node's configured AMI stays the base.  Baked images are tagged with
+ * their node, their base AMI and when they were baked, and launches use the
+ * newest baked image of their node and base, so a changed base AMI starts over
+ * from scratch and a restarted Jenkins picks up where it left off.  The
+ * instance is only terminated once its image is available.  Older generations
+ * beyond {@link #KEEP_GENERATIONS} are deregistered together with their
+ * snapshots.
+ * <p>
+ * A build cache volume is not baked in, it is detached from the instance
+ * before the image is created and saved by {@link CacheVolumes} afterwards, so
+ * the image does not carry a stale copy of the cache.
+ *
+ * @author Aaron Phillips
+ */
+final class AmiBaker {
+
+  private static final Logger LOGGER = Logger.getLogger(AmiBaker.class.getName());
+
+  static final String BASE_TAG = "jenkins-ec2slave-base";
+
+  static final String BAKED_AT_TAG = "jenkins-ec2slave-baked-at";
+
+  /**
+   * Number of baked images to keep per node and region, the newest one is the
+   * one in use, the others are there to roll back to
+   */
+  static int KEEP_GENERATIONS = Integer.getInteger(AmiBaker.class.getName() + ".keepGenerations", 2);
+
+  /**
+   * How long an image may take to become available before the bake is given up
+   */
+  static int BAKE_TIMEOUT_MINUTES = Integer.getInteger(AmiBaker.class.getName() + ".bakeTimeoutMinutes", 60);
+
+  private static AmiBaker INSTANCE;
+
+  public static synchronized AmiBaker get() {
+    if (INSTANCE == null) {
+      INSTANCE = new AmiBaker(InstanceReconciler.get().getControllerId());
+    }
+    return INSTANCE;
+  }
+
+  /**
+   * An image being created from an instance
+   */
+  static final class Bake {
+    final String nodeName, baseAmi, instanceId;
+
+    /* null while the cache volume is being detached */
+    volatile String imageId;
+
+    /* the build cache on the instance and its volume, null if it has none */
+    final String cache, cacheVolume;
+
+    final EC2ClientRegistry.Handle ec2;
+
+    final long startedAt;
+
+    private Bake(String nodeName, String baseAmi, EC2ClientRegistry.Handle ec2, String instanceId,
+        long startedAt, String cache, String cacheVolume) {
+      this.nodeName = nodeName;
+      this.baseAmi = baseAmi;
+      this.ec2 = ec2;
+      this.instanceId = instanceId;
+      this.startedAt = startedAt;
+      this.cache = cache;
+      this.cacheVolume = cacheVolume;
+    }
+
+    public String getNodeName() {
+      return nodeName;
+    }
+
+    public String getInstanceId() {
+      return instanceId;
+    }
+
+    public String getImageId() {
+      return imageId;
+    }
+
+    public String getStartedAgo() {
+      return Util.getPastTimeString(System.currentTimeMillis() - startedAt);
+    }
+  }
+
+  private final String controllerId;
+
+  /* everything below is guarded by this */
+
+  /* node|client|base AMI -> newest available baked image, "" if there is none */
+  private final Map<String, String> current = new HashMap<String, String>();
+
+  /* node -> builds since its last bake */
+  private final Map<String, Integer> builds = new HashMap<String, Integer>();
+
+  /* node -> when it was last baked, or first seen */
+  private final Map<String, Long> lastBakedAt = new HashMap<String, Long>();
+
+  private final List<Bake> bakes = new ArrayList<Bake>();
+
+  AmiBaker(String controllerId) {
+    this.controllerId = controllerId;
+  }
+
+  private static String keyOf(String nodeName, EC2ClientRegistry.Handle ec2, String baseAmi) {
+    return nodeName + '|' + ec2.getKey() + '|' + baseAmi;
+  }
+
+  /**
+   * Returns the AMI the next instance of the given node should be launched from,
+   * i.e. its newest baked image, or the base AMI if it has none
+   */
+  public String imageFor(EC2ClientRegistry.Handle ec2, String nodeName, String baseAmi) {
+    String key = keyOf(nodeName, ec2, baseAmi);
+    String imageId;
+    synchronized (this) {
+      imageId = current.get(key);
+    }
+    if (imageId == null) {
+      // first launch since Jenkins started, see what we baked before
+      Image newest = null;
+      try {
+        for (Image image : describeBaked(ec2, nodeName, baseAmi)) {
+          if ("available".equals(image.getState()) && (newest == null || bakedAt(image) > bakedAt(newest))) {
+            newest = image;
+          }
+        }
+      } catch (AmazonClientException e) {
+        LOGGER.log(Level.WARNING, "Failed to look up the baked images of " + nodeName + ", using " + baseAmi, e);
+        return baseAmi;
+      }
+      imageId = newest == null ? "" : newest.getImageId();
+      synchronized (this) {
+        if (!current.containsKey(key)) {
+          current.put(key, imageId);
+          if (newest != null) {
+            lastBakedAt.put(nodeName, Math.max(bakedAt(newest), lastBakedAt(nodeName)));
+          }
+        }
+        imageId = current.get(key);
+      }
+    }
+    return imageId.length() == 0 ? baseAmi : imageId;
+  }
+
+  /**
+   * Counts a completed build of the given node
+   */
+  public synchronized void recordBuild(String nodeName) {
+    Integer count = builds.get(nodeName);
+    builds.put(nodeName, count == null ? 1 : count + 1);
+  }
+
+  private synchronized long lastBakedAt(String nodeName) {
+    Long at = lastBakedAt.get(nodeName);
+    if (at == null) {
+      at = System.currentTimeMillis();
+      lastBakedAt.put(nodeName, at);
+    }
+    return at;
+  }
+
+  /**
+   * Whether the instance of the given node is worth baking before it goes away
+   *
+   * @param afterBuilds
+   *            bake after this many builds, 0 for no limit
+   * @param intervalHours
+   *            bake once this many hours passed since the last bake, 0 for no limit
+   */
+  public synchronized boolean isDue(String nodeName, int afterBuilds, int intervalHours, long now) {
+    Integer count = builds.get(nodeName);
+    if (count == null || count == 0) {
+      return false; // nothing has warmed up since the last bake
+    }
+    for (Bake b : bakes) {
+      if (b.nodeName.equals(nodeName)) {
+        return false;
+      }
+    }
+    return (afterBuilds > 0 && count >= afterBuilds)
+        || (intervalHours > 0 && now - lastBakedAt(nodeName) >= intervalHours * 60 * 60 * 1000L);
+  }
+
+  /**
+   * Starts creating an image of the given instance.  The instance is terminated
+   * once the image is done, after its build cache is saved, the caller must not
+   * terminate it.  A cache volume is detached first and the image is only
+   * created once it is, see {@link #check()}.
+   *
+   * @param cache
+   *            the build cache on the instance, see {@link CacheVolumes}, null if
+   *            it has none
+   * @param cacheDevice
+   *            the device of the cache volume, null if there is none
+   * @throws AmazonClientException
+   *             if the image could not be started, the caller still owns the instance
+   */
+  public void bake(EC2ClientRegistry.Handle ec2, String nodeName, String baseAmi, String instanceId, String cache,
+      String cacheDevice) {
+    long now = System.currentTimeMillis();
+    String cacheVolume = null;
+    if (cacheDevice != null) {
+      Instance instance = ec2.get().describeInstances(new DescribeInstancesRequest().withInstanceIds(instanceId))
+          .getReservations().get(0).getInstances().get(0);
+      cacheVolume = CacheVolumes.volumeAt(instance, cacheDevice);
+    }
+
+    // the bake holds on to the client until the instance is terminated
+    EC2ClientRegistry.Handle bakeEc2 = ec2.copy();
+    Bake b = new Bake(nodeName, baseAmi, bakeEc2, instanceId, now, cacheVolume == null ? null : cache, cacheVolume);
+    if (cacheVolume != null) {
+      LOGGER.info("Detaching cache volume " + cacheVolume + " of EC2 instance " + instanceId + " before baking it");
+      ec2.get().detachVolume(new DetachVolumeRequest(cacheVolume));
+    } else {
+      createImage(b);
+    }
+    bakeEc2.retain();
+    synchronized (this) {
+      bakes.add(b);
+      builds.put(nodeName, 0);
+      lastBakedAt.put(nodeName, now);
+    }
+  }
+
+  /**
+   * Creates the image of the given bake and tags it
+   */
+  private void createImage(Bake b) {
+    String imageId = b.ec2
+        .get()
+        .createImage(
+            new CreateImageRequest(b.instanceId, imageNameOf(b.nodeName, b.startedAt)).withDescription(
+                "Jenkins slave " + b.nodeName + " baked from " + b.baseAmi)).getImageId();
+    LOGGER.info("Baking EC2 instance " + b.instanceId + " of " + b.nodeName + " into " + imageId);
+    b.imageId = imageId;
+
+    List<Tag> tags = new ArrayList<Tag>();
+    tags.add(new Tag(InstanceReconciler.CONTROLLER_TAG, controllerId));
+    tags.add(new Tag(InstanceReconciler.NODE_TAG, b.nodeName));
+    tags.add(new Tag(BASE_TAG, b.baseAmi));
+    tags.add(new Tag(BAKED_AT_TAG, String.valueOf(b.startedAt)));
+    try {
+      b.ec2.get().createTags(new CreateTagsRequest().withResources(imageId).withTags(tags));
+    } catch (AmazonClientException e) {
+      // an untagged image is never used, but still cleaned up by hand
+      LOGGER.log(Level.WARNING, "Failed to tag baked image " + imageId, e);
+    }
+  }
+
+  /**
+   * Returns the bakes in progress
+   */
+  public synchronized List<Bake> getBakes() {
+    return new ArrayList<Bake>(bakes);
+  }
+
+  /**
+   * Creates the images of the bakes whose cache volume is detached, and finishes
+   * the bakes whose image is done: the image becomes the current one of its
+   * node, older generations are cleaned up and the instance is terminated
+   */
+  public void check() {
+    List<Bake> pending;
+    synchronized (this) {
+      pending = new ArrayList<Bake>(bakes);
+    }
+    long now = System.currentTimeMillis();
+    for (Bake b : pending) {
+      boolean timedOut = now - b.startedAt >= BAKE_TIMEOUT_MINUTES * 60 * 1000L;
+      if (b.imageId == null) {
+        try {
+          List<Volume> volumes = b.ec2.get()
+              .describeVolumes(new DescribeVolumesRequest().withVolumeIds(b.cacheVolume)).getVolumes();
+          if (!volumes.isEmpty() && "available".equals(volumes.get(0).getState())) {
+            createImage(b);
+          }
+        } catch (AmazonClientException e) {
+          LOGGER.log(Level.WARNING, "Failed to bake EC2 instance " + b.instanceId + " of " + b.nodeName, e);
+        }
+        if (b.imageId == null && timedOut) {
+          LOGGER.warning("Giving up on baking EC2 instance " + b.instanceId + " of " + b.nodeName);
+          finish(b);
+        }
+        continue;
+      }
+
+      String state;
+      try {
+        List<Image> images = b.ec2.get().describeImages(new DescribeImagesRequest().withImageIds(b.imageId))
+            .getImages();
+        state = images.isEmpty() ? "failed" : images.get(0).getState();
+      } catch (AmazonClientException e) {
+        LOGGER.log(Level.WARNING, "Failed to check on baked image " + b.imageId, e);
+        continue;
+      }
+
+      if ("available".equals(state)) {
+        LOGGER.info("Baked image " + b.imageId + " of " + b.nodeName + " is available");
+        synchronized (this) {
+          current.put(keyOf(b.nodeName, b.ec2, b.baseAmi), b.imageId);
+        }
+        prune(b.ec2, b.nodeName, b.baseAmi);
+      } else if ("pending".equals(state) && !timedOut) {
+        continue;
+      } else {
+        LOGGER.warning("Giving up on baked image " + b.imageId + " of " + b.nodeName + ", it is " + state);
+        deregister(b.ec2, b.imageId, null);
+      }
+      finish(b);
+    }
+  }
+
+  /**
+   * Drops the given bake, saves its cache volume and terminates its instance
+   */
+  private void finish(Bake b) {
+    synchronized (this) {
+      bakes.remove(b);
+    }
+    if (b.cacheVolume != null) {
+      CacheVolumes.get().saveDetachedAndTerminate(b.ec2, b.instanceId, b.cache, b.cacheVolume);
+    } else {
+      TerminationReaper.get().terminate(b.ec2, b.instanceId);
+    }
+    b.ec2.release();
+  }
+
+  /**
+   * Deregisters the baked images of the given node beyond the newest
+   * {@link #KEEP_GENERATIONS} of its current base AMI
+   */
+  void prune(EC2ClientRegistry.Handle ec2, String nodeName, String baseAmi) {
+    List<Image> images;
+    try {
+      images = describeBaked(ec2, nodeName, null);
+    } catch (AmazonClientException e) {
+      LOGGER.log(Level.WARNING, "Failed to look up the baked images of " + nodeName, e);
+      return;
+    }
+    Collections.sort(images, new Comparator<Image>() {
+      public int compare(Image a, Image b) {
+        return Long.valueOf(bakedAt(b)).compareTo(bakedAt(a));
+      }
+    });
+
+    int kept = 0;
+    for (Image image : images) {
+      if ("pending".equals(image.getState())) {
+        continue; // still being baked
+      }
+      if (baseAmi.equals(tagValue(image, BASE_TAG)) && "available".equals(image.getState())
+          && kept < KEEP_GENERATIONS) {
+        kept++;
+        continue;
+      }
+      LOGGER.info("Deregistering old baked image " + image.getImageId() + " of " + nodeName);
+      deregister(ec2, image.getImageId(), image);
+    }
+  }
+
+  /**
+   * Deregisters an image and deletes the snapshots behind it
+   *
+   * @param image
+   *            the image, if already described
+   */
+  private void deregister(EC2ClientRegistry.Handle ec2, String imageId, Image image) {
+    try {
+      if (image == null) {
+        List<Image> images = ec2.get().describeImages(new DescribeImagesRequest().withImageIds(imageId)).getImages();
+        if (images.isEmpty()) {
+          return;
+        }
+        image = images.get(0);
+      }
+      ec2.get().deregisterImage(new DeregisterImageRequest(imageId));
+      if (image.getBlockDeviceMappings() != null) {
+        for (BlockDeviceMapping mapping : image.getBlockDeviceMappings()) {
+          if (mapping.getEbs() != null && mapping.getEbs().getSnapshotId() != null) {
+            ec2.get().deleteSnapshot(new DeleteSnapshotRequest(mapping.getEbs().getSnapshotId()));
+          }
+        }
+      }
+    } catch (AmazonClientException e) {
+      LOGGER.log(Level.WARNING, "Failed to deregister baked image " + imageId, e);
+    }
+  }
+
+  /**
+   * Describes the images baked for the given node
+   *
+   * @param baseAmi
+   *            only those of this base AMI, null for all of them
+   */
+  private List<Image> describeBaked(EC2ClientRegistry.Handle ec2, String nodeName, String baseAmi) {
+    List<Filter> filters = new ArrayList<Filter>();
+    filters.add(new Filter("tag:" + InstanceReconciler.CONTROLLER_TAG, Arrays.asList(controllerId)));
+    filters.add(new Filter("tag:" + InstanceReconciler.NODE_TAG, Arrays.asList(nodeName)));
+    if (baseAmi != null) {
+      filters.add(new Filter("tag:" + BASE_TAG, Arrays.asList(baseAmi)));
+    }
+    DescribeImagesRequest req = new DescribeImagesRequest().withOwners("self").withFilters(filters);
+    return new ArrayList<Image>(ec2.get().describeImages(req).getImages());
+  }
+
+  /**
+   * Returns an image name for the given node, image names must be unique and
+   * are restricted to a few characters
+   */
+  static String imageNameOf(String nodeName, long at) {
+    return "jenkins-" + nodeName.replaceAll("[^A-Za-z0-9()./_-]", "_") + "-" + at;
+  }
+
+  private static long bakedAt(Image image) {
+    try {
+      return Long.parseLong(tagValue(image, BAKED_AT_TAG));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  private static String tagValue(Image image, String key) {
+    if (image.getTags() != null) {
+      for (Tag t : image.getTags()) {
+        if (key.equals(t.getKey())) {
+          return t.getValue();
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Counts the builds of EC2 image slaves
+   */
+  @Extension
+  public static final class BuildCounter extends RunListener<AbstractBuild> {
+    public BuildCounter() {
+      super(AbstractBuild.class);
+    }
+
+    @Override
+    public void onCompleted(AbstractBuild build, TaskListener listener) {
+      Node node = build.getBuiltOn();
+      if (node instanceof EC2ImageSlave && ((EC2ImageSlave) node).isBaking()) {
+        get().recordBuild(node.getNodeName());
+      }
+    }
+  }
+
+  /**
+   * Periodically finishes bakes whose image is done
+   */
+  @Extension
+  public static final class BakeChecker extends PeriodicWork {
+    @Override
+    public long getRecurrencePeriod() {
+      return MIN;
+    }
+
+    @Override
+    protected void doRun() {
+      get().check();
+    }
+  }
+}
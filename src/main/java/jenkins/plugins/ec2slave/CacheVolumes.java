@@ -0,0 +1,330 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import hudson.util.DaemonThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.model.BlockDeviceMapping;
+import com.amazonaws.services.ec2.model.CreateSnapshotRequest;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.DeleteSnapshotRequest;
+import com.amazonaws.services.ec2.model.DeleteVolumeRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeSnapshotsRequest;
+import com.amazonaws.services.ec2.model.DescribeVolumesRequest;
+import com.amazonaws.services.ec2.model.DetachVolumeRequest;
+import com.amazonaws.services.ec2.model.EbsBlockDevice;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceBlockDeviceMapping;
+import com.amazonaws.services.ec2.model.Snapshot;
+import com.amazonaws.services.ec2.model.StopInstancesRequest;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.Volume;
+
+/**
+ * Keeps build caches (local repositories, tool installations, workspaces) on an
+ * EBS volume of their own that outlives the instance.  Every instance gets its
+ * cache volume created from the newest snapshot of its cache, and when the
+ * instance goes away its cache volume is snapshotted again.  EBS snapshots are
+ * incremental, so each one only stores what the builds changed.
+ * <p>
+ * Saving a cache happens in the background, not on the disconnecting thread.
+ * The instance is stopped first, or, if it can't be stopped, the volume is
+ * detached from it, so the snapshot is of a volume that nothing writes to any
+ * more.  Only then is the instance handed to the {@link TerminationReaper}.
+ * <p>
+ * Caches are shared by label: slaves with the same labels build the same kind
+ * of things, so they warm each other's caches.  Snapshots are tagged with their
+ * cache and only the newest {@link #KEEP_SNAPSHOTS} of each are kept.  Mounting
+ * the volume is up to the AMI, e.g. an fstab entry for the device.
+ *
+ * @author Aaron Phillips
+ */
+final class CacheVolumes {
+
+  private static final Logger LOGGER = Logger.getLogger(CacheVolumes.class.getName());
+
+  static final String CACHE_TAG = "jenkins-ec2slave-cache";
+
+  /**
+   * Number of completed snapshots to keep per cache
+   */
+  static int KEEP_SNAPSHOTS = Integer.getInteger(CacheVolumes.class.getName() + ".keepSnapshots", 3);
+
+  /**
+   * Size of a cache volume when the slave does not say
+   */
+  static int DEFAULT_SIZE_GB = Integer.getInteger(CacheVolumes.class.getName() + ".defaultSizeGb", 20);
+
+  /**
+   * How long an instance may take to stop, or its cache volume to detach, before
+   * it is terminated without saving its cache
+   */
+  static int SAVE_TIMEOUT_MINUTES = Integer.getInteger(CacheVolumes.class.getName() + ".saveTimeoutMinutes", 10);
+
+  static long SAVE_POLL_MILLIS = 5000;
+
+  private static final ScheduledExecutorService EXECUTOR = Executors
+      .newSingleThreadScheduledExecutor(EC2RateLimiter.failFast(new DaemonThreadFactory()));
+
+  private static CacheVolumes INSTANCE;
+
+  public static synchronized CacheVolumes get() {
+    if (INSTANCE == null) {
+      INSTANCE = new CacheVolumes(InstanceReconciler.get().getControllerId());
+    }
+    return INSTANCE;
+  }
+
+  private final String controllerId;
+
+  CacheVolumes(String controllerId) {
+    this.controllerId = controllerId;
+  }
+
+  /**
+   * Returns the block device mapping for the cache volume of a new instance,
+   * from the newest snapshot of the cache, or an empty volume of the given size
+   * if there is none yet
+   *
+   * @param sizeGb
+   *            the volume size, volumes from a smaller snapshot are grown to it
+   */
+  public BlockDeviceMapping mappingFor(EC2ClientRegistry.Handle ec2, String cache, String device, int sizeGb) {
+    EbsBlockDevice ebs = new EbsBlockDevice().withDeleteOnTermination(true);
+    Snapshot newest = null;
+    try {
+      List<Snapshot> snapshots = describe(ec2, cache);
+      newest = snapshots.isEmpty() ? null : snapshots.get(0);
+    } catch (AmazonClientException e) {
+      // the build still works, it just starts cold
+      LOGGER.log(Level.WARNING, "Failed to look up the snapshots of cache " + cache, e);
+    }
+    if (newest != null) {
+      ebs.setSnapshotId(newest.getSnapshotId());
+      if (newest.getVolumeSize() != null && sizeGb > newest.getVolumeSize()) {
+        ebs.setVolumeSize(sizeGb);
+      }
+    } else {
+      ebs.setVolumeSize(sizeGb);
+    }
+    return new BlockDeviceMapping().withDeviceName(device).withEbs(ebs);
+  }
+
+  /**
+   * Saves the cache volume of the given instance and then terminates the
+   * instance, in the background.  The caller hands over the instance and must
+   * not terminate it itself.
+   */
+  public void saveAndTerminate(EC2ClientRegistry.Handle ec2, String instanceId, String cache, String device) {
+    EXECUTOR.execute(new Save(ec2, instanceId, cache, device));
+  }
+
+  /**
+   * Like {@link #saveAndTerminate}, for a cache volume that is already being
+   * detached from the instance.  The volume is deleted once it is snapshotted.
+   */
+  public void saveDetachedAndTerminate(EC2ClientRegistry.Handle ec2, String instanceId, String cache, String volumeId) {
+    Save save = new Save(ec2, instanceId, cache, null);
+    save.volumeId = volumeId;
+    save.detached = true;
+    EXECUTOR.execute(save);
+  }
+
+  /**
+   * The saving of one instance's cache volume, polled until the volume can be
+   * snapshotted
+   */
+  final class Save implements Runnable {
+    private final EC2ClientRegistry.Handle ec2;
+    private final String instanceId, cache, device;
+    private final long deadline = System.currentTimeMillis() + SAVE_TIMEOUT_MINUTES * 60 * 1000L;
+
+    /* set once the instance is being stopped or the volume detached */
+    private String volumeId;
+    private boolean detached;
+
+    String snapshotId;
+
+    Save(EC2ClientRegistry.Handle ec2, String instanceId, String cache, String device) {
+      // holds on to the client until the instance is handed to the reaper
+      this.ec2 = ec2.copy();
+      this.ec2.retain();
+      this.instanceId = instanceId;
+      this.cache = cache;
+      this.device = device;
+    }
+
+    public void run() {
+      boolean done;
+      try {
+        done = step();
+      } catch (AmazonClientException e) {
+        LOGGER.log(Level.WARNING, "Failed to save the cache volume of EC2 instance " + instanceId + ", retrying", e);
+        done = false;
+      }
+      if (!done && System.currentTimeMillis() > deadline) {
+        LOGGER.warning("Giving up on saving the cache volume of EC2 instance " + instanceId);
+        done = true;
+      }
+      if (done) {
+        finish();
+      } else {
+        EXECUTOR.schedule(this, SAVE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    /**
+     * Moves the save along
+     *
+     * @return true once there is nothing more to do before terminating the instance
+     */
+    boolean step() {
+      Instance instance = ec2.get().describeInstances(new DescribeInstancesRequest().withInstanceIds(instanceId))
+          .getReservations().get(0).getInstances().get(0);
+      if (volumeId == null) {
+        volumeId = volumeAt(instance, device);
+        if (volumeId == null) {
+          return true;
+        }
+        if ("ebs".equals(instance.getRootDeviceType())) {
+          ec2.get().stopInstances(new StopInstancesRequest().withInstanceIds(instanceId));
+        } else {
+          // instance store backed, can't be stopped
+          detached = true;
+          ec2.get().detachVolume(new DetachVolumeRequest(volumeId));
+        }
+        return false;
+      }
+
+      if (detached) {
+        List<Volume> volumes = ec2.get().describeVolumes(new DescribeVolumesRequest().withVolumeIds(volumeId))
+            .getVolumes();
+        if (volumes.isEmpty() || !"available".equals(volumes.get(0).getState())) {
+          return false;
+        }
+      } else if (!InstancePool.STOPPED.equals(instance.getState().getName())) {
+        return false;
+      }
+      snapshotId = snapshot(ec2, instanceId, volumeId, cache);
+      return true;
+    }
+
+    private void finish() {
+      if (detached) {
+        // a detached volume is not deleted with its instance, the snapshot no
+        // longer needs it once it has been started
+        try {
+          ec2.get().deleteVolume(new DeleteVolumeRequest(volumeId));
+        } catch (AmazonClientException e) {
+          LOGGER.log(Level.WARNING, "Failed to delete detached cache volume " + volumeId, e);
+        }
+      }
+      TerminationReaper.get().terminate(ec2, instanceId);
+      ec2.release();
+    }
+  }
+
+  static String volumeAt(Instance instance, String device) {
+    if (instance.getBlockDeviceMappings() != null) {
+      for (InstanceBlockDeviceMapping mapping : instance.getBlockDeviceMappings()) {
+        if (device.equals(mapping.getDeviceName()) && mapping.getEbs() != null) {
+          return mapping.getEbs().getVolumeId();
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Snapshots the given cache volume and drops the snapshots of the cache beyond
+   * {@link #KEEP_SNAPSHOTS}
+   *
+   * @return the snapshot
+   */
+  private String snapshot(EC2ClientRegistry.Handle ec2, String instanceId, String volumeId, String cache) {
+    String snapshotId = ec2.get().createSnapshot(
+        new CreateSnapshotRequest(volumeId, "Jenkins slave build cache " + cache)).getSnapshot().getSnapshotId();
+    LOGGER.info("Snapshotting cache volume " + volumeId + " of EC2 instance " + instanceId + " into " + snapshotId);
+    try {
+      ec2.get().createTags(new CreateTagsRequest().withResources(snapshotId).withTags(
+          new Tag(InstanceReconciler.CONTROLLER_TAG, controllerId), new Tag(CACHE_TAG, cache)));
+    } catch (AmazonClientException e) {
+      // an untagged snapshot is never used, but still cleaned up by hand
+      LOGGER.log(Level.WARNING, "Failed to tag cache snapshot " + snapshotId, e);
+    }
+    prune(ec2, cache);
+    return snapshotId;
+  }
+
+  /**
+   * Deletes the completed snapshots of the given cache beyond the newest
+   * {@link #KEEP_SNAPSHOTS}
+   */
+  void prune(EC2ClientRegistry.Handle ec2, String cache) {
+    try {
+      List<Snapshot> snapshots = describe(ec2, cache);
+      for (Snapshot s : snapshots.subList(Math.min(KEEP_SNAPSHOTS, snapshots.size()), snapshots.size())) {
+        LOGGER.info("Deleting old snapshot " + s.getSnapshotId() + " of cache " + cache);
+        ec2.get().deleteSnapshot(new DeleteSnapshotRequest(s.getSnapshotId()));
+      }
+    } catch (AmazonClientException e) {
+      LOGGER.log(Level.WARNING, "Failed to clean up the snapshots of cache " + cache, e);
+    }
+  }
+
+  /**
+   * Returns the completed snapshots of the given cache, newest first
+   */
+  private List<Snapshot> describe(EC2ClientRegistry.Handle ec2, String cache) {
+    DescribeSnapshotsRequest req = new DescribeSnapshotsRequest().withOwnerIds("self").withFilters(
+        new Filter("tag:" + InstanceReconciler.CONTROLLER_TAG, Arrays.asList(controllerId)),
+        new Filter("tag:" + CACHE_TAG, Arrays.asList(cache)), new Filter("status", Arrays.asList("completed")));
+    List<Snapshot> snapshots = new ArrayList<Snapshot>(ec2.get().describeSnapshots(req).getSnapshots());
+    Collections.sort(snapshots, new Comparator<Snapshot>() {
+      public int compare(Snapshot a, Snapshot b) {
+        return startOf(b).compareTo(startOf(a));
+      }
+    });
+    return snapshots;
+  }
+
+  private static Date startOf(Snapshot s) {
+    return s.getStartTime() != null ? s.getStartTime() : new Date(0);
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * Picks the instance type and availability zone a launch should try, out of the
+ * ordered lists a slave accepts.  When EC2 has no capacity for a combination the
+ * launch moves on to the next one, and the combination is left out of every
+ * launch of the same account for {@link #COOLDOWN_MINUTES}, so later launches
+ * don't waste a RunInstances call on it first.
+ * <p>
+ * Combinations are tried in the order of the instance types, and for each
+ * instance type in the order of the zones, i.e. a slave would rather have its
+ * preferred instance type in any zone than its preferred zone.
+ *
+ * @author Aaron Phillips
+ */
+final class CapacityFallback {
+
+  private static final Logger LOGGER = Logger.getLogger(CapacityFallback.class.getName());
+
+  static int COOLDOWN_MINUTES = Integer.getInteger(CapacityFallback.class.getName() + ".cooldownMinutes", 10);
+
+  /**
+   * Error codes of RunInstances that mean this combination of instance type and
+   * zone can't be had right now, but another one may well be
+   */
+  static final List<String> CAPACITY_ERRORS = Arrays.asList("InsufficientInstanceCapacity", "Unsupported");
+
+  private static final CapacityFallback INSTANCE = new CapacityFallback(COOLDOWN_MINUTES * 60 * 1000L);
+
+  public static CapacityFallback get() {
+    return INSTANCE;
+  }
+
+  /**
+   * One combination of instance type and availability zone
+   */
+  static final class Choice {
+    final String instanceType;
+
+    /* null to let EC2 pick the zone */
+    final String availabilityZone;
+
+    Choice(String instanceType, String availabilityZone) {
+      this.instanceType = instanceType;
+      this.availabilityZone = availabilityZone;
+    }
+
+    @Override
+    public String toString() {
+      return instanceType + (availabilityZone == null ? "" : " in " + availabilityZone);
+    }
+  }
+
+  private final long cooldownMillis;
+
+  /* guarded by this, account|type|zone -> when it may be tried again */
+  private final Map<String, Long> coolingDown = new HashMap<String, Long>();
+
+  CapacityFallback(long cooldownMillis) {
+    this.cooldownMillis = cooldownMillis;
+  }
+
+  /**
+   * Splits a comma or whitespace separated list, as the slave configuration takes it
+   */
+  static List<String> split(String list) {
+    List<String> r = new ArrayList<String>();
+    for (String s : StringUtils.split(StringUtils.defaultString(list), ", \t\r\n")) {
+      if (!r.contains(s)) {
+        r.add(s);
+      }
+    }
+    return r;
+  }
+
+  /**
+   * Returns the combinations a launch should try, in order.  Combinations that are
+   * cooling down are left out, unless all of them are, in which case all are tried
+   * anyway as failing outright would be no better.
+   *
+   * @param availabilityZones
+   *            empty to let EC2 pick the zone
+   */
+  public List<Choice> choices(EC2ClientRegistry.Handle ec2, String instanceTypes, String availabilityZones) {
+    return choices(ec2.getKey(), instanceTypes, availabilityZones, System.currentTimeMillis());
+  }
+
+  synchronized List<Choice> choices(String account, String instanceTypes, String availabilityZones, long now) {
+    List<String> zones = split(availabilityZones);
+    if (zones.isEmpty()) {
+      zones.add(null);
+    }
+    List<Choice> all = new ArrayList<Choice>();
+    List<Choice> available = new ArrayList<Choice>();
+    for (String type : split(instanceTypes)) {
+      for (String zone : zones) {
+        Choice c = new Choice(type, zone);
+        all.add(c);
+        Long until = coolingDown.get(keyOf(account, c));
+        if (until == null || until <= now) {
+          available.add(c);
+        }
+      }
+    }
+    return available.isEmpty() ? all : available;
+  }
+
+  /**
+   * Records that EC2 had no capacity for the given combination
+   */
+  public void failed(EC2ClientRegistry.Handle ec2, Choice choice) {
+    failed(ec2.getKey(), choice, System.currentTimeMillis());
+  }
+
+  synchronized void failed(String account, Choice choice, long now) {
+    LOGGER.info("No EC2 capacity for " + choice + ", skipping it for the next " + cooldownMillis / 1000 + "s");
+    coolingDown.put(keyOf(account, choice), now + cooldownMillis);
+    // forget what has cooled down, so the map only holds what currently matters
+    for (Iterator<Long> itr = coolingDown.values().iterator(); itr.hasNext();) {
+      if (itr.next() <= now) {
+        itr.remove();
+      }
+    }
+  }
+
+  /**
+   * Records that an instance was launched with the given combination, which ends
+   * any cooldown it was in
+   */
+  public void succeeded(EC2ClientRegistry.Handle ec2, Choice choice) {
+    succeeded(ec2.getKey(), choice);
+  }
+
+  synchronized void succeeded(String account, Choice choice) {
+    coolingDown.remove(keyOf(account, choice));
+  }
+
+  private static String keyOf(String account, Choice c) {
+    return account + '|' + c.instanceType + '|' + StringUtils.defaultString(c.availabilityZone);
+  }
+
+  /**
+   * Whether the given launch failure means that another instance type or zone
+   * should be tried
+   */
+  static boolean isCapacityError(Throwable t) {
+    return t instanceof AmazonServiceException && CAPACITY_ERRORS.contains(((AmazonServiceException) t).getErrorCode());
+  }
+}
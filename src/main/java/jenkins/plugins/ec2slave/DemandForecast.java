@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+/**
+ * Forecasts the length of the build queue of one label from its recent history,
+ * using double exponential smoothing: a smoothed level follows the queue length
+ * and a smoothed trend follows how fast it is changing.  A queue that is growing
+ * is therefore predicted to be longer still by the time a new instance is up,
+ * while one that is shrinking is predicted to empty out.
+ *
+ * @author Aaron Phillips
+ */
+final class DemandForecast {
+
+  /**
+   * How much the latest sample counts towards the level, higher follows bursts faster
+   */
+  static final double LEVEL_SMOOTHING = 0.5;
+
+  /**
+   * How much the latest change counts towards the trend
+   */
+  static final double TREND_SMOOTHING = 0.3;
+
+  private double level, trend;
+
+  private int samples, lastQueued;
+
+  /**
+   * Adds a sample of the queue length, samples are expected at a fixed interval
+   */
+  public synchronized void sample(int queued) {
+    if (samples++ == 0) {
+      level = queued;
+    } else {
+      double previous = level;
+      level = LEVEL_SMOOTHING * queued + (1 - LEVEL_SMOOTHING) * (level + trend);
+      trend = TREND_SMOOTHING * (level - previous) + (1 - TREND_SMOOTHING) * trend;
+    }
+    lastQueued = queued;
+  }
+
+  /**
+   * Returns the predicted queue length the given number of sample intervals from now
+   */
+  public synchronized double predict(int intervals) {
+    return Math.max(0, level + trend * intervals);
+  }
+
+  /**
+   * Returns the queue length of the latest sample
+   */
+  public synchronized int getLastQueued() {
+    return lastQueued;
+  }
+
+  /**
+   * Whether the queue has been empty long enough for the forecast to be of no
+   * more interest
+   */
+  public synchronized boolean isQuiet() {
+    return lastQueued == 0 && level < 0.05 && Math.abs(trend) < 0.05;
+  }
+}
@@ -0,0 +1,281 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.PeriodicWork;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.AmazonEC2Client;
+
+/**
+ * Process wide registry of EC2 clients.  Every code path that talks to EC2 gets its
+ * client from here, so all nodes (and all form validations) that use the same
+ * credentials and endpoint share one client and therefore one pool of warm HTTP
+ * connections.
+ * <p>
+ * Long lived users of a client, e.g. a launcher whose instance is up, {@link Handle#retain()}
+ * it.  A client that nobody retains is shut down once it has not been used for
+ * {@link #IDLE_TIMEOUT_MINUTES}.
+ * <p>
+ * Each shared client is rate limited by its own {@link EC2RateLimiter} and its
+ * calls are counted by {@link EC2Metrics}.
+ *
+ * @author Aaron Phillips
+ */
+final class EC2ClientRegistry {
+
+  private static final Logger LOGGER = Logger.getLogger(EC2ClientRegistry.class.getName());
+
+  /**
+   * How long an unretained client is kept around after its last use
+   */
+  static int IDLE_TIMEOUT_MINUTES = Integer.getInteger(EC2ClientRegistry.class.getName() + ".idleTimeoutMinutes", 10);
+
+  /**
+   * Size of the HTTP connection pool of each shared client
+   */
+  static int MAX_CONNECTIONS = Integer.getInteger(EC2ClientRegistry.class.getName() + ".maxConnections", 100);
+
+  /**
+   * Creates the actual clients, replaceable so that tests can hand out stand-ins
+   */
+  interface ClientFactory {
+    AmazonEC2 create(String accessKey, String secretKey, String endpoint);
+  }
+
+  static final ClientFactory DEFAULT_FACTORY = new ClientFactory() {
+    public AmazonEC2 create(String accessKey, String secretKey, String endpoint) {
+      AmazonEC2Client ec2 = new AmazonEC2Client(new BasicAWSCredentials(accessKey, secretKey),
+          new ClientConfiguration().withMaxConnections(MAX_CONNECTIONS));
+      if (!StringUtils.isEmpty(endpoint)) {
+        ec2.setEndpoint(endpoint);
+      }
+      return ec2;
+    }
+  };
+
+  private static final EC2ClientRegistry INSTANCE = new EC2ClientRegistry(DEFAULT_FACTORY);
+
+  public static EC2ClientRegistry get() {
+    return INSTANCE;
+  }
+
+  private static final class Entry {
+    private final AmazonEC2 client;
+    private int refCount;
+    private long lastUsed;
+
+    private Entry(AmazonEC2 client) {
+      this.client = client;
+    }
+  }
+
+  private final ClientFactory factory;
+
+  /* guarded by this */
+  private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+  EC2ClientRegistry(ClientFactory factory) {
+    this.factory = factory;
+  }
+
+  /**
+   * Returns a handle to the shared client for the given credentials and endpoint.
+   * Creating a handle is cheap, no client is built until {@link Handle#get()} is
+   * called.
+   *
+   * @param endpoint
+   *            the EC2 endpoint, or null for the SDK default
+   */
+  public Handle handle(String accessKey, String secretKey, String endpoint) {
+    return new Handle(accessKey, secretKey, endpoint);
+  }
+
+  /**
+   * Returns the number of clients currently alive
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  private static String keyOf(String accessKey, String secretKey, String endpoint) {
+    // the secret is part of the key so that a changed secret gets a new client,
+    // but only as a digest so it is not kept around in yet another place
+    return accessKey + '|' + Util.getDigestOf(StringUtils.defaultString(secretKey)) + '|'
+        + StringUtils.defaultString(endpoint);
+  }
+
+  private synchronized Entry lookup(Handle h, boolean retain) {
+    Entry e = entries.get(h.key);
+    if (e == null) {
+      // throttled retries are counted by the metrics, so the limiter goes on the outside
+      AmazonEC2 client = EC2Metrics.get().instrument(factory.create(h.accessKey, h.secretKey, h.endpoint));
+      e = new Entry(new EC2RateLimiter().limit(client));
+      entries.put(h.key, e);
+      LOGGER.fine("Created shared EC2 client for " + h);
+    }
+    if (retain) {
+      e.refCount++;
+    }
+    e.lastUsed = System.currentTimeMillis();
+    return e;
+  }
+
+  private synchronized void release(Handle h) {
+    Entry e = entries.get(h.key);
+    if (e != null && e.refCount > 0) {
+      e.refCount--;
+      e.lastUsed = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Shuts down and forgets every client that is not retained and has been idle
+   * for longer than {@link #IDLE_TIMEOUT_MINUTES}
+   *
+   * @return the number of clients evicted
+   */
+  public int evictIdle() {
+    return evictIdleBefore(System.currentTimeMillis() - IDLE_TIMEOUT_MINUTES * 60 * 1000L);
+  }
+
+  synchronized int evictIdleBefore(long cutoff) {
+    int evicted = 0;
+    for (Iterator<Entry> itr = entries.values().iterator(); itr.hasNext();) {
+      Entry e = itr.next();
+      if (e.refCount == 0 && e.lastUsed < cutoff) {
+        itr.remove();
+        e.client.shutdown();
+        evicted++;
+      }
+    }
+    if (evicted > 0) {
+      LOGGER.fine("Evicted " + evicted + " idle EC2 clients");
+    }
+    return evicted;
+  }
+
+  /**
+   * A reference to the shared client for one set of credentials and endpoint.
+   * {@link #retain()} and {@link #release()} are idempotent per handle, so a
+   * holder can simply release on every path that ends its use of the client.
+   */
+  public final class Handle {
+    private final String accessKey, secretKey, endpoint, key;
+
+    /* guarded by this */
+    private boolean retained;
+
+    private Handle(String accessKey, String secretKey, String endpoint) {
+      this.accessKey = accessKey;
+      this.secretKey = secretKey;
+      this.endpoint = endpoint;
+      this.key = keyOf(accessKey, secretKey, endpoint);
+    }
+
+    /**
+     * Returns the shared client, creating it if needed
+     */
+    public AmazonEC2 get() {
+      return lookup(this, false).client;
+    }
+
+    /**
+     * Keeps the client from being evicted until {@link #release()} is called
+     */
+    public synchronized AmazonEC2 retain() {
+      Entry e = lookup(this, !retained);
+      retained = true;
+      return e.client;
+    }
+
+    public synchronized void release() {
+      if (retained) {
+        retained = false;
+        EC2ClientRegistry.this.release(this);
+      }
+    }
+
+    /**
+     * Returns a new, unretained handle to the same client
+     */
+    public Handle copy() {
+      return new Handle(accessKey, secretKey, endpoint);
+    }
+
+    /**
+     * Returns a new, unretained handle with the same credentials for another endpoint
+     */
+    public Handle withEndpoint(String endpoint) {
+      return new Handle(accessKey, secretKey, endpoint);
+    }
+
+    public String getAccessKey() {
+      return accessKey;
+    }
+
+    public String getEndpoint() {
+      return endpoint;
+    }
+
+    /**
+     * Identifies the account and endpoint this handle talks to
+     */
+    public String getKey() {
+      return key;
+    }
+
+    @Override
+    public String toString() {
+      return accessKey + (StringUtils.isEmpty(endpoint) ? "" : "@" + endpoint);
+    }
+  }
+
+  /**
+   * Periodically shuts down clients nobody has used for a while
+   */
+  @Extension
+  public static final class IdleClientSweeper extends PeriodicWork {
+    @Override
+    public long getRecurrencePeriod() {
+      return MIN;
+    }
+
+    @Override
+    protected void doRun() {
+      get().evictIdle();
+    }
+  }
+}
@@ -32,34 +32,27 @@ import hudson.model.Descriptor;
 import hudson.slaves.ComputerConnector;
 import hudson.slaves.ComputerLauncher;
 import hudson.slaves.DumbSlave;
+import hudson.slaves.JNLPLauncher;
 import hudson.slaves.SlaveComputer;
 
 import java.io.IOException;
 import java.io.PrintStream;
-import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.lang.StringUtils;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
-import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.services.ec2.AmazonEC2Client;
-import com.amazonaws.services.ec2.model.AvailabilityZone;
-import com.amazonaws.services.ec2.model.DescribeAvailabilityZonesResult;
 import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
-import com.amazonaws.services.ec2.model.DescribeSecurityGroupsResult;
 import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.ec2.model.InstanceStateName;
 import com.amazonaws.services.ec2.model.Placement;
-import com.amazonaws.services.ec2.model.Reservation;
 import com.amazonaws.services.ec2.model.RunInstancesRequest;
-import com.amazonaws.services.ec2.model.RunInstancesResult;
-import com.amazonaws.services.ec2.model.SecurityGroup;
-import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import com.amazonaws.services.ec2.model.StartInstancesRequest;
+import com.amazonaws.services.ec2.model.StopInstancesRequest;
 
 /**
  * The {@link EC2ImageLaunchWrapper} is a true {@link ComputerLauncher} which is what
@@ -79,31 +72,61 @@ public class EC2ImageLaunchWrapper extends ComputerLauncher {
 
   private static final Logger LOGGER = Logger.getLogger(EC2ImageLaunchWrapper.class.getName());
 
-  private String ami;
+  private String ami; /* one AMI, or region=AMI pairs when launching in several regions */
 
-  private String instanceType;
+  private String instanceType; /* ordered list of acceptable types, see CapacityFallback */
   
   private String securityGroup;
   
-  private String availabilityZone;
+  private String availabilityZone; /* ordered list of acceptable zones, empty lets EC2 pick */
   
   private String keypairName;
 
-  private int retryIntervalSeconds = 10;
+  private LaunchWaitPolicy waitPolicy = ExponentialBackoffWaitPolicy.DEFAULT;
 
-  private int maxRetries = 60;
+  private int poolSize = 0; /* 0 means instances are terminated rather than hibernated */
+
+  private int poolMaxAgeMinutes = 0;
+
+  private int readinessPort = 0; /* 0 means the instance is handed off as soon as it is running */
+
+  private boolean readinessSshBanner = false;
+
+  private boolean inbound = false; /* the slave connects back to Jenkins by itself, see InboundAgentUserData */
+
+  private String remoteFS;
+
+  private String inboundCredentialsFile; /* null to put the JNLP secret into the user data */
+
+  private String nodeName; /* tagged onto our instances so they can be found again after a restart */
+
+  private String regions; /* ordered list, empty for the SDK's default region */
+
+  private boolean regionSpread = false; /* pick the best region for each launch, see RegionSelector */
+
+  private int bakeAfterBuilds, bakeIntervalHours; /* when to bake the instance into a new AMI, see AmiBaker */
+
+  private String cacheDevice; /* where the build cache volume goes, null for none, see CacheVolumes */
+
+  private int cacheVolumeSizeGb;
+
+  private String cache; /* which cache the volume holds */
 
   private transient ComputerConnector computerConnector; /* factory for creating launcher based on hostname */
 
   private transient ComputerLauncher computerLauncher; /* the thing that we are wrapping. actually connects to the node as a hudson slave */
 
-  private transient AmazonEC2Client ec2;
+  private transient EC2ClientRegistry.Handle ec2; /* shared with every other wrapper using the same credentials */
+
+  private transient String curRegion; /* the region ec2 talks to, null for the SDK's default */
+
+  private transient long regionSelectedAt; /* when RegionSelector picked curRegion, 0 once the launch is done */
 
-  private transient String curInstanceId;
+  private transient NodeLifecycle lifecycle; /* our instance, shared with the other wrappers of the same node */
 
   private transient boolean testMode = false;
 
-  private transient boolean preLaunchOk = false;
+  private transient long lastLaunchWaitMillis = -1; /* how long the last launch waited for its instance */
 
   public EC2ImageLaunchWrapper(ComputerConnector computerConnector, String secretKey, String accessKey, String ami,
       String instanceType, String keypairName, String securityGroup, String availabilityZone) {
@@ -115,15 +138,316 @@ public class EC2ImageLaunchWrapper extends ComputerLauncher {
     this.securityGroup = securityGroup;
     this.availabilityZone = availabilityZone;
 
-    AWSCredentials credentials = new BasicAWSCredentials(accessKey, secretKey);
-    ec2 = new AmazonEC2Client(credentials);
+    ec2 = EC2ClientRegistry.get().handle(accessKey, secretKey, null);
+  }
+
+  /**
+   * Points the wrapper at the EC2 service behind the given handle rather than at
+   * the one its credentials name, e.g. at an in-process stand-in
+   */
+  void setClientHandle(EC2ClientRegistry.Handle ec2) {
+    this.ec2 = ec2;
+  }
+
+  /**
+   * Turns on pool mode, where instances are stopped instead of terminated when
+   * the slave disconnects and are started again by a later launch
+   *
+   * @param poolSize
+   *            how many stopped instances to keep for this AMI and instance type,
+   *            0 turns pool mode off
+   * @param poolMaxAgeMinutes
+   *            instances launched longer ago than this are terminated instead of
+   *            being reused, 0 means no limit
+   */
+  public void setPool(int poolSize, int poolMaxAgeMinutes) {
+    this.poolSize = poolSize;
+    this.poolMaxAgeMinutes = poolMaxAgeMinutes;
+  }
+
+  /**
+   * Sets how often the instance is checked on while it is pending and how long
+   * to wait for it before the launch is aborted
+   */
+  public void setWaitPolicy(LaunchWaitPolicy waitPolicy) {
+    this.waitPolicy = waitPolicy;
+  }
+
+  /**
+   * Makes launches wait until the instance accepts connections on the given port
+   * before handing it to the connector
+   *
+   * @param port
+   *            the port to probe, 0 turns the check off
+   * @param sshBanner
+   *            whether to also wait for the SSH server to identify itself
+   */
+  public void setReadinessCheck(int port, boolean sshBanner) {
+    this.readinessPort = port;
+    this.readinessSshBanner = sshBanner;
+  }
+
+  public int getReadinessPort() {
+    return readinessPort;
+  }
+
+  public boolean isReadinessSshBanner() {
+    return readinessSshBanner;
+  }
+
+  /**
+   * Turns on inbound mode, where the instance is given user data that makes it
+   * connect back to Jenkins as a JNLP slave, rather than Jenkins connecting to it
+   * through the {@link ComputerConnector}.  Instances of inbound slaves are never
+   * pooled, as their user data only runs on first boot.
+   *
+   * @param remoteFS
+   *            where the slave works on the instance
+   * @param credentialsFile
+   *            the file on the instance with the credentials the slave fetches
+   *            its JNLP secret with, see {@link InboundAgentUserData}
+   */
+  public void setInbound(boolean inbound, String remoteFS, String credentialsFile) {
+    this.inbound = inbound;
+    this.remoteFS = remoteFS;
+    this.inboundCredentialsFile = credentialsFile;
+  }
+
+  public boolean isInbound() {
+    return inbound;
+  }
+
+  /**
+   * Sets the regions this slave can launch in.  Without spreading, every launch
+   * goes to the first region, with it the {@link RegionSelector} picks the region
+   * with the best recent launch latency and failure rate for each launch.
+   *
+   * @param regions
+   *            comma or whitespace separated, empty for the SDK's default region
+   */
+  public void setRegions(String regions, boolean spread) {
+    this.regions = regions;
+    this.regionSpread = spread;
+    List<String> list = getRegionList();
+    curRegion = list.isEmpty() ? null : list.get(0);
+    ec2 = handleFor(curRegion);
+  }
+
+  /**
+   * Sets when the instance is baked into a new AMI before it is terminated, see
+   * {@link AmiBaker}
+   *
+   * @param afterBuilds
+   *            bake after this many builds, 0 for no limit
+   * @param intervalHours
+   *            bake once this many hours passed since the last bake, 0 for no limit
+   */
+  public void setBaking(int afterBuilds, int intervalHours) {
+    this.bakeAfterBuilds = afterBuilds;
+    this.bakeIntervalHours = intervalHours;
+  }
+
+  public boolean isBaking() {
+    return bakeAfterBuilds > 0 || bakeIntervalHours > 0;
+  }
+
+  /**
+   * Gives each instance a build cache volume, see {@link CacheVolumes}
+   *
+   * @param device
+   *            the device to attach the volume as, null for no cache volume
+   * @param sizeGb
+   *            the volume size, 0 for the default
+   * @param cache
+   *            identifies the cache, wrappers with the same cache share its snapshots
+   */
+  public void setCacheVolume(String device, int sizeGb, String cache) {
+    this.cacheDevice = device;
+    this.cacheVolumeSizeGb = sizeGb > 0 ? sizeGb : CacheVolumes.DEFAULT_SIZE_GB;
+    this.cache = cache;
+  }
+
+  public List<String> getRegionList() {
+    return CapacityFallback.split(regions);
+  }
+
+  /**
+   * Returns the region of the current (or next) instance, null for the SDK's default
+   */
+  public String getRegion() {
+    return curRegion;
+  }
+
+  private List<String> regionsOrDefault() {
+    List<String> list = getRegionList();
+    if (list.isEmpty()) {
+      list.add(null);
+    }
+    return list;
+  }
+
+  private EC2ClientRegistry.Handle handleFor(String region) {
+    return ec2.withEndpoint(RegionSelector.endpointOf(region));
+  }
+
+  /**
+   * Returns a handle for every region this slave can launch in
+   */
+  List<EC2ClientRegistry.Handle> getClientHandles() {
+    List<EC2ClientRegistry.Handle> handles = new ArrayList<EC2ClientRegistry.Handle>();
+    for (String region : regionsOrDefault()) {
+      handles.add(handleFor(region));
+    }
+    return handles;
+  }
+
+  /**
+   * Returns the AMI to launch in the given region, or null if there is none
+   */
+  String amiFor(String region) {
+    return amiFor(ami, region);
+  }
+
+  /**
+   * Looks up the AMI of a region in an AMI setting, which is either a single AMI
+   * for every region or a list of region=AMI pairs, where a bare AMI applies to
+   * all regions not listed
+   */
+  static String amiFor(String amis, String region) {
+    String fallback = null;
+    for (String entry : CapacityFallback.split(amis)) {
+      int eq = entry.indexOf('=');
+      if (eq < 0) {
+        fallback = entry;
+      } else if (entry.substring(0, eq).equals(region)) {
+        return entry.substring(eq + 1);
+      }
+    }
+    return fallback;
+  }
+
+  private String amiFor(EC2ClientRegistry.Handle regionEc2) {
+    for (String region : regionsOrDefault()) {
+      if (handleFor(region).getKey().equals(regionEc2.getKey())) {
+        return amiFor(region);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Lets the {@link RegionSelector} pick the region of the next launch, if this
+   * slave spreads its launches
+   */
+  private void selectRegion() {
+    List<String> candidates = new ArrayList<String>();
+    for (String region : getRegionList()) {
+      if (amiFor(region) != null) {
+        candidates.add(region);
+      }
+    }
+    if (!regionSpread || candidates.size() < 2) {
+      return;
+    }
+    if (regionSelectedAt > 0) {
+      // the launch is selecting again, e.g. its step is retried after throttling
+      RegionSelector.get().cancelled(curRegion);
+      regionSelectedAt = 0;
+    }
+    curRegion = RegionSelector.get().select(candidates);
+    ec2 = handleFor(curRegion);
+    regionSelectedAt = System.currentTimeMillis();
+  }
+
+  /**
+   * Tells the {@link RegionSelector} how the launch in the region it picked went
+   */
+  private void regionLaunchDone(boolean ok) {
+    if (regionSelectedAt > 0) {
+      if (ok) {
+        RegionSelector.get().launched(curRegion, System.currentTimeMillis() - regionSelectedAt);
+      } else {
+        RegionSelector.get().failed(curRegion);
+      }
+      regionSelectedAt = 0;
+    }
+  }
+
+  public void setNodeName(String nodeName) {
+    this.nodeName = nodeName;
+    lifecycle = NodeLifecycle.forNode(nodeName);
+  }
+
+  /**
+   * Returns the lifecycle of our node's instance, or one of our own if we have
+   * not been given a node
+   */
+  NodeLifecycle getLifecycle() {
+    if (lifecycle == null) {
+      lifecycle = nodeName != null ? NodeLifecycle.forNode(nodeName) : new NodeLifecycle(null);
+    }
+    return lifecycle;
+  }
+
+  public String getNodeName() {
+    return nodeName;
+  }
+
+  /**
+   * Returns the handle for the region of our instance, or of the next launch if
+   * there is no instance
+   */
+  EC2ClientRegistry.Handle getClientHandle() {
+    NodeLifecycle.Snapshot s = getLifecycle().get();
+    return s.hasInstance() ? s.ec2 : ec2;
+  }
+
+  /**
+   * Returns the AMI of the current region, or the AMI setting as it is if there
+   * is none for that region
+   */
+  public String getAmi() {
+    String resolved = amiFor(curRegion);
+    return resolved != null ? resolved : ami;
+  }
+
+  public String getInstanceType() {
+    return instanceType;
+  }
+
+  /**
+   * Returns the instance type the current instance was launched as, or all
+   * acceptable instance types if that is not known
+   */
+  public String getLaunchedInstanceType() {
+    String type = getLifecycle().get().instanceType;
+    return type != null ? type : instanceType;
+  }
+
+  public LaunchWaitPolicy getWaitPolicy() {
+    return waitPolicy;
+  }
+
+  /**
+   * Returns how long, in milliseconds, the last successful launch waited for its
+   * instance to be running, or -1 if there was none yet
+   */
+  public long getLastLaunchWaitMillis() {
+    return lastLaunchWaitMillis;
   }
 
   ////
   // EC2 Util methods
   //
-  protected String launchInstanceFromImage() {
-    RunInstancesRequest req = new RunInstancesRequest().withImageId(ami).withInstanceType(instanceType)
+  protected RunInstancesRequest newRunInstancesRequest(CapacityFallback.Choice choice) {
+    String regionAmi = amiFor(curRegion);
+    if (regionAmi == null) {
+      throw new IllegalStateException("No AMI is configured for region " + curRegion);
+    }
+    if (isBaking()) {
+      regionAmi = AmiBaker.get().imageFor(ec2, nodeName, regionAmi);
+    }
+    RunInstancesRequest req = new RunInstancesRequest().withImageId(regionAmi).withInstanceType(choice.instanceType)
         .withKeyName(keypairName).withMinCount(1).withMaxCount(1);
     
     if(!StringUtils.isEmpty(securityGroup)) {
@@ -132,56 +456,372 @@ public class EC2ImageLaunchWrapper extends ComputerLauncher {
       req.withSecurityGroups("default");
     }
     
-    if(!StringUtils.isEmpty(availabilityZone)) {
-      req.setPlacement(new Placement(availabilityZone));
+    if(choice.availabilityZone != null) {
+      req.setPlacement(new Placement(choice.availabilityZone));
     }
 
     // Defaults to just stopping, when we're done with our slaves, we're done
     req.setInstanceInitiatedShutdownBehavior("terminate");
 
-    RunInstancesResult res = ec2.runInstances(req);
-    Reservation rvn = res.getReservation();
+    if (inbound) {
+      req.setUserData(InboundAgentUserData.forNode(nodeName, remoteFS, inboundCredentialsFile));
+    }
+
+    if (cacheDevice != null) {
+      req.withBlockDeviceMappings(CacheVolumes.get().mappingFor(ec2, cache, cacheDevice, cacheVolumeSizeGb));
+    }
+
+    return req;
+  }
+
+  /**
+   * Launches a fresh instance from the AMI.  The launch is coalesced with those
+   * of other wrappers with the same launch spec, the callback is called once
+   * the instance has been created.  If EC2 has no capacity for an instance type
+   * and zone, the next acceptable combination is tried.
+   */
+  protected void launchInstanceFromImage(LaunchStateMachine launch, PrintStream logger,
+      LaunchCoalescer.Callback callback) {
+    launchInstanceFromImage(launch, logger, CapacityFallback.get().choices(ec2, instanceType, availabilityZone), 0,
+        callback);
+  }
+
+  private void launchInstanceFromImage(final LaunchStateMachine launch, final PrintStream logger,
+      final List<CapacityFallback.Choice> choices, final int index, final LaunchCoalescer.Callback callback) {
+    final CapacityFallback.Choice choice = choices.get(index);
+    RunInstancesRequest req = newRunInstancesRequest(choice);
+    logger.println("Creating new EC2 instance from AMI [" + req.getImageId() + "] as " + choice
+        + (curRegion == null ? "" : " in region " + curRegion) + "...");
+    // keyed by the AMI actually launched, a baked one is only good for its own node
+    String specKey = ec2.getKey() + '|' + req.getImageId() + '|' + choice.instanceType + '|' + keypairName + '|'
+        + securityGroup + '|' + choice.availabilityZone;
+    if (inbound) {
+      // the user data of an inbound slave names its node, so those can't share a call
+      specKey += '|' + nodeName;
+    }
+    if (cacheDevice != null) {
+      specKey += '|' + cache;
+    }
+    LaunchCoalescer.get().submit(specKey, ec2, req, new LaunchCoalescer.Callback() {
+      public void launched(String instanceId) {
+        CapacityFallback.get().succeeded(ec2, choice);
+        try {
+          assign(launch, instanceId, System.currentTimeMillis(), choice.instanceType);
+        } catch (IllegalStateException e) {
+          callback.failed(e);
+          return;
+        }
+        journal(LaunchJournal.Type.INSTANCE_CREATED, instanceId, choice
+            + (curRegion == null ? "" : " in region " + curRegion));
+        callback.launched(instanceId);
+      }
+
+      public void failed(Throwable cause) {
+        journal(LaunchJournal.Type.RUN_INSTANCES_FAILED, null, choice + ": "
+            + (cause.getMessage() != null ? cause.getMessage() : cause.toString()));
+        if (CapacityFallback.isCapacityError(cause)) {
+          CapacityFallback.get().failed(ec2, choice);
+          if (index + 1 < choices.size()) {
+            logger.println("EC2 has no capacity for " + choice + ", trying " + choices.get(index + 1));
+            try {
+              launchInstanceFromImage(launch, logger, choices, index + 1, callback);
+            } catch (RuntimeException e) {
+              callback.failed(e);
+            }
+            return;
+          }
+        }
+        callback.failed(cause);
+      }
+    });
+  }
 
-    Instance instance = rvn.getInstances().get(0);
-    return instance.getInstanceId();
+  /**
+   * Tags the instance a launch brought up with the node's name, pooled instances
+   * are shared by all nodes with the same launch spec so this is done on every
+   * launch
+   */
+  protected void tagInstance(String instanceId) {
+    InstanceReconciler.tag(ec2, instanceId, nodeName);
   }
 
-  protected InstanceStateName getInstanceState(String instanceId) {
+  protected Instance describeInstance(EC2ClientRegistry.Handle regionEc2, String instanceId) {
     DescribeInstancesRequest descReq = new DescribeInstancesRequest().withInstanceIds(instanceId);
-    Instance instance = ec2.describeInstances(descReq).getReservations().get(0).getInstances().get(0);
-    return InstanceStateName.fromValue(instance.getState().getName());
+    return regionEc2.get().describeInstances(descReq).getReservations().get(0).getInstances().get(0);
   }
 
-  protected String getInstancePublicHostName() {
-    DescribeInstancesRequest descReq = new DescribeInstancesRequest().withInstanceIds(curInstanceId);
-    Instance instance = ec2.describeInstances(descReq).getReservations().get(0).getInstances().get(0);
-    return instance.getPublicDnsName();
+  /**
+   * Returns the state of the instance of the given snapshot, or null if it is in
+   * a state the SDK has no name for or EC2 does not know it (any more)
+   */
+  protected InstanceStateName getInstanceState(NodeLifecycle.Snapshot s) {
+    try {
+      return InstanceStatePoller.stateOf(describeInstance(s.ec2, s.instanceId));
+    } catch (AmazonServiceException e) {
+      return null; // e.g. InvalidInstanceID.NotFound
+    }
+  }
+
+  protected String getInstancePublicHostName(String instanceId) {
+    return describeInstance(getClientHandle(), instanceId).getPublicDnsName();
+  }
+
+  /**
+   * Records the instance a launch brought up as the node's instance
+   *
+   * @throws IllegalStateException
+   *             if the launch has been abandoned in the meantime, in which case the
+   *             instance is terminated again
+   */
+  private void assign(LaunchStateMachine launch, String instanceId, long launchedAt, String type) {
+    if (!getLifecycle().assign(launch, instanceId, ec2, curRegion, launchedAt, type)) {
+      LOGGER.info("Terminating EC2 instance " + instanceId + " since the launch of " + nodeName
+          + " was abandoned meanwhile");
+      TerminationReaper.get().terminate(ec2, instanceId);
+      journal(LaunchJournal.Type.TERMINATED, instanceId, "launch abandoned");
+      throw new IllegalStateException("The launch of " + nodeName + " was abandoned");
+    }
+    // keep the shared client alive for as long as our instance is
+    ec2.retain();
+  }
+
+  /**
+   * Identifies the launch spec of this wrapper, any stopped instance pooled under
+   * the same key can stand in for a fresh instance
+   */
+  protected String getPoolKey() {
+    return poolKeyOf(ec2, getAmi());
+  }
+
+  private String poolKeyOf(EC2ClientRegistry.Handle regionEc2, String regionAmi) {
+    return regionEc2.getKey() + '|' + regionAmi + '|' + instanceType + '|' + keypairName + '|' + securityGroup + '|'
+        + availabilityZone;
+  }
+
+  /**
+   * Starts a stopped instance out of the pool, if pool mode is on and the pool
+   * has one
+   *
+   * @return the ID of the started instance, or null if a fresh instance has to
+   *         be launched from the AMI
+   */
+  protected String startPooledInstance(LaunchStateMachine launch, PrintStream logger) {
+    selectRegion();
+    InstancePool.Entry entry = poolSize > 0 && !inbound ? takePooledInstance(logger) : null;
+    if (entry == null) {
+      return null;
+    }
+    assign(launch, entry.instanceId, entry.launchedAt, null);
+    journal(LaunchJournal.Type.INSTANCE_STARTED, entry.instanceId, null);
+    return entry.instanceId;
+  }
+
+  /**
+   * Takes a stopped instance out of the pool and starts it
+   *
+   * @return the started instance, or null if the pool had none
+   * @throws AmazonServiceException
+   *             if EC2 throttled us, the instance is back in the pool then
+   */
+  private InstancePool.Entry takePooledInstance(PrintStream logger) {
+    InstancePool pool = InstancePool.get();
+    List<InstancePool.Entry> putBack = new ArrayList<InstancePool.Entry>();
+    try {
+      InstancePool.Entry entry;
+      while ((entry = pool.take(getPoolKey())) != null) {
+        String state;
+        try {
+          state = describeInstance(ec2, entry.instanceId).getState().getName();
+        } catch (AmazonServiceException e) {
+          if (EC2Metrics.isThrottle(e)) {
+            putBack.add(entry);
+            throw e;
+          }
+          state = null; // e.g. InvalidInstanceID.NotFound, it has long been terminated
+        }
+
+        if (InstancePool.STOPPING.equals(state)) {
+          // can't be started before it has fully stopped, leave it for the next launch
+          putBack.add(entry);
+          continue;
+        }
+
+        if (InstancePool.STOPPED.equals(state)) {
+          logger.println("Starting stopped EC2 instance [" + entry.instanceId + "] from the pool...");
+          try {
+            ec2.get().startInstances(new StartInstancesRequest().withInstanceIds(entry.instanceId));
+            entry.ec2.release();
+            return entry;
+          } catch (AmazonServiceException e) {
+            if (EC2Metrics.isThrottle(e)) {
+              putBack.add(entry);
+              throw e;
+            }
+            LOGGER.log(Level.WARNING, "Failed to start pooled EC2 instance " + entry.instanceId, e);
+          }
+        }
+
+        logger.println("Discarding pooled EC2 instance [" + entry.instanceId + "] in state [" + state + "]");
+        if (state != null && !Terminated.toString().equals(state)) {
+          TerminationReaper.get().terminate(ec2, entry.instanceId);
+        }
+        entry.ec2.release();
+      }
+      return null;
+    } finally {
+      for (InstancePool.Entry e : putBack) {
+        if (!pool.offer(getPoolKey(), e, poolSize)) {
+          e.ec2.release();
+        }
+      }
+    }
+  }
+
+  /**
+   * Stops the instance of the given snapshot and adds it to the pool, if pool
+   * mode is on, the pool has room and the instance can be stopped at all (i.e.
+   * it is EBS backed)
+   *
+   * @return true if the instance was pooled, false if it still needs to be terminated
+   */
+  protected boolean hibernateInstance(NodeLifecycle.Snapshot s, PrintStream logger) {
+    if (s.impaired || poolSize <= 0 || inbound || testMode
+        || InstancePool.get().size(poolKeyOf(s.ec2, amiFor(s.ec2))) >= poolSize) {
+      return false;
+    }
+    if (!"ebs".equals(describeInstance(s.ec2, s.instanceId).getRootDeviceType())) {
+      return false;
+    }
+
+    logger.println("Stopping EC2 instance [" + s.instanceId + "] so that a later launch can restart it...");
+    s.ec2.get().stopInstances(new StopInstancesRequest().withInstanceIds(s.instanceId));
+
+    if (!offerToPool(s.ec2, s.instanceId, s.launchedAt)) {
+      return false;
+    }
+    journal(LaunchJournal.Type.STOPPED, s.instanceId, null);
+    s.ec2.release();
+    return true;
+  }
+
+  /**
+   * Adds a stopped (or stopping) instance of our launch spec to the pool
+   *
+   * @param regionEc2
+   *            the handle for the region the instance is in
+   * @return false if pool mode is off or the pool is full
+   */
+  boolean offerToPool(EC2ClientRegistry.Handle regionEc2, String instanceId, long launchedAt) {
+    String regionAmi = amiFor(regionEc2);
+    if (poolSize <= 0 || inbound || regionAmi == null) {
+      return false;
+    }
+    // the pool keeps its own reference to the client for as long as it holds the instance
+    EC2ClientRegistry.Handle pooled = regionEc2.copy();
+    pooled.retain();
+    InstancePool.Entry entry = new InstancePool.Entry(instanceId, pooled, launchedAt, poolMaxAgeMinutes * 60 * 1000L);
+    if (!InstancePool.get().offer(poolKeyOf(regionEc2, regionAmi), entry, poolSize)) {
+      pooled.release();
+      return false;
+    }
+    return true;
   }
 
   public void terminateInstance(PrintStream logger) {
-    logger.println("EC2InstanceComputerLauncher: Terminating EC2 instance [" + curInstanceId + "] ...");
-    if (testMode)
+    NodeLifecycle.Snapshot s = getLifecycle().beginRelease();
+    try {
+      if (s != null) {
+        terminateInstance(s, logger);
+      }
+    } finally {
+      getLifecycle().released();
+    }
+  }
+
+  /**
+   * Hands the instance of the given snapshot to {@link CacheVolumes}, if it has a
+   * build cache volume, so that the next instance starts with its caches.  The
+   * cache is saved and the instance terminated in the background.
+   *
+   * @return true if the instance is taken care of, false if it still needs to be terminated
+   */
+  protected boolean saveCache(NodeLifecycle.Snapshot s, PrintStream logger) {
+    if (cacheDevice == null || s.impaired || testMode) {
+      return false;
+    }
+    logger.println("Saving the build cache of EC2 instance [" + s.instanceId + "] before terminating it...");
+    CacheVolumes.get().saveAndTerminate(s.ec2, s.instanceId, cache, cacheDevice);
+    journal(LaunchJournal.Type.TERMINATED, s.instanceId, "after saving its build cache");
+    s.ec2.release();
+    return true;
+  }
+
+  /**
+   * Hands the instance of the given snapshot to the {@link AmiBaker}, if it is
+   * due for baking.  The baker terminates it once its image is done.
+   *
+   * @return true if the instance is being baked, false if it still needs to be terminated
+   */
+  protected boolean bakeInstance(NodeLifecycle.Snapshot s, PrintStream logger) {
+    if (!isBaking() || s.impaired || testMode
+        || !AmiBaker.get().isDue(nodeName, bakeAfterBuilds, bakeIntervalHours, System.currentTimeMillis())) {
+      return false;
+    }
+    logger.println("Baking EC2 instance [" + s.instanceId + "] into a new AMI before terminating it...");
+    try {
+      AmiBaker.get().bake(s.ec2, nodeName, amiFor(s.ec2), s.instanceId, cacheDevice == null ? null : cache,
+          cacheDevice);
+    } catch (AmazonClientException e) {
+      LOGGER.log(Level.WARNING, "Failed to bake EC2 instance " + s.instanceId + ", terminating it", e);
+      return false;
+    }
+    journal(LaunchJournal.Type.BAKING, s.instanceId, null);
+    s.ec2.release();
+    return true;
+  }
+
+  private void terminateInstance(NodeLifecycle.Snapshot s, PrintStream logger) {
+    logger.println("EC2InstanceComputerLauncher: Terminating EC2 instance [" + s.instanceId + "] ...");
+    if (testMode || !s.hasInstance())
       return;
 
-    ec2.terminateInstances(new TerminateInstancesRequest().withInstanceIds(curInstanceId));
+    // the reaper terminates it in the background, together with whatever else is
+    // being terminated right now, and holds on to the shared client until it is gone
+    TerminationReaper.get().terminate(s.ec2, s.instanceId);
+    journal(LaunchJournal.Type.TERMINATED, s.instanceId, null);
+    s.ec2.release();
   }
   
   public List<String> getAvailabilityZones() {
-    DescribeAvailabilityZonesResult res = ec2.describeAvailabilityZones();
-    ArrayList<String> ret = new ArrayList<String>();
-    for(AvailabilityZone z : res.getAvailabilityZones()) {
-      ret.add(z.getZoneName());
-    }
-    return ret;
+    return new ArrayList<String>(EC2LookupCache.get().getAvailabilityZones(ec2));
   }
   
   public List<String> getSecurityGroups() {
-    DescribeSecurityGroupsResult res = ec2.describeSecurityGroups();
-    ArrayList<String> ret = new ArrayList<String>();
-    for(SecurityGroup s : res.getSecurityGroups()) {
-      ret.add(s.getGroupName());
-    }
-    return ret;
+    return new ArrayList<String>(EC2LookupCache.get().getSecurityGroups(ec2));
+  }
+
+  /**
+   * Returns the instance the {@link InstanceHealthMonitor} should keep an eye on,
+   * i.e. the current instance once it has been launched and is in use
+   */
+  String getMonitoredInstanceId() {
+    NodeLifecycle.Snapshot s = getLifecycle().get();
+    return testMode || s.phase != NodeLifecycle.Phase.UP ? null : s.instanceId;
+  }
+
+  /**
+   * Makes sure the current instance is terminated rather than pooled once the
+   * slave disconnects
+   */
+  void markImpaired() {
+    getLifecycle().markImpaired();
+  }
+
+  /**
+   * Lets the given instance be reused again, once it passed a health check
+   */
+  void markHealthy(String instanceId) {
+    getLifecycle().markHealthy(instanceId);
   }
 
   //
@@ -189,7 +829,7 @@ public class EC2ImageLaunchWrapper extends ComputerLauncher {
 
   @Override
   public boolean isLaunchSupported() {
-    if (preLaunchOk) {
+    if (getLifecycle().get().phase == NodeLifecycle.Phase.UP && computerLauncher != null) {
       // if the EC2 instance is up, launch supported should be determined
       // by the underlying launcher
       // this prevents Demand RetentionStrategy from attempting to spin up
@@ -204,24 +844,80 @@ public class EC2ImageLaunchWrapper extends ComputerLauncher {
   }
 
   public boolean instanceIsRunning() {
-    return (curInstanceId != null && getInstanceState(curInstanceId) == Running);
+    NodeLifecycle.Snapshot s = getLifecycle().get();
+    return s.hasInstance() && getInstanceState(s) == Running;
   }
 
   @Override
   public void launch(SlaveComputer computer, TaskListener listener) throws IOException, InterruptedException {
+    NodeLifecycle.Snapshot s = getLifecycle().get();
+    if (s.phase == NodeLifecycle.Phase.LAUNCHING || s.phase == NodeLifecycle.Phase.RELEASING) {
+      // e.g. the retention strategy trying again while the instance is still booting
+      LOGGER.info("Not launching " + nodeName + " since its EC2 instance is " + s
+          + (s.launch != null ? ", launch phase " + s.launch.getPhase() : ""));
+      return;
+    }
+
+    LaunchStateMachine machine;
+    InstanceReconciler.Claim claim = null;
+    boolean leftover = false;
     try {
-      if (curInstanceId != null && getInstanceState(curInstanceId) == Pending) {
-        throw new IllegalStateException("EC2 Instance " + curInstanceId
-            + " is in Pending state.  Not sure what to do here, try again?");
+      if (!s.hasInstance() && !testMode) {
+        for (String region : regionsOrDefault()) {
+          claim = InstanceReconciler.get().claim(nodeName, handleFor(region));
+          if (claim != null) {
+            curRegion = region;
+            ec2 = handleFor(region);
+            break;
+          }
+        }
       }
 
-      if (curInstanceId == null || getInstanceState(curInstanceId) == Terminated
-          || getInstanceState(curInstanceId) == ShuttingDown) {
-        //only create a new EC2 instance if we haven't tried before or the instance was terminated externally
-        preLaunch(listener.getLogger());
-        preLaunchOk = true;
+      NodeLifecycle.Snapshot next = s;
+      if (claim != null) {
+        // our instance from before the restart is still there, carry on with it
+        listener.getLogger().println("Re-attaching to EC2 instance [" + claim.instanceId + "]");
+        next = NodeLifecycle.EMPTY.withInstance(claim.instanceId, ec2, curRegion, claim.launchedAt, null);
+        machine = new LaunchStateMachine(this, listener.getLogger(), computer, listener, claim.instanceId,
+            claim.pending ? LaunchStateMachine.Phase.RUN_INSTANCES_SENT : LaunchStateMachine.Phase.RUNNING);
+      } else if (s.hasInstance()) {
+        // one look at the instance we have decides what to do with it
+        InstanceStateName state = getInstanceState(s);
+        if (state == Pending || state == Running) {
+          LOGGER.info("Skipping EC2 part of launch, since the instance is already " + state);
+          machine = new LaunchStateMachine(this, listener.getLogger(), computer, listener, s.instanceId,
+              state == Pending ? LaunchStateMachine.Phase.RUN_INSTANCES_SENT : LaunchStateMachine.Phase.RUNNING);
+        } else {
+          // terminated externally, or in a state we can't make use of
+          leftover = state != Terminated && state != ShuttingDown;
+          next = NodeLifecycle.EMPTY.withImpaired(s.impaired);
+          machine = newLaunch(computer, listener);
+        }
       } else {
-        LOGGER.info("Skipping EC2 part of launch, since the instance is already running");
+        machine = newLaunch(computer, listener);
+      }
+      if (machine == null) {
+        return;
+      }
+      if (!getLifecycle().compareAndSet(s, next.launching(machine))) {
+        // somebody else launched or released the node while we were looking
+        LOGGER.info("Not launching " + nodeName + " since its EC2 instance changed to " + getLifecycle().get());
+        if (claim != null) {
+          TerminationReaper.get().terminate(claim.ec2, claim.instanceId);
+          claim.ec2.release();
+        }
+        return;
+      }
+      if (claim != null) {
+        ec2.retain();
+        claim.ec2.release();
+      } else if (next != s) {
+        if (leftover) {
+          LOGGER.info("Terminating EC2 instance " + s.instanceId + " of " + nodeName + " since it can't be reused");
+          TerminationReaper.get().terminate(s.ec2, s.instanceId);
+          journal(LaunchJournal.Type.TERMINATED, s.instanceId, "can't be reused");
+        }
+        s.ec2.release();
       }
     } catch (IllegalStateException ise) {
       listener.error(ise.getMessage());
@@ -234,10 +930,28 @@ public class EC2ImageLaunchWrapper extends ComputerLauncher {
       return;
     }
 
-    LOGGER.info("EC2 instance " + curInstanceId
-        + " has been created to serve as a Jenkins slave.  Passing control to computer launcher.");
-    computerLauncher = computerConnector.launch(getInstancePublicHostName(), listener);
-    computerLauncher.launch(computer, listener);
+    // the EC2 steps run on the launch scheduler, but Jenkins only counts the node
+    // as connecting, and keeps its launch log open, for as long as we don't return
+    try {
+      machine.start().awaitHandOff();
+    } catch (RuntimeException e) {
+      // the launch has told the listener why already
+      LOGGER.fine("Launch of " + nodeName + " failed: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Sets up the launch of a new instance
+   *
+   * @return null if there is nothing to launch
+   */
+  private LaunchStateMachine newLaunch(SlaveComputer computer, TaskListener listener) throws InterruptedException {
+    if (testMode) {
+      preLaunch(listener.getLogger());
+      return null;
+    }
+    return new LaunchStateMachine(this, listener.getLogger(), computer, listener, null,
+        LaunchStateMachine.Phase.REQUESTED);
   }
 
   /**
@@ -249,51 +963,118 @@ public class EC2ImageLaunchWrapper extends ComputerLauncher {
    *            tailed log in Jenkins
    * @throws InterruptedException
    *             if the check status wait fails
+   * @throws IllegalStateException
+   *             if the node already has an instance or one is being launched
    */
   public void preLaunch(PrintStream logger) throws InterruptedException {
 
-    logger.println("Creating new EC2 instance from AMI [" + ami + "]...");
-    if (testMode)
+    if (testMode) {
+      logger.println("Creating new EC2 instance from AMI [" + ami + "]...");
       return;
+    }
+
+    NodeLifecycle.Snapshot s = getLifecycle().get();
+    LaunchStateMachine machine = new LaunchStateMachine(this, logger, null, null, null,
+        LaunchStateMachine.Phase.REQUESTED);
+    if (s.phase != NodeLifecycle.Phase.IDLE || s.hasInstance()
+        || !getLifecycle().compareAndSet(s, s.launching(machine))) {
+      throw new IllegalStateException("Not creating an EC2 instance for " + nodeName + " since it already is "
+          + getLifecycle().get());
+    }
+    machine.start().awaitRunning();
+  }
 
-    curInstanceId = launchInstanceFromImage();
+  /**
+   * Returns the poller that watches our instance.  State changes are picked up by
+   * the account-wide poller rather than by describing this one instance over and
+   * over.
+   */
+  InstanceStatePoller getPoller() {
+    return InstanceStatePoller.get(getClientHandle());
+  }
 
-    int retries = 0;
-    InstanceStateName state = null;
+  /**
+   * Records an event of this node in the {@link LaunchJournal}
+   */
+  void journal(LaunchJournal.Type type, String instanceId, String detail) {
+    LaunchJournal.get().record(type, nodeName, instanceId, detail);
+  }
 
-    while (++retries <= maxRetries) {
+  /**
+   * Called by the {@link LaunchStateMachine} once the instance is running
+   */
+  void instanceRunning(long waitedMillis) {
+    lastLaunchWaitMillis = waitedMillis;
+    regionLaunchDone(true);
+  }
 
-      logger.println(MessageFormat.format("checking state of instance [{0}]...", curInstanceId));
+  /**
+   * Called by the {@link LaunchStateMachine} once the instance is up and in use
+   */
+  void launchSucceeded(LaunchStateMachine launch) {
+    getLifecycle().finish(launch, NodeLifecycle.Phase.UP);
+  }
 
-      state = getInstanceState(curInstanceId);
+  /**
+   * Called by the {@link LaunchStateMachine} when the launch failed.  The
+   * instance, if any, is kept so that the next launch can take a look at it.
+   */
+  void launchFailed(LaunchStateMachine launch) {
+    regionLaunchDone(false);
+    getLifecycle().finish(launch, NodeLifecycle.Phase.IDLE);
+  }
 
-      logger.println(MessageFormat.format("state of instance [{0}] is [{1}]", curInstanceId, state.toString()));
-      if (state == Running) {
-        logger.println(MessageFormat.format(
-            "instance [{0}] is running, proceeding to launching Jenkins on this instance", curInstanceId));
-        return;
-      } else if (state == Pending) {
-        logger.println(MessageFormat.format("instance [{0}] is pending, waiting for [{1}] seconds before retrying",
-            curInstanceId, retryIntervalSeconds));
-        Thread.sleep(retryIntervalSeconds * 1000);
-      } else {
-        String msg = MessageFormat.format("instance [{0}] encountered unexpected state [{1}]. Aborting launch",
-            curInstanceId, state.toString());
-        logger.println(msg);
-        throw new IllegalStateException(msg);
-      }
-    }
-    throw new IllegalStateException("Maximum Number of retries " + maxRetries + " exceeded. Aborting launch");
+  /**
+   * Called by the {@link LaunchStateMachine} once an inbound slave has connected
+   */
+  void agentConnected() {
+    // stands in for the connector's launcher, so that Jenkins won't try to launch
+    // a connected inbound slave again
+    computerLauncher = new JNLPLauncher();
+    regionLaunchDone(true);
+  }
+
+  /**
+   * Passes control to the launcher the user configured, called by the
+   * {@link LaunchStateMachine} once the instance has a public host name
+   */
+  void handOff(String hostname, SlaveComputer computer, TaskListener listener) throws IOException,
+      InterruptedException {
+    LOGGER.info("EC2 instance " + getLifecycle().get().instanceId
+        + " has been created to serve as a Jenkins slave.  Passing control to computer launcher.");
+    computerLauncher = computerConnector.launch(hostname, listener);
+    computerLauncher.launch(computer, listener);
   }
 
   @Override
   public void afterDisconnect(SlaveComputer computer, TaskListener listener) {
-    computerLauncher.afterDisconnect(computer, listener);
+    if (computerLauncher != null) {
+      computerLauncher.afterDisconnect(computer, listener);
+    }
 
-    LOGGER.info("Terminating EC2 instance " + curInstanceId);
-    terminateInstance(listener.getLogger());
-    curInstanceId = null;
-    preLaunchOk = false;
+    // only one of several concurrent disconnects gets to release the instance
+    NodeLifecycle.Snapshot s = getLifecycle().beginRelease();
+    if (s == null) {
+      return;
+    }
+    try {
+      if (!s.hasInstance()) {
+        return;
+      }
+      journal(LaunchJournal.Type.DISCONNECTED, s.instanceId, null);
+      boolean hibernated = false;
+      try {
+        hibernated = hibernateInstance(s, listener.getLogger());
+      } catch (AmazonClientException e) {
+        LOGGER.log(Level.WARNING, "Failed to stop EC2 instance " + s.instanceId + ", terminating it instead", e);
+      }
+      if (!hibernated && !bakeInstance(s, listener.getLogger()) && !saveCache(s, listener.getLogger())) {
+        LOGGER.info("Terminating EC2 instance " + s.instanceId);
+        terminateInstance(s, listener.getLogger());
+      }
+    } finally {
+      getLifecycle().released();
+    }
   }
 
   @Override
@@ -24,6 +24,7 @@
 package jenkins.plugins.ec2slave;
 
 import hudson.Extension;
+import hudson.Util;
 import hudson.model.Computer;
 import hudson.model.Descriptor;
 import hudson.model.Descriptor.FormException;
@@ -44,11 +45,6 @@ import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 
 import com.amazonaws.AmazonServiceException;
-import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.services.ec2.AmazonEC2Client;
-import com.amazonaws.services.ec2.model.DescribeImagesRequest;
-import com.amazonaws.services.ec2.model.DescribeImagesResult;
 import com.amazonaws.services.ec2.model.Image;
 
 /**
@@ -71,6 +67,74 @@ public final class EC2ImageSlave extends Slave {
 
   private String instanceType, accessKey, imageId, secretKey, keypairName, securityGroup, availabilityZone;
 
+  /**
+   * Number of stopped instances to keep around for restarting, 0 if instances
+   * should simply be terminated
+   */
+  private int poolSize;
+
+  private int poolMaxAgeMinutes;
+
+  /**
+   * Launch wait schedule, see {@link ExponentialBackoffWaitPolicy}
+   */
+  private int initialPollSeconds, maxPollSeconds, launchTimeoutMinutes;
+
+  /**
+   * Port to wait for before handing off to the connector, 0 for none
+   */
+  private int readinessPort;
+
+  private boolean readinessSshBanner;
+
+  /**
+   * Whether the instance connects back as a JNLP slave instead of the connector
+   * connecting to it
+   */
+  private boolean inboundAgent;
+
+  /**
+   * File on the instance with the credentials an inbound slave fetches its JNLP
+   * secret with, empty to put the secret into the user data
+   */
+  private String inboundCredentialsFile;
+
+  /**
+   * Ordered list of regions to launch in, empty for the SDK's default region
+   */
+  private String regions;
+
+  /**
+   * Whether each launch goes to the best of the regions rather than the first
+   */
+  private boolean regionSpread;
+
+  /**
+   * When to bake the instance into a new AMI before terminating it, see
+   * {@link AmiBaker}, 0 for never
+   */
+  private int bakeAfterBuilds, bakeIntervalHours;
+
+  /**
+   * Device of the build cache volume, see {@link CacheVolumes}, empty for none
+   */
+  private String cacheDevice;
+
+  private int cacheVolumeSizeGb;
+
+  /**
+   * Whether the number of executors follows from the instance type rather than
+   * from numExecutors, see {@link ExecutorSizer}
+   */
+  private boolean autoExecutors;
+
+  /**
+   * Memory each executor needs when auto-sizing, 0 if memory is no concern
+   */
+  private int executorMemoryMb;
+
+  private boolean adjustExecutorsToLoad;
+
   private transient EC2ImageLaunchWrapper ec2ImageLaunchWrapper;
 
   /**
@@ -81,7 +145,11 @@ public final class EC2ImageSlave extends Slave {
 
   @DataBoundConstructor
   public EC2ImageSlave(String secretKey, String accessKey, String imageId, String instanceType, String keypairName,
-      String securityGroup, String availabilityZone, String name, String nodeDescription, String remoteFS,
+      String securityGroup, String availabilityZone, String poolSize, String poolMaxAgeMinutes,
+      String initialPollSeconds, String maxPollSeconds, String launchTimeoutMinutes, String readinessPort,
+      boolean readinessSshBanner, boolean inboundAgent, String inboundCredentialsFile, String regions, boolean regionSpread, String bakeAfterBuilds,
+      String bakeIntervalHours, String cacheDevice, String cacheVolumeSizeGb, boolean autoExecutors,
+      String executorMemoryMb, boolean adjustExecutorsToLoad, String name, String nodeDescription, String remoteFS,
       String numExecutors, Mode mode, String labelString, ComputerConnector computerConnector,
       RetentionStrategy retentionStrategy, List<? extends NodeProperty<?>> nodeProperties) throws FormException,
       IOException {
@@ -111,18 +179,94 @@ public final class EC2ImageSlave extends Slave {
     this.keypairName = keypairName;
     this.securityGroup = securityGroup;
     this.availabilityZone = availabilityZone;
+    this.poolSize = Util.tryParseNumber(poolSize, 0).intValue();
+    this.poolMaxAgeMinutes = Util.tryParseNumber(poolMaxAgeMinutes, 0).intValue();
+    this.initialPollSeconds = Util.tryParseNumber(initialPollSeconds, 0).intValue();
+    this.maxPollSeconds = Util.tryParseNumber(maxPollSeconds, 0).intValue();
+    this.launchTimeoutMinutes = Util.tryParseNumber(launchTimeoutMinutes, 0).intValue();
+    this.readinessPort = Util.tryParseNumber(readinessPort, 0).intValue();
+    this.readinessSshBanner = readinessSshBanner;
+    this.inboundAgent = inboundAgent;
+    this.inboundCredentialsFile = Util.fixEmptyAndTrim(inboundCredentialsFile);
+    this.regions = regions;
+    this.regionSpread = regionSpread;
+    this.bakeAfterBuilds = Util.tryParseNumber(bakeAfterBuilds, 0).intValue();
+    this.bakeIntervalHours = Util.tryParseNumber(bakeIntervalHours, 0).intValue();
+    this.cacheDevice = Util.fixEmptyAndTrim(cacheDevice);
+    this.cacheVolumeSizeGb = Util.tryParseNumber(cacheVolumeSizeGb, 0).intValue();
+    this.autoExecutors = autoExecutors;
+    this.executorMemoryMb = Util.tryParseNumber(executorMemoryMb, 0).intValue();
+    this.adjustExecutorsToLoad = adjustExecutorsToLoad;
   }
 
+  /**
+   * In auto-sizing mode, the number of executors the instance type is good for,
+   * or the configured number if the instance type is not known
+   */
   @Override
-  public ComputerLauncher getLauncher() {
+  public int getNumExecutors() {
+    InstanceTypes.Spec spec = autoExecutors ? InstanceTypes.get().get(getSizingInstanceType()) : null;
+    if (spec == null) {
+      return super.getNumExecutors();
+    }
+    return ExecutorSizer.executorsFor(spec, executorMemoryMb, ExecutorSizer.adjustmentOf(getNodeName()));
+  }
+
+  /**
+   * The number of executors as configured, which is what the configuration form
+   * shows and saves, whatever auto-sizing made of it
+   */
+  public int getConfiguredNumExecutors() {
+    return super.getNumExecutors();
+  }
+
+  /**
+   * Returns the instance type the current instance was launched as, or the
+   * preferred one if there is no instance
+   */
+  String getSizingInstanceType() {
+    EC2ImageLaunchWrapper wrapper = ec2ImageLaunchWrapper;
+    List<String> types = CapacityFallback.split(wrapper != null ? wrapper.getLaunchedInstanceType() : instanceType);
+    return types.isEmpty() ? null : types.get(0);
+  }
+
+  /**
+   * Adjusts the number of executors to the load measured on the instance
+   */
+  synchronized void adjustExecutors(double loadAverage, int idleExecutors) {
+    InstanceTypes.Spec spec = InstanceTypes.get().get(getSizingInstanceType());
+    if (spec != null) {
+      ExecutorSizer.setAdjustment(getNodeName(), ExecutorSizer.adjust(spec, executorMemoryMb,
+          ExecutorSizer.adjustmentOf(getNodeName()), loadAverage, idleExecutors));
+    }
+  }
+
+  @Override
+  public synchronized ComputerLauncher getLauncher() {
     //Letting the user choose ComputerConnector and returning
     //computerConnector.launch(..) here which will return a ComputerLauncher with the 
     //hostname already set.  This implies that the EC2ImageSlave config will be displaying
     //Computer *Connector* descriptor stuff rather than *Launcher*
-    ec2ImageLaunchWrapper = new EC2ImageLaunchWrapper(computerConnector, secretKey, accessKey, imageId, instanceType,
-        keypairName, securityGroup, availabilityZone);
 
-    setLauncher(ec2ImageLaunchWrapper);
+    //The wrapper is built once per node configuration, the computer holds on to
+    //the one it launched with and a reconfiguration creates a new EC2ImageSlave
+    if (ec2ImageLaunchWrapper == null) {
+      EC2ImageLaunchWrapper wrapper = new EC2ImageLaunchWrapper(computerConnector, secretKey, accessKey, imageId,
+          instanceType, keypairName, securityGroup, availabilityZone);
+      wrapper.setPool(poolSize, poolMaxAgeMinutes);
+      wrapper.setNodeName(getNodeName());
+      wrapper.setWaitPolicy(getWaitPolicy());
+      wrapper.setReadinessCheck(readinessPort, readinessSshBanner);
+      wrapper.setInbound(inboundAgent, getRemoteFS(), inboundCredentialsFile);
+      wrapper.setRegions(regions, regionSpread);
+      wrapper.setBaking(bakeAfterBuilds, bakeIntervalHours);
+      // slaves with the same labels share their caches
+      wrapper.setCacheVolume(cacheDevice, cacheVolumeSizeGb,
+          Util.fixEmptyAndTrim(getLabelString()) == null ? getNodeName() : getLabelString().trim());
+
+      setLauncher(wrapper);
+      ec2ImageLaunchWrapper = wrapper;
+    }
 
     return ec2ImageLaunchWrapper;
   }
@@ -135,9 +279,7 @@ public final class EC2ImageSlave extends Slave {
 
     public FormValidation doTestConnection(@QueryParameter String accessKey, @QueryParameter String secretKey) {
       try {
-        AWSCredentials credentials = new BasicAWSCredentials(accessKey, secretKey);
-        AmazonEC2Client ec2 = new AmazonEC2Client(credentials);
-        ec2.describeAvailabilityZones();
+        EC2LookupCache.get().getAvailabilityZones(EC2ClientRegistry.get().handle(accessKey, secretKey, null));
         return FormValidation.ok("Success");
       } catch (AmazonServiceException e) {
         LOGGER.warning("Failed to check EC2 credential: " + e.getMessage());
@@ -146,23 +288,37 @@ public final class EC2ImageSlave extends Slave {
     }
 
     public FormValidation doValidateAmi(@QueryParameter String accessKey, @QueryParameter String secretKey,
-        final @QueryParameter String imageId) {
-      
-      FormValidation val = doTestConnection(accessKey, secretKey);
-      if(val.kind == FormValidation.Kind.ERROR) {
-        return val;
+        final @QueryParameter String imageId, @QueryParameter String regions) {
+      List<String> regionList = CapacityFallback.split(regions);
+      if (regionList.isEmpty()) {
+        regionList.add(null);
       }
-      
-      AWSCredentials credentials = new BasicAWSCredentials(accessKey, secretKey);
-      AmazonEC2Client ec2 = new AmazonEC2Client(credentials);
-      DescribeImagesResult res = ec2.describeImages(new DescribeImagesRequest().withImageIds(imageId));
-      
-      if (res.getImages().size() > 0 && res.getImages().get(0).getImageId().equals(imageId)) {
-        Image image = res.getImages().get(0);
-        return FormValidation.ok("manifest: "+image.getImageLocation() +"\ndescription: " + image.getDescription());
-      } else {
-          return FormValidation.error("No such AMI: " + imageId);
+
+      StringBuilder found = new StringBuilder();
+      for (String region : regionList) {
+        String where = region == null ? "" : region + ": ";
+        String ami = EC2ImageLaunchWrapper.amiFor(imageId, region);
+        if (ami == null) {
+          return FormValidation.error(where + "No AMI given for this region");
+        }
+
+        // a bad credential fails the image lookup just as well, no need to test the connection first
+        Image image;
+        try {
+          image = EC2LookupCache.get().getImage(
+              EC2ClientRegistry.get().handle(accessKey, secretKey, RegionSelector.endpointOf(region)), ami);
+        } catch (AmazonServiceException e) {
+          LOGGER.warning("Failed to check EC2 credential: " + e.getMessage());
+          return FormValidation.error(where + e.getMessage());
+        }
+
+        if (image == null) {
+          return FormValidation.error(where + "No such AMI: " + ami);
+        }
+        found.append(where).append("manifest: ").append(image.getImageLocation()).append("\n").append(where)
+            .append("description: ").append(image.getDescription()).append("\n");
       }
+      return FormValidation.ok(found.toString().trim());
     }
 
     public static List<Descriptor<ComputerConnector>> getComputerConnectorDescriptors() {
@@ -199,6 +355,97 @@ public final class EC2ImageSlave extends Slave {
     return securityGroup;
   }
 
+  public int getPoolSize() {
+    return poolSize;
+  }
+
+  public int getPoolMaxAgeMinutes() {
+    return poolMaxAgeMinutes;
+  }
+
+  public int getInitialPollSeconds() {
+    return initialPollSeconds;
+  }
+
+  public int getMaxPollSeconds() {
+    return maxPollSeconds;
+  }
+
+  public int getLaunchTimeoutMinutes() {
+    return launchTimeoutMinutes;
+  }
+
+  public int getReadinessPort() {
+    return readinessPort;
+  }
+
+  public boolean isReadinessSshBanner() {
+    return readinessSshBanner;
+  }
+
+  public boolean isInboundAgent() {
+    return inboundAgent;
+  }
+
+  public String getInboundCredentialsFile() {
+    return inboundCredentialsFile;
+  }
+
+  public String getRegions() {
+    return regions;
+  }
+
+  public boolean isRegionSpread() {
+    return regionSpread;
+  }
+
+  public int getBakeAfterBuilds() {
+    return bakeAfterBuilds;
+  }
+
+  public int getBakeIntervalHours() {
+    return bakeIntervalHours;
+  }
+
+  public String getCacheDevice() {
+    return cacheDevice;
+  }
+
+  public int getCacheVolumeSizeGb() {
+    return cacheVolumeSizeGb;
+  }
+
+  public boolean isAutoExecutors() {
+    return autoExecutors;
+  }
+
+  public int getExecutorMemoryMb() {
+    return executorMemoryMb;
+  }
+
+  public boolean isAdjustExecutorsToLoad() {
+    return adjustExecutorsToLoad;
+  }
+
+  /**
+   * Whether the instance is baked into a new AMI every now and then
+   */
+  public boolean isBaking() {
+    return bakeAfterBuilds > 0 || bakeIntervalHours > 0;
+  }
+
+  /**
+   * Returns the launch wait policy, anything left blank in the configuration
+   * falls back to {@link ExponentialBackoffWaitPolicy#DEFAULT}
+   */
+  public LaunchWaitPolicy getWaitPolicy() {
+    ExponentialBackoffWaitPolicy d = ExponentialBackoffWaitPolicy.DEFAULT;
+    return new ExponentialBackoffWaitPolicy(
+        initialPollSeconds > 0 ? initialPollSeconds * 1000L : d.getInitialDelayMillis(),
+        maxPollSeconds > 0 ? maxPollSeconds * 1000L : d.getMaxDelayMillis(),
+        launchTimeoutMinutes > 0 ? launchTimeoutMinutes * 60 * 1000L : d.getTimeoutMillis());
+  }
+
   public ComputerConnector getComputerConnector() {
     return computerConnector;
   }
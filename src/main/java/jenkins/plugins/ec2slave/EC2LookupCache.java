@@ -0,0 +1,206 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.AvailabilityZone;
+import com.amazonaws.services.ec2.model.DescribeImagesRequest;
+import com.amazonaws.services.ec2.model.Image;
+import com.amazonaws.services.ec2.model.SecurityGroup;
+
+/**
+ * Caches the slow moving things the configuration page and the launchers look up
+ * in EC2, i.e. AMI metadata, availability zones and security groups, for
+ * {@link #TTL_SECONDS}.  Entries are scoped to the credentials and endpoint of
+ * the client that looked them up, and the cache holds at most {@link #MAX_ENTRIES}
+ * of them, dropping the least recently used first.
+ * <p>
+ * Identical lookups that arrive while one is already in flight wait for that one
+ * rather than calling EC2 themselves.  Failed lookups are not cached.
+ *
+ * @author Aaron Phillips
+ */
+final class EC2LookupCache {
+
+  /**
+   * How long a looked up value is served from the cache
+   */
+  static int TTL_SECONDS = Integer.getInteger(EC2LookupCache.class.getName() + ".ttlSeconds", 300);
+
+  static int MAX_ENTRIES = Integer.getInteger(EC2LookupCache.class.getName() + ".maxEntries", 500);
+
+  private static final EC2LookupCache INSTANCE = new EC2LookupCache(TTL_SECONDS * 1000L, MAX_ENTRIES);
+
+  public static EC2LookupCache get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Does the actual lookup on a cache miss
+   */
+  interface Loader<V> {
+    V load(AmazonEC2 ec2);
+  }
+
+  private static final class Lookup {
+    private final FutureTask<Object> value;
+    private long expiresAt = Long.MAX_VALUE; /* until the value is loaded */
+
+    private Lookup(FutureTask<Object> value) {
+      this.value = value;
+    }
+  }
+
+  private final long ttlMillis;
+
+  /* guarded by this, in access order so the eldest entry is the least recently used */
+  private final LinkedHashMap<String, Lookup> entries;
+
+  EC2LookupCache(long ttlMillis, final int maxEntries) {
+    this.ttlMillis = ttlMillis;
+    this.entries = new LinkedHashMap<String, Lookup>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Lookup> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Returns the cached value for the given lookup, calling the loader if there is
+   * none or it has expired
+   *
+   * @param what
+   *            identifies the lookup among all lookups made with the same client
+   * @throws com.amazonaws.AmazonClientException
+   *             if the loader failed
+   */
+  @SuppressWarnings("unchecked")
+  public <V> V get(final EC2ClientRegistry.Handle ec2, String what, final Loader<V> loader) {
+    String key = ec2.getKey() + '|' + what;
+    Lookup e;
+    boolean load = false;
+    synchronized (this) {
+      e = entries.get(key);
+      if (e == null || e.expiresAt <= System.currentTimeMillis()) {
+        e = new Lookup(new FutureTask<Object>(new Callable<Object>() {
+          public Object call() {
+            return loader.load(ec2.get());
+          }
+        }));
+        entries.put(key, e);
+        load = true;
+      }
+    }
+
+    if (load) {
+      e.value.run();
+    }
+
+    try {
+      V v = (V) e.value.get();
+      if (load) {
+        synchronized (this) {
+          e.expiresAt = System.currentTimeMillis() + ttlMillis;
+        }
+      }
+      return v;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for " + what, ex);
+    } catch (ExecutionException ex) {
+      synchronized (this) {
+        if (entries.get(key) == e) {
+          entries.remove(key);
+        }
+      }
+      Throwable cause = ex.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  /**
+   * Returns the given AMI, or null if there is no such AMI
+   */
+  public Image getImage(EC2ClientRegistry.Handle ec2, final String imageId) {
+    List<Image> images = get(ec2, "image|" + imageId, new Loader<List<Image>>() {
+      public List<Image> load(AmazonEC2 ec2) {
+        return ec2.describeImages(new DescribeImagesRequest().withImageIds(imageId)).getImages();
+      }
+    });
+    for (Image image : images) {
+      if (image.getImageId().equals(imageId)) {
+        return image;
+      }
+    }
+    return null;
+  }
+
+  public List<String> getAvailabilityZones(EC2ClientRegistry.Handle ec2) {
+    return get(ec2, "zones", new Loader<List<String>>() {
+      public List<String> load(AmazonEC2 ec2) {
+        List<String> zones = new ArrayList<String>();
+        for (AvailabilityZone z : ec2.describeAvailabilityZones().getAvailabilityZones()) {
+          zones.add(z.getZoneName());
+        }
+        return Collections.unmodifiableList(zones);
+      }
+    });
+  }
+
+  public List<String> getSecurityGroups(EC2ClientRegistry.Handle ec2) {
+    return get(ec2, "securityGroups", new Loader<List<String>>() {
+      public List<String> load(AmazonEC2 ec2) {
+        List<String> groups = new ArrayList<String>();
+        for (SecurityGroup s : ec2.describeSecurityGroups().getSecurityGroups()) {
+          groups.add(s.getGroupName());
+        }
+        return Collections.unmodifiableList(groups);
+      }
+    });
+  }
+}
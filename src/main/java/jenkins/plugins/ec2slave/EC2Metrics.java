@@ -0,0 +1,304 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+
+/**
+ * Collects where launch time goes: a latency histogram per launch phase for each
+ * AMI and instance type, and call, error and throttle counts for every EC2 API
+ * operation.  Shown on the {@link EC2SlaveManagementLink} page and exported
+ * through its remote API.
+ *
+ * @author Aaron Phillips
+ */
+@ExportedBean
+public final class EC2Metrics {
+
+  /**
+   * The timed steps of a launch
+   */
+  public enum Phase {
+    /**
+     * from the launch asking for an instance until it has one and has tagged it:
+     * starting a pooled instance, or RunInstances including the wait for the
+     * launches it is coalesced with
+     */
+    RUN_INSTANCES,
+    /** from the launch having its instance until EC2 reports it running */
+    PENDING,
+    /** until the running instance has a public host name */
+    HOSTNAME,
+    /** until the instance accepts connections on its agent port */
+    READY,
+    /** the user configured launcher connecting to the instance */
+    CONNECT,
+    /** the whole launch */
+    TOTAL
+  }
+
+  private static final EC2Metrics INSTANCE = new EC2Metrics();
+
+  public static EC2Metrics get() {
+    return INSTANCE;
+  }
+
+  private final ConcurrentMap<String, PhaseStats> phases = new ConcurrentHashMap<String, PhaseStats>();
+
+  private final ConcurrentMap<String, OperationStats> operations = new ConcurrentHashMap<String, OperationStats>();
+
+  EC2Metrics() {
+  }
+
+  /**
+   * Records how long one phase of a successful launch took
+   */
+  public void recordPhase(Phase phase, String ami, String instanceType, long millis) {
+    phaseStats(phase, ami, instanceType).latency.record(millis);
+  }
+
+  /**
+   * Records a launch that failed during the given phase
+   */
+  public void recordFailure(Phase phase, String ami, String instanceType) {
+    phaseStats(phase, ami, instanceType).failures.incrementAndGet();
+  }
+
+  private PhaseStats phaseStats(Phase phase, String ami, String instanceType) {
+    String key = phase + "|" + ami + "|" + instanceType;
+    PhaseStats stats = phases.get(key);
+    if (stats == null) {
+      PhaseStats created = new PhaseStats(phase, ami, instanceType);
+      stats = phases.putIfAbsent(key, created);
+      if (stats == null) {
+        stats = created;
+      }
+    }
+    return stats;
+  }
+
+  private OperationStats operationStats(String operation) {
+    OperationStats stats = operations.get(operation);
+    if (stats == null) {
+      OperationStats created = new OperationStats(operation);
+      stats = operations.putIfAbsent(operation, created);
+      if (stats == null) {
+        stats = created;
+      }
+    }
+    return stats;
+  }
+
+  @Exported
+  public List<PhaseStats> getPhases() {
+    return sorted(phases);
+  }
+
+  @Exported
+  public List<OperationStats> getOperations() {
+    return sorted(operations);
+  }
+
+  private static <T> List<T> sorted(Map<String, T> map) {
+    return Collections.unmodifiableList(new ArrayList<T>(new TreeMap<String, T>(map).values()));
+  }
+
+  /**
+   * Returns true if EC2 turned the request down because of its API rate limits
+   */
+  static boolean isThrottle(Throwable t) {
+    if (!(t instanceof AmazonServiceException)) {
+      return false;
+    }
+    String code = ((AmazonServiceException) t).getErrorCode();
+    return "RequestLimitExceeded".equals(code) || "Throttling".equals(code);
+  }
+
+  /**
+   * Wraps an EC2 client so that every call made through it is counted and timed
+   */
+  AmazonEC2 instrument(final AmazonEC2 ec2) {
+    return (AmazonEC2) Proxy.newProxyInstance(AmazonEC2.class.getClassLoader(), new Class[] { AmazonEC2.class },
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class || method.getName().equals("setEndpoint")
+                || method.getName().equals("shutdown")) {
+              return invokeDirectly(ec2, method, args);
+            }
+            OperationStats stats = operationStats(method.getName());
+            long start = System.currentTimeMillis();
+            try {
+              return invokeDirectly(ec2, method, args);
+            } catch (Throwable t) {
+              stats.errors.incrementAndGet();
+              if (isThrottle(t)) {
+                stats.throttles.incrementAndGet();
+              }
+              throw t;
+            } finally {
+              stats.calls.incrementAndGet();
+              stats.latency.record(System.currentTimeMillis() - start);
+            }
+          }
+        });
+  }
+
+  static Object invokeDirectly(Object target, Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Latency of one launch phase for one AMI and instance type
+   */
+  @ExportedBean(defaultVisibility = 2)
+  public static final class PhaseStats {
+    private final Phase phase;
+    private final String ami, instanceType;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong failures = new AtomicLong();
+
+    private PhaseStats(Phase phase, String ami, String instanceType) {
+      this.phase = phase;
+      this.ami = ami;
+      this.instanceType = instanceType;
+    }
+
+    @Exported
+    public String getPhase() {
+      return phase.name();
+    }
+
+    @Exported
+    public String getAmi() {
+      return ami;
+    }
+
+    @Exported
+    public String getInstanceType() {
+      return instanceType;
+    }
+
+    @Exported
+    public long getFailures() {
+      return failures.get();
+    }
+
+    @Exported
+    public long getCount() {
+      return latency.getCount();
+    }
+
+    @Exported
+    public long getMeanMillis() {
+      return latency.getMean();
+    }
+
+    @Exported
+    public long getP50Millis() {
+      return latency.getPercentile(0.5);
+    }
+
+    @Exported
+    public long getP90Millis() {
+      return latency.getPercentile(0.9);
+    }
+
+    @Exported
+    public long getP99Millis() {
+      return latency.getPercentile(0.99);
+    }
+
+    @Exported
+    public long getMaxMillis() {
+      return latency.getMax();
+    }
+  }
+
+  /**
+   * Usage of one EC2 API operation, across all accounts
+   */
+  @ExportedBean(defaultVisibility = 2)
+  public static final class OperationStats {
+    private final String operation;
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong throttles = new AtomicLong();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    private OperationStats(String operation) {
+      this.operation = operation;
+    }
+
+    @Exported
+    public String getOperation() {
+      return operation;
+    }
+
+    @Exported
+    public long getCalls() {
+      return calls.get();
+    }
+
+    @Exported
+    public long getErrors() {
+      return errors.get();
+    }
+
+    @Exported
+    public long getThrottles() {
+      return throttles.get();
+    }
+
+    @Exported
+    public long getP50Millis() {
+      return latency.getPercentile(0.5);
+    }
+
+    @Exported
+    public long getP99Millis() {
+      return latency.getPercentile(0.99);
+    }
+  }
+}
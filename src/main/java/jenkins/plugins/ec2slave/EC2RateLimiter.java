@@ -0,0 +1,215 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Random;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.AmazonEC2;
+
+/**
+ * Keeps the calls made through one shared EC2 client, i.e. for one account and
+ * endpoint, within the EC2 API rate limits.  Describe calls and mutating calls
+ * (RunInstances, TerminateInstances, ...) draw from separate token buckets, as
+ * EC2 throttles them separately.
+ * <p>
+ * When EC2 throttles a call anyway, the call is retried after a jittered backoff
+ * instead of failing, and the rate of its bucket is halved.  Every successful call
+ * then earns back a little of the configured rate, so under a burst the client
+ * settles at whatever throughput EC2 is willing to take.
+ * <p>
+ * Threads made by a {@link #failFast fail fast} factory are not kept waiting for
+ * those retries: the small shared schedulers of the plugin would otherwise stall
+ * every launch behind one throttled call.  Their throttled calls fail right away,
+ * and the callers retry on their own schedule.
+ *
+ * @author Aaron Phillips
+ */
+final class EC2RateLimiter {
+
+  private static final Logger LOGGER = Logger.getLogger(EC2RateLimiter.class.getName());
+
+  static int DESCRIBE_PER_SECOND = Integer.getInteger(EC2RateLimiter.class.getName() + ".describePerSecond", 20);
+
+  static int DESCRIBE_BURST = Integer.getInteger(EC2RateLimiter.class.getName() + ".describeBurst", 50);
+
+  static int MUTATE_PER_SECOND = Integer.getInteger(EC2RateLimiter.class.getName() + ".mutatePerSecond", 5);
+
+  static int MUTATE_BURST = Integer.getInteger(EC2RateLimiter.class.getName() + ".mutateBurst", 20);
+
+  /**
+   * How often a throttled call is retried before the throttling error is passed on
+   */
+  static int MAX_RETRIES = Integer.getInteger(EC2RateLimiter.class.getName() + ".maxRetries", 8);
+
+  static long BASE_BACKOFF_MILLIS = 500;
+
+  static long MAX_BACKOFF_MILLIS = 20 * 1000;
+
+  private static final Random RANDOM = new Random();
+
+  private static final ThreadLocal<Boolean> FAIL_FAST = new ThreadLocal<Boolean>();
+
+  final TokenBucket describe = new TokenBucket(DESCRIBE_PER_SECOND, DESCRIBE_BURST);
+
+  final TokenBucket mutate = new TokenBucket(MUTATE_PER_SECOND, MUTATE_BURST);
+
+  /**
+   * Wraps the given client so that every API call made through it is rate limited
+   */
+  AmazonEC2 limit(final AmazonEC2 ec2) {
+    return (AmazonEC2) Proxy.newProxyInstance(AmazonEC2.class.getClassLoader(), new Class[] { AmazonEC2.class },
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (method.getDeclaringClass() == Object.class || name.equals("setEndpoint") || name.equals("shutdown")
+                || name.equals("getCachedResponseMetadata")) {
+              return EC2Metrics.invokeDirectly(ec2, method, args);
+            }
+            return call(name.startsWith("describe") ? describe : mutate, ec2, method, args);
+          }
+        });
+  }
+
+  private Object call(TokenBucket bucket, AmazonEC2 ec2, Method method, Object[] args) throws Throwable {
+    for (int attempt = 0;; attempt++) {
+      bucket.acquire();
+      try {
+        Object result = EC2Metrics.invokeDirectly(ec2, method, args);
+        bucket.recover();
+        return result;
+      } catch (Throwable t) {
+        if (!EC2Metrics.isThrottle(t)) {
+          throw t;
+        }
+        bucket.backOff();
+        if (attempt >= MAX_RETRIES || FAIL_FAST.get() != null) {
+          throw t;
+        }
+        long delay = backoffMillis(attempt);
+        LOGGER.fine("EC2 throttled " + method.getName() + ", retrying in " + delay + "ms");
+        sleep(delay);
+      }
+    }
+  }
+
+  /**
+   * Wraps the given factory so that throttled calls made on its threads fail
+   * right away instead of being retried
+   */
+  static ThreadFactory failFast(final ThreadFactory factory) {
+    return new ThreadFactory() {
+      public Thread newThread(final Runnable r) {
+        return factory.newThread(new Runnable() {
+          public void run() {
+            FAIL_FAST.set(Boolean.TRUE);
+            r.run();
+          }
+        });
+      }
+    };
+  }
+
+  /**
+   * Exponential backoff with full jitter
+   */
+  static long backoffMillis(int attempt) {
+    long cap = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt, 20));
+    return cap / 2 + (long) (RANDOM.nextDouble() * cap / 2);
+  }
+
+  private static void sleep(long millis) {
+    if (millis <= 0) {
+      return;
+    }
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AmazonClientException("Interrupted while waiting for the EC2 rate limit", e);
+    }
+  }
+
+  /**
+   * A token bucket whose rate adapts to throttling.  Callers that find the bucket
+   * empty reserve the next token and sleep until it is due, so waiting callers are
+   * served in arrival order at exactly the current rate.
+   */
+  static final class TokenBucket {
+    private final double maxRate, minRate, burst;
+
+    /* guarded by this */
+    private double rate, tokens;
+
+    private long refilledAt = System.nanoTime();
+
+    TokenBucket(double ratePerSecond, double burst) {
+      this.maxRate = Math.max(ratePerSecond, 0.01);
+      this.minRate = this.maxRate / 20;
+      this.burst = Math.max(burst, 1);
+      this.rate = this.maxRate;
+      this.tokens = this.burst;
+    }
+
+    void acquire() {
+      sleep(reserve());
+    }
+
+    /**
+     * Takes a token and returns how long the caller has to wait before using it
+     */
+    synchronized long reserve() {
+      refill();
+      tokens -= 1;
+      return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / rate * 1000);
+    }
+
+    synchronized void backOff() {
+      refill();
+      rate = Math.max(minRate, rate / 2);
+      tokens = Math.min(tokens, 0);
+    }
+
+    synchronized void recover() {
+      if (rate < maxRate) {
+        rate = Math.min(maxRate, rate + maxRate / 50);
+      }
+    }
+
+    synchronized double getRate() {
+      return rate;
+    }
+
+    private void refill() {
+      long now = System.nanoTime();
+      tokens = Math.min(burst, tokens + (now - refilledAt) / 1e9 * rate);
+      refilledAt = now;
+    }
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Api;
+import hudson.model.Hudson;
+import hudson.model.ManagementLink;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Adds an "EC2 Slaves" page to Manage Hudson which shows the launch and EC2 API
+ * metrics collected by {@link EC2Metrics}, the instance health tracked by
+ * {@link InstanceHealthMonitor}, the demand forecast by {@link PredictiveProvisioner},
+ * the region scores of the {@link RegionSelector} and the images being baked by
+ * the {@link AmiBaker}.  The launch and EC2 API metrics, but not the rest of
+ * the page, are available for scraping under <tt>api/json</tt> and <tt>api/xml</tt>.
+ * <p>
+ * The {@link LaunchJournal} is streamed as plain text from <tt>events</tt>, which
+ * takes the optional parameters <tt>node</tt>, <tt>instance</tt>, <tt>type</tt>
+ * (a comma separated list of event types), <tt>since</tt> (milliseconds since the
+ * epoch) and <tt>limit</tt>.
+ *
+ * @author Aaron Phillips
+ */
+@Extension
+public class EC2SlaveManagementLink extends ManagementLink {
+
+  @Override
+  public String getIconFileName() {
+    return "computer.gif";
+  }
+
+  public String getDisplayName() {
+    return "EC2 Slaves";
+  }
+
+  @Override
+  public String getDescription() {
+    return "Launch latency, EC2 API usage and instance health of EC2 image slaves";
+  }
+
+  @Override
+  public String getUrlName() {
+    return "ec2-slave";
+  }
+
+  public EC2Metrics getMetrics() {
+    return EC2Metrics.get();
+  }
+
+  public InstanceHealthMonitor getHealthMonitor() {
+    return InstanceHealthMonitor.get();
+  }
+
+  public PredictiveProvisioner getProvisioner() {
+    return PredictiveProvisioner.get();
+  }
+
+  public RegionSelector getRegionSelector() {
+    return RegionSelector.get();
+  }
+
+  public AmiBaker getBaker() {
+    return AmiBaker.get();
+  }
+
+  public LaunchJournal getJournal() {
+    return LaunchJournal.get();
+  }
+
+  public void doEvents(StaplerRequest req, StaplerResponse rsp) throws IOException {
+    Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+    LaunchJournal.Query q = new LaunchJournal.Query().node(Util.fixEmpty(req.getParameter("node")))
+        .instanceId(Util.fixEmpty(req.getParameter("instance")))
+        .since(Util.tryParseNumber(req.getParameter("since"), 0).longValue())
+        .limit(Util.tryParseNumber(req.getParameter("limit"), Integer.MAX_VALUE).intValue());
+    if (Util.fixEmpty(req.getParameter("type")) != null) {
+      try {
+        q.types(LaunchJournal.Query.typesOf(req.getParameter("type")));
+      } catch (IllegalArgumentException e) {
+        rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown event type in " + req.getParameter("type"));
+        return;
+      }
+    }
+    rsp.setContentType("text/plain;charset=UTF-8");
+    PrintWriter w = rsp.getWriter();
+    LaunchJournal.get().stream(q, w);
+    w.flush();
+  }
+
+  public Api getApi() {
+    Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+    return new Api(EC2Metrics.get());
+  }
+}
@@ -0,0 +1,267 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.model.PeriodicWork;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Works out how many executors an {@link EC2ImageSlave} in auto-sizing mode gets
+ * from the vCPUs and memory of its instance type, see {@link InstanceTypes}:
+ * {@link #EXECUTORS_PER_VCPU} per vCPU, but no more than fit into the memory once
+ * {@link #RESERVED_MEMORY_MB} are set aside for the OS and the slave agent and each
+ * executor is given the headroom the slave asks for.
+ * <p>
+ * Slaves that also adjust to load have the load average of their instance
+ * measured every minute.  An instance that is overloaded loses an executor, one
+ * that has all its executors busy and is still mostly idle gains one, up to
+ * {@link #MAX_EXECUTORS_PER_VCPU} per vCPU.  The load of all slaves is measured
+ * at once and given up on after {@link #LOAD_TIMEOUT_SECONDS}, so a slave that
+ * does not answer holds up neither the others nor the timer.  What adjusting to
+ * load added or removed is kept by node name, so it survives reconfiguring the
+ * slave.
+ *
+ * @author Aaron Phillips
+ */
+final class ExecutorSizer {
+
+  private static final Logger LOGGER = Logger.getLogger(ExecutorSizer.class.getName());
+
+  static int EXECUTORS_PER_VCPU = Integer.getInteger(ExecutorSizer.class.getName() + ".executorsPerVcpu", 1);
+
+  /**
+   * Upper bound of what adjusting to load can get to
+   */
+  static int MAX_EXECUTORS_PER_VCPU = Integer.getInteger(ExecutorSizer.class.getName() + ".maxExecutorsPerVcpu", 2);
+
+  /**
+   * Memory not available to executors
+   */
+  static int RESERVED_MEMORY_MB = Integer.getInteger(ExecutorSizer.class.getName() + ".reservedMemoryMb", 512);
+
+  /**
+   * Load average per vCPU, in percent, above which an instance is overloaded
+   */
+  static int OVERLOAD_PERCENT = Integer.getInteger(ExecutorSizer.class.getName() + ".overloadPercent", 150);
+
+  /**
+   * Load average per vCPU, in percent, below which an instance has room for more
+   */
+  static int IDLE_PERCENT = Integer.getInteger(ExecutorSizer.class.getName() + ".idlePercent", 50);
+
+  /**
+   * How long measuring the load of the slaves may take
+   */
+  static int LOAD_TIMEOUT_SECONDS = Integer.getInteger(ExecutorSizer.class.getName() + ".loadTimeoutSeconds", 10);
+
+  /* node name -> executors added or removed by adjusting to load, guarded by itself */
+  private static final Map<String, Integer> ADJUSTMENTS = new HashMap<String, Integer>();
+
+  private ExecutorSizer() {
+  }
+
+  /**
+   * Returns the executors adjusting to load added to (or removed from) the given node
+   */
+  static int adjustmentOf(String nodeName) {
+    synchronized (ADJUSTMENTS) {
+      Integer adjustment = ADJUSTMENTS.get(nodeName);
+      return adjustment == null ? 0 : adjustment;
+    }
+  }
+
+  static void setAdjustment(String nodeName, int adjustment) {
+    synchronized (ADJUSTMENTS) {
+      ADJUSTMENTS.put(nodeName, adjustment);
+    }
+  }
+
+  /**
+   * Forgets the adjustments of all but the given nodes
+   */
+  static void retainAdjustments(Set<String> nodeNames) {
+    synchronized (ADJUSTMENTS) {
+      ADJUSTMENTS.keySet().retainAll(nodeNames);
+    }
+  }
+
+  /**
+   * Returns the number of executors for the given instance type
+   *
+   * @param memoryPerExecutorMb
+   *            the memory each executor needs, 0 if memory is no concern
+   * @param adjustment
+   *            executors added (or removed) by adjusting to load
+   */
+  static int executorsFor(InstanceTypes.Spec spec, int memoryPerExecutorMb, int adjustment) {
+    int base = Math.min(spec.vcpus * EXECUTORS_PER_VCPU, fittingInMemory(spec, memoryPerExecutorMb));
+    return Math.max(1, Math.min(base + adjustment, maxExecutors(spec, memoryPerExecutorMb)));
+  }
+
+  private static int maxExecutors(InstanceTypes.Spec spec, int memoryPerExecutorMb) {
+    return Math.min(spec.vcpus * Math.max(EXECUTORS_PER_VCPU, MAX_EXECUTORS_PER_VCPU),
+        fittingInMemory(spec, memoryPerExecutorMb));
+  }
+
+  private static int fittingInMemory(InstanceTypes.Spec spec, int memoryPerExecutorMb) {
+    return memoryPerExecutorMb <= 0 ? Integer.MAX_VALUE : (spec.memoryMb - RESERVED_MEMORY_MB) / memoryPerExecutorMb;
+  }
+
+  /**
+   * Returns the new adjustment after the given load has been measured
+   *
+   * @param loadAverage
+   *            the load average of the instance, negative if it is not known
+   * @param idleExecutors
+   *            the number of executors currently not building anything
+   */
+  static int adjust(InstanceTypes.Spec spec, int memoryPerExecutorMb, int adjustment, double loadAverage,
+      int idleExecutors) {
+    if (loadAverage < 0) {
+      return adjustment; // e.g. Windows has no load average
+    }
+    int executors = executorsFor(spec, memoryPerExecutorMb, adjustment);
+    double percent = loadAverage * 100 / spec.vcpus;
+    if (percent > OVERLOAD_PERCENT && executors > 1) {
+      return adjustment - 1;
+    }
+    if (percent < IDLE_PERCENT && idleExecutors == 0 && executors < maxExecutors(spec, memoryPerExecutorMb)) {
+      return adjustment + 1;
+    }
+    return adjustment;
+  }
+
+  /**
+   * Measures the load average of the machine it runs on
+   */
+  private static final class LoadAverage implements Callable<Double, RuntimeException> {
+    private static final long serialVersionUID = 1L;
+
+    public Double call() {
+      return ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+    }
+  }
+
+  /**
+   * Adjusts auto-sized slaves to their load and gives every auto-sized slave
+   * whose instance type changed, e.g. by falling back to another type for lack
+   * of capacity, its new number of executors
+   */
+  static void run() {
+    InstanceTypes.get().reloadIfChanged(InstanceTypes.overrideFile());
+
+    Map<EC2ImageSlave, Computer> computers = new LinkedHashMap<EC2ImageSlave, Computer>();
+    Map<EC2ImageSlave, Future<Double>> loads = new HashMap<EC2ImageSlave, Future<Double>>();
+    Set<String> names = new HashSet<String>();
+    for (Node node : Hudson.getInstance().getNodes()) {
+      if (!(node instanceof EC2ImageSlave)) {
+        continue;
+      }
+      names.add(node.getNodeName());
+      EC2ImageSlave slave = (EC2ImageSlave) node;
+      Computer c = slave.toComputer();
+      if (!slave.isAutoExecutors() || c == null) {
+        continue;
+      }
+      computers.put(slave, c);
+      VirtualChannel channel = c.getChannel();
+      if (slave.isAdjustExecutorsToLoad() && channel != null) {
+        try {
+          loads.put(slave, channel.callAsync(new LoadAverage()));
+        } catch (IOException e) {
+          LOGGER.log(Level.FINE, "Failed to measure the load of " + slave.getNodeName(), e);
+        }
+      }
+    }
+    retainAdjustments(names);
+
+    boolean resize = false;
+    long deadline = System.currentTimeMillis() + LOAD_TIMEOUT_SECONDS * 1000L;
+    for (Map.Entry<EC2ImageSlave, Computer> e : computers.entrySet()) {
+      EC2ImageSlave slave = e.getKey();
+      Computer c = e.getValue();
+      Future<Double> load = loads.get(slave);
+      if (load != null) {
+        try {
+          long timeout = Math.max(0, deadline - System.currentTimeMillis());
+          slave.adjustExecutors(load.get(timeout, TimeUnit.MILLISECONDS), c.countIdle());
+        } catch (ExecutionException ex) {
+          LOGGER.log(Level.FINE, "Failed to measure the load of " + slave.getNodeName(), ex.getCause());
+        } catch (TimeoutException ex) {
+          load.cancel(true);
+          LOGGER.fine("Gave up measuring the load of " + slave.getNodeName());
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+      if (c.getNumExecutors() != slave.getNumExecutors()) {
+        LOGGER.info("Resizing " + slave.getNodeName() + " from " + c.getNumExecutors() + " to "
+            + slave.getNumExecutors() + " executors");
+        resize = true;
+      }
+    }
+
+    if (resize) {
+      // has every computer pick up the executor count of its node
+      try {
+        Hudson.getInstance().setNodes(Hudson.getInstance().getNodes());
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Failed to resize EC2 image slaves", e);
+      }
+    }
+  }
+
+  @Extension
+  public static final class ExecutorCheck extends PeriodicWork {
+    @Override
+    public long getRecurrencePeriod() {
+      return MIN;
+    }
+
+    @Override
+    protected void doRun() {
+      run();
+    }
+  }
+}
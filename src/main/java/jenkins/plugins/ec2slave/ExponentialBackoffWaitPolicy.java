@@ -0,0 +1,104 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import java.util.Random;
+
+/**
+ * The default {@link LaunchWaitPolicy}.  Most instances go from pending to running
+ * within the first minute, so the first checks come quickly and the delay then
+ * grows exponentially up to a cap.  Each delay is randomized ("decorrelated jitter")
+ * so that nodes launched at the same moment do not keep polling in lockstep.  The
+ * launch is aborted once an overall deadline passes, rather than after a fixed
+ * number of retries.
+ *
+ * @author Aaron Phillips
+ */
+public class ExponentialBackoffWaitPolicy implements LaunchWaitPolicy {
+
+  public static final ExponentialBackoffWaitPolicy DEFAULT = new ExponentialBackoffWaitPolicy(2000, 30 * 1000,
+      10 * 60 * 1000);
+
+  private static final Random RANDOM = new Random();
+
+  private final long initialDelayMillis;
+
+  private final long maxDelayMillis;
+
+  private final long timeoutMillis;
+
+  /**
+   * @param initialDelayMillis
+   *            delay before the first check, also the smallest delay ever used
+   * @param maxDelayMillis
+   *            the delay never grows beyond this
+   * @param timeoutMillis
+   *            overall time after which the launch is aborted
+   */
+  public ExponentialBackoffWaitPolicy(long initialDelayMillis, long maxDelayMillis, long timeoutMillis) {
+    this.initialDelayMillis = Math.max(1, initialDelayMillis);
+    this.maxDelayMillis = Math.max(this.initialDelayMillis, maxDelayMillis);
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  public long getInitialDelayMillis() {
+    return initialDelayMillis;
+  }
+
+  public long getMaxDelayMillis() {
+    return maxDelayMillis;
+  }
+
+  public long getTimeoutMillis() {
+    return timeoutMillis;
+  }
+
+  public Schedule start() {
+    final long deadline = System.currentTimeMillis() + timeoutMillis;
+    return new Schedule() {
+      private long delay = 0;
+
+      public long nextDelayMillis() {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          return -1;
+        }
+        if (delay == 0) {
+          delay = initialDelayMillis;
+        } else {
+          // decorrelated jitter: random between the initial delay and three times the last one
+          long upper = Math.min(maxDelayMillis, delay * 3);
+          delay = initialDelayMillis + (long) (RANDOM.nextDouble() * (upper - initialDelayMillis));
+        }
+        return Math.min(delay, remaining);
+      }
+    };
+  }
+
+  @Override
+  public String toString() {
+    return "exponential backoff from " + initialDelayMillis + "ms to " + maxDelayMillis + "ms, timeout "
+        + timeoutMillis + "ms";
+  }
+}
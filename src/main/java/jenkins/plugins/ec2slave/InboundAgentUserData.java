@@ -0,0 +1,124 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import hudson.Util;
+import hudson.model.Hudson;
+
+import java.io.UnsupportedEncodingException;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Generates the user data that makes an instance connect back to Jenkins as a
+ * JNLP slave by itself, so that Jenkins never has to reach the instance.  The
+ * script downloads slave.jar from Jenkins and runs the JNLP agent, retrying the
+ * download until Jenkins is reachable from the instance.
+ * <p>
+ * JNLP slaves authenticate with the secret key of Jenkins.  If the AMI comes with
+ * a file holding the <tt>user:API token</tt> of a Jenkins user who may connect
+ * slaves, the script fetches the secret from the slave's JNLP file with those
+ * credentials.  Otherwise the secret itself is put into the user data, where
+ * anybody who can describe the instance's attributes, and every process on the
+ * instance that can reach the metadata service, can read it.
+ * <p>
+ * The AMI has to run user data scripts on boot (e.g. with cloud-init, as the
+ * Amazon Linux and Ubuntu AMIs do) and needs a Java runtime on its path.
+ *
+ * @author Aaron Phillips
+ */
+final class InboundAgentUserData {
+
+  private InboundAgentUserData() {
+  }
+
+  /**
+   * Returns the user data for the given node, base64 encoded as RunInstances
+   * expects it
+   *
+   * @param credentialsFile
+   *            the file on the instance with the credentials to fetch the secret
+   *            with, null to put the secret into the user data
+   * @throws IllegalStateException
+   *             if Jenkins is not set up to accept JNLP slaves
+   */
+  static String forNode(String nodeName, String remoteFS, String credentialsFile) {
+    Hudson h = Hudson.getInstance();
+    if (h.getTcpSlaveAgentListener() == null) {
+      throw new IllegalStateException("The TCP port for JNLP slave agents is disabled in the global security configuration");
+    }
+    String rootUrl = h.getRootUrl();
+    if (rootUrl == null) {
+      throw new IllegalStateException("The Jenkins URL is not set in the system configuration");
+    }
+    try {
+      String script = credentialsFile != null ? fetchingScript(rootUrl, nodeName, remoteFS, credentialsFile) : script(
+          rootUrl, h.getSecretKey(), nodeName, remoteFS);
+      return new String(Base64.encodeBase64(script.getBytes("UTF-8")), "US-ASCII");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Returns the script for a slave that is given the secret
+   */
+  static String script(String rootUrl, String secret, String nodeName, String remoteFS) {
+    StringBuilder s = header(rootUrl, remoteFS);
+    s.append("exec java -cp slave.jar hudson.remoting.jnlp.Main -headless -url ").append(quote(rootUrl)).append(' ')
+        .append(quote(secret)).append(' ').append(quote(nodeName)).append('\n');
+    return s.toString();
+  }
+
+  /**
+   * Returns the script for a slave that fetches the secret, the first argument in
+   * its JNLP file, with the credentials in the given file
+   */
+  static String fetchingScript(String rootUrl, String nodeName, String remoteFS, String credentialsFile) {
+    StringBuilder s = header(rootUrl, remoteFS);
+    s.append("until secret=$(curl -sf -u \"$(cat ").append(quote(credentialsFile)).append(")\" ")
+        .append(quote(rootUrl + "computer/" + Util.rawEncode(nodeName) + "/slave-agent.jnlp"))
+        .append(" | sed -n 's/.*<argument>\\([0-9a-fA-F]*\\)<\\/argument>.*/\\1/p' | head -n 1)")
+        .append(" && [ -n \"$secret\" ]; do sleep 5; done\n");
+    s.append("exec java -cp slave.jar hudson.remoting.jnlp.Main -headless -url ").append(quote(rootUrl))
+        .append(" \"$secret\" ").append(quote(nodeName)).append('\n');
+    return s.toString();
+  }
+
+  private static StringBuilder header(String rootUrl, String remoteFS) {
+    StringBuilder s = new StringBuilder();
+    s.append("#!/bin/sh\n");
+    s.append("# generated by the Jenkins EC2 slave plugin\n");
+    s.append("mkdir -p ").append(quote(remoteFS)).append(" && cd ").append(quote(remoteFS)).append(" || exit 1\n");
+    s.append("until curl -sf -o slave.jar ").append(quote(rootUrl + "jnlpJars/slave.jar")).append("; do sleep 5; done\n");
+    return s;
+  }
+
+  /**
+   * Quotes a value for the shell
+   */
+  static String quote(String value) {
+    return "'" + value.replace("'", "'\\''") + "'";
+  }
+}
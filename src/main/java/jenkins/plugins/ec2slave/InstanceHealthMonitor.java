@@ -0,0 +1,391 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.PeriodicWork;
+import hudson.slaves.OfflineCause;
+import hudson.slaves.SlaveComputer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceStateName;
+import com.amazonaws.services.ec2.model.Reservation;
+
+/**
+ * Keeps checking on the instances of connected EC2 image slaves and replaces
+ * the ones that went bad.  Once per {@link #CHECK_INTERVAL_SECONDS} the instances
+ * of all slaves are described with one DescribeInstances call per account.  A
+ * slave whose instance fails {@link #UNHEALTHY_CHECKS} checks in a row is taken
+ * temporarily offline so it gets no new builds, disconnected once its running
+ * builds are done, which terminates the instance, and then launched again on a
+ * fresh instance.  A slave that is not back on a new instance within
+ * {@link #REPLACE_TIMEOUT_MINUTES} is given up on and left offline as failed.
+ * <p>
+ * The health of every slave is shown on the EC2 Slaves management page, and a
+ * slave that is being replaced says why in its offline cause.
+ *
+ * @author Aaron Phillips
+ */
+final class InstanceHealthMonitor {
+
+  private static final Logger LOGGER = Logger.getLogger(InstanceHealthMonitor.class.getName());
+
+  static int CHECK_INTERVAL_SECONDS = Integer.getInteger(InstanceHealthMonitor.class.getName()
+      + ".checkIntervalSeconds", 60);
+
+  /**
+   * How many failed checks in a row it takes to replace an instance, so that a
+   * single odd answer from EC2 does not cost a slave
+   */
+  static int UNHEALTHY_CHECKS = Integer.getInteger(InstanceHealthMonitor.class.getName() + ".unhealthyChecks", 2);
+
+  /**
+   * How long a replacement may take before the monitor stops waiting for it
+   */
+  static int REPLACE_TIMEOUT_MINUTES = Integer.getInteger(InstanceHealthMonitor.class.getName()
+      + ".replaceTimeoutMinutes", 30);
+
+  private static final InstanceHealthMonitor INSTANCE = new InstanceHealthMonitor();
+
+  public static InstanceHealthMonitor get() {
+    return INSTANCE;
+  }
+
+  enum State {
+    HEALTHY, FAILING, DRAINING, REPLACING, FAILED
+  }
+
+  /**
+   * The health of one slave
+   */
+  public static final class NodeHealth {
+    private final String nodeName;
+    private String instanceId;
+    private State state = State.HEALTHY;
+    private String problem;
+    private int failedChecks;
+    private long lastCheckedAt;
+    private long replacingSince;
+
+    NodeHealth(String nodeName) {
+      this.nodeName = nodeName;
+    }
+
+    /**
+     * Records the outcome of a check of the slave's instance
+     *
+     * @param problem
+     *            what is wrong with the instance, null if it is fine
+     * @return true if this check made the instance unhealthy
+     */
+    synchronized boolean checked(String instanceId, String problem, long now) {
+      if (!instanceId.equals(this.instanceId)) {
+        this.instanceId = instanceId;
+        failedChecks = 0;
+      }
+      lastCheckedAt = now;
+      this.problem = problem;
+      if (problem == null) {
+        failedChecks = 0;
+        state = State.HEALTHY;
+        return false;
+      }
+      failedChecks++;
+      if (state == State.HEALTHY) {
+        state = State.FAILING;
+      }
+      return state == State.FAILING && failedChecks >= UNHEALTHY_CHECKS;
+    }
+
+    synchronized void setState(State state) {
+      this.state = state;
+      if (state == State.REPLACING) {
+        replacingSince = System.currentTimeMillis();
+      }
+      if (state == State.HEALTHY) {
+        problem = null;
+        failedChecks = 0;
+      }
+    }
+
+    /**
+     * Whether the replacement of the instance has taken longer than
+     * {@link #REPLACE_TIMEOUT_MINUTES}
+     */
+    synchronized boolean isReplaceOverdue(long now) {
+      return state == State.REPLACING && now - replacingSince > REPLACE_TIMEOUT_MINUTES * 60000L;
+    }
+
+    public String getNodeName() {
+      return nodeName;
+    }
+
+    public synchronized String getInstanceId() {
+      return instanceId;
+    }
+
+    public synchronized State getState() {
+      return state;
+    }
+
+    public synchronized String getProblem() {
+      return problem;
+    }
+
+    public synchronized int getFailedChecks() {
+      return failedChecks;
+    }
+
+    public synchronized long getLastCheckedAt() {
+      return lastCheckedAt;
+    }
+
+    public synchronized String getLastCheckedAgo() {
+      return lastCheckedAt == 0 ? "never" : Util.getPastTimeString(System.currentTimeMillis() - lastCheckedAt);
+    }
+  }
+
+  /**
+   * Why a slave was taken offline by the monitor
+   */
+  public static final class ImpairedInstance extends OfflineCause {
+    private final String instanceId, problem;
+
+    ImpairedInstance(String instanceId, String problem) {
+      this.instanceId = instanceId;
+      this.problem = problem;
+    }
+
+    @Override
+    public String toString() {
+      return "EC2 instance " + instanceId + " is being replaced: " + problem;
+    }
+  }
+
+  /* guarded by this */
+  private final Map<String, NodeHealth> nodes = new TreeMap<String, NodeHealth>();
+
+  InstanceHealthMonitor() {
+  }
+
+  /**
+   * Returns the health of every slave seen so far, by node name
+   */
+  public synchronized List<NodeHealth> getNodes() {
+    return new ArrayList<NodeHealth>(nodes.values());
+  }
+
+  synchronized NodeHealth health(String nodeName) {
+    NodeHealth h = nodes.get(nodeName);
+    if (h == null) {
+      h = new NodeHealth(nodeName);
+      nodes.put(nodeName, h);
+    }
+    return h;
+  }
+
+  private synchronized void retain(Set<String> nodeNames) {
+    nodes.keySet().retainAll(nodeNames);
+  }
+
+  /**
+   * Describes the given instances, in chunks of at most
+   * {@link InstanceStatePoller#MAX_IDS_PER_REQUEST}
+   *
+   * @return what is wrong with each instance, the value is null for the healthy ones
+   * @throws AmazonClientException
+   *             if EC2 can't be asked, in which case no instance counts as unhealthy
+   */
+  static Map<String, String> check(EC2ClientRegistry.Handle ec2, Collection<String> instanceIds) {
+    List<String> ids = new ArrayList<String>(instanceIds);
+    Map<String, String> problems = new HashMap<String, String>();
+    for (int i = 0; i < ids.size(); i += InstanceStatePoller.MAX_IDS_PER_REQUEST) {
+      List<String> chunk = ids.subList(i, Math.min(i + InstanceStatePoller.MAX_IDS_PER_REQUEST, ids.size()));
+      DescribeInstancesRequest req = new DescribeInstancesRequest().withFilters(new Filter("instance-id", chunk));
+      Map<String, Instance> found = new HashMap<String, Instance>();
+      for (Reservation r : ec2.get().describeInstances(req).getReservations()) {
+        for (Instance instance : r.getInstances()) {
+          found.put(instance.getInstanceId(), instance);
+        }
+      }
+      for (String id : chunk) {
+        problems.put(id, problemOf(found.get(id)));
+      }
+    }
+    return problems;
+  }
+
+  /**
+   * Returns what is wrong with the given instance, or null if it looks fine
+   */
+  static String problemOf(Instance instance) {
+    if (instance == null) {
+      return "instance is unknown to EC2";
+    }
+    if (InstanceStatePoller.stateOf(instance) == InstanceStateName.Running) {
+      return null;
+    }
+    String problem = "instance is " + instance.getState().getName();
+    if (instance.getStateReason() != null) {
+      problem += " (" + instance.getStateReason().getMessage() + ")";
+    }
+    return problem;
+  }
+
+  /**
+   * Checks every connected slave and moves the unhealthy ones along
+   */
+  void run() {
+    Map<String, EC2ClientRegistry.Handle> accounts = new HashMap<String, EC2ClientRegistry.Handle>();
+    Map<String, Map<String, SlaveComputer>> toCheck = new HashMap<String, Map<String, SlaveComputer>>();
+    Set<String> seen = new HashSet<String>();
+
+    for (Computer c : Hudson.getInstance().getComputers()) {
+      if (!(c instanceof SlaveComputer) || !(((SlaveComputer) c).getLauncher() instanceof EC2ImageLaunchWrapper)) {
+        continue;
+      }
+      SlaveComputer computer = (SlaveComputer) c;
+      EC2ImageLaunchWrapper launcher = (EC2ImageLaunchWrapper) computer.getLauncher();
+      NodeHealth h = health(computer.getName());
+      seen.add(computer.getName());
+
+      if (h.getState() == State.DRAINING || h.getState() == State.FAILED) {
+        if (!computer.isTemporarilyOffline()) {
+          // somebody put it back online by hand, start over
+          h.setState(State.HEALTHY);
+        } else if (h.getState() == State.DRAINING && computer.isIdle()) {
+          replace(computer, launcher, h);
+        }
+        continue;
+      }
+      if (h.getState() == State.REPLACING) {
+        String instanceId = launcher.getMonitoredInstanceId();
+        if (computer.isOffline() && instanceId == null) {
+          LOGGER.info("Launching " + computer.getName() + " again on a new EC2 instance");
+          h.setState(State.HEALTHY);
+          computer.setTemporarilyOffline(false, null);
+          computer.connect(false);
+        } else if (instanceId != null && !instanceId.equals(h.getInstanceId())) {
+          // e.g. the retention strategy got there first
+          LOGGER.info(computer.getName() + " is up again on EC2 instance " + instanceId);
+          h.setState(State.HEALTHY);
+          computer.setTemporarilyOffline(false, null);
+        } else if (h.isReplaceOverdue(System.currentTimeMillis())) {
+          LOGGER.warning("Gave up replacing EC2 instance " + h.getInstanceId() + " of " + computer.getName()
+              + " after " + REPLACE_TIMEOUT_MINUTES + " minutes, leaving the slave offline");
+          h.setState(State.FAILED);
+        }
+        continue;
+      }
+
+      String instanceId = launcher.getMonitoredInstanceId();
+      if (instanceId == null) {
+        continue;
+      }
+      EC2ClientRegistry.Handle ec2 = launcher.getClientHandle();
+      if (!accounts.containsKey(ec2.getKey())) {
+        accounts.put(ec2.getKey(), ec2);
+        toCheck.put(ec2.getKey(), new HashMap<String, SlaveComputer>());
+      }
+      toCheck.get(ec2.getKey()).put(instanceId, computer);
+    }
+    retain(seen);
+
+    for (Map.Entry<String, EC2ClientRegistry.Handle> account : accounts.entrySet()) {
+      Map<String, SlaveComputer> computers = toCheck.get(account.getKey());
+      Map<String, String> problems;
+      try {
+        problems = check(account.getValue(), computers.keySet());
+      } catch (AmazonClientException e) {
+        LOGGER.log(Level.WARNING, "Failed to check the health of " + computers.size() + " EC2 instances of "
+            + account.getValue(), e);
+        continue;
+      }
+      long now = System.currentTimeMillis();
+      for (Map.Entry<String, SlaveComputer> e : computers.entrySet()) {
+        SlaveComputer computer = e.getValue();
+        NodeHealth h = health(computer.getName());
+        EC2ImageLaunchWrapper launcher = (EC2ImageLaunchWrapper) computer.getLauncher();
+        if (h.checked(e.getKey(), problems.get(e.getKey()), now)) {
+          drain(computer, launcher, h);
+        } else if (problems.get(e.getKey()) == null) {
+          // a replacement is trusted once it passed a check
+          launcher.markHealthy(e.getKey());
+        }
+      }
+    }
+  }
+
+  /**
+   * Stops the slave from taking new builds, it is replaced once it is idle
+   */
+  private void drain(SlaveComputer computer, EC2ImageLaunchWrapper launcher, NodeHealth h) {
+    LOGGER.warning("EC2 instance " + h.getInstanceId() + " of " + computer.getName() + " is unhealthy ("
+        + h.getProblem() + "), replacing it");
+    h.setState(State.DRAINING);
+    computer.setTemporarilyOffline(true, new ImpairedInstance(h.getInstanceId(), h.getProblem()));
+    if (computer.isIdle()) {
+      replace(computer, launcher, h);
+    }
+  }
+
+  /**
+   * Disconnects the drained slave, which terminates its instance
+   */
+  private void replace(SlaveComputer computer, EC2ImageLaunchWrapper launcher, NodeHealth h) {
+    h.setState(State.REPLACING);
+    launcher.markImpaired();
+    computer.disconnect(computer.getOfflineCause());
+  }
+
+  @Extension
+  public static final class HealthCheck extends PeriodicWork {
+    @Override
+    public long getRecurrencePeriod() {
+      return CHECK_INTERVAL_SECONDS * 1000L;
+    }
+
+    @Override
+    protected void doRun() {
+      get().run();
+    }
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of stopped (hibernated) EC2 instances that can be started again
+ * instead of launching a fresh instance from the AMI.  Starting a stopped EBS
+ * backed instance skips most of the cold boot and keeps whatever the previous
+ * builds left on its disk.
+ * <p>
+ * Instances are pooled per launch specification, i.e. per account and region,
+ * AMI, instance type, keypair, security group and availability zone, so a pooled
+ * instance is always interchangeable with a freshly launched one.  Instances older than their maximum age are
+ * terminated rather than reused.
+ *
+ * @author Aaron Phillips
+ */
+final class InstancePool {
+
+  private static final Logger LOGGER = Logger.getLogger(InstancePool.class.getName());
+
+  /* instance states the pinned SDK has no InstanceStateName constant for */
+  static final String STOPPING = "stopping";
+
+  static final String STOPPED = "stopped";
+
+  private static final InstancePool INSTANCE = new InstancePool();
+
+  public static InstancePool get() {
+    return INSTANCE;
+  }
+
+  /**
+   * A hibernated instance
+   */
+  static final class Entry {
+    final String instanceId;
+
+    final EC2ClientRegistry.Handle ec2;
+
+    /* when the instance was originally launched from its AMI */
+    final long launchedAt;
+
+    final long maxAgeMillis;
+
+    Entry(String instanceId, EC2ClientRegistry.Handle ec2, long launchedAt, long maxAgeMillis) {
+      this.instanceId = instanceId;
+      this.ec2 = ec2;
+      this.launchedAt = launchedAt;
+      this.maxAgeMillis = maxAgeMillis;
+    }
+
+    boolean isExpired(long now) {
+      return maxAgeMillis > 0 && now - launchedAt > maxAgeMillis;
+    }
+  }
+
+  /* guarded by this */
+  private final Map<String, LinkedList<Entry>> pools = new HashMap<String, LinkedList<Entry>>();
+
+  InstancePool() {
+  }
+
+  /**
+   * Adds a hibernated instance to the pool for the given launch spec, unless the
+   * pool is already full or the instance is too old to be worth keeping.
+   *
+   * @return true if the instance was pooled, false if the caller should terminate it
+   */
+  public synchronized boolean offer(String specKey, Entry entry, int capacity) {
+    if (entry.isExpired(System.currentTimeMillis())) {
+      return false;
+    }
+    LinkedList<Entry> pool = pools.get(specKey);
+    if (pool == null) {
+      pool = new LinkedList<Entry>();
+      pools.put(specKey, pool);
+    }
+    if (pool.size() >= capacity) {
+      return false;
+    }
+    pool.addFirst(entry);
+    return true;
+  }
+
+  /**
+   * Takes the most recently hibernated instance for the given launch spec out of
+   * the pool.  Expired instances found along the way are terminated.
+   *
+   * @return the instance, or null if the pool has nothing usable
+   */
+  public Entry take(String specKey) {
+    List<Entry> expired = new ArrayList<Entry>();
+    Entry taken = null;
+    synchronized (this) {
+      LinkedList<Entry> pool = pools.get(specKey);
+      long now = System.currentTimeMillis();
+      while (pool != null && !pool.isEmpty() && taken == null) {
+        Entry e = pool.removeFirst();
+        if (e.isExpired(now)) {
+          expired.add(e);
+        } else {
+          taken = e;
+        }
+      }
+    }
+    terminate(expired);
+    return taken;
+  }
+
+  /**
+   * Returns the number of instances currently pooled for the given launch spec
+   */
+  public synchronized int size(String specKey) {
+    LinkedList<Entry> pool = pools.get(specKey);
+    return pool == null ? 0 : pool.size();
+  }
+
+  /**
+   * Terminates every pooled instance that has outlived its maximum age
+   */
+  public void evictExpired() {
+    List<Entry> expired = new ArrayList<Entry>();
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      for (LinkedList<Entry> pool : pools.values()) {
+        for (Iterator<Entry> itr = pool.iterator(); itr.hasNext();) {
+          Entry e = itr.next();
+          if (e.isExpired(now)) {
+            itr.remove();
+            expired.add(e);
+          }
+        }
+      }
+    }
+    terminate(expired);
+  }
+
+  private void terminate(List<Entry> entries) {
+    for (Entry e : entries) {
+      LOGGER.info("Terminating hibernated EC2 instance " + e.instanceId + " since it exceeded its maximum age");
+      TerminationReaper.get().terminate(e.ec2, e.instanceId);
+      e.ec2.release();
+    }
+  }
+
+  /**
+   * Periodically terminates pooled instances that got too old
+   */
+  @Extension
+  public static final class ExpiredInstanceSweeper extends PeriodicWork {
+    @Override
+    public long getRecurrencePeriod() {
+      return MIN;
+    }
+
+    @Override
+    protected void doRun() {
+      get().evictExpired();
+    }
+  }
+}
@@ -0,0 +1,318 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.model.PeriodicWork;
+import hudson.util.TextFile;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceStateName;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.Tag;
+
+/**
+ * Finds the instances this Jenkins launched before it was restarted.  Every
+ * instance is tagged with the name of its node and with an ID of this Jenkins
+ * installation, and on startup all tagged instances are looked up with one
+ * DescribeInstances call per account:
+ * <ul>
+ * <li>a running or pending instance whose node still exists is kept, and the
+ * node's next launch {@link #claim claims} it instead of booting a new one</li>
+ * <li>a stopped instance goes back into the {@link InstancePool}, if its node
+ * still pools instances</li>
+ * <li>everything else is an orphan and is terminated</li>
+ * </ul>
+ * A kept instance that no launch claims within {@link #CLAIM_TIMEOUT_MINUTES} is
+ * terminated as well.
+ * <p>
+ * The ID of the installation is random, generated on first use and kept in
+ * {@link #ID_FILE_NAME} in JENKINS_HOME.
+ *
+ * @author Aaron Phillips
+ */
+final class InstanceReconciler {
+
+  private static final Logger LOGGER = Logger.getLogger(InstanceReconciler.class.getName());
+
+  static final String NODE_TAG = "jenkins-ec2slave-node";
+
+  static final String CONTROLLER_TAG = "jenkins-ec2slave-controller";
+
+  static final String ID_FILE_NAME = "ec2slave-controller-id";
+
+  static int CLAIM_TIMEOUT_MINUTES = Integer.getInteger(InstanceReconciler.class.getName() + ".claimTimeoutMinutes", 30);
+
+  private static InstanceReconciler INSTANCE;
+
+  public static synchronized InstanceReconciler get() {
+    if (INSTANCE == null) {
+      Hudson h = Hudson.getInstance();
+      INSTANCE = new InstanceReconciler(h == null ? "unknown" : controllerId(new File(h.getRootDir(), ID_FILE_NAME)));
+    }
+    return INSTANCE;
+  }
+
+  /**
+   * Reads the ID of this installation from the given file, generating it if there
+   * is none yet
+   */
+  static String controllerId(File file) {
+    TextFile f = new TextFile(file);
+    try {
+      if (f.exists()) {
+        return f.readTrim();
+      }
+      String id = UUID.randomUUID().toString();
+      f.write(id);
+      return id;
+    } catch (IOException e) {
+      // instances launched from now on won't be recognized after a restart
+      LOGGER.log(Level.WARNING, "Failed to keep the EC2 slave controller ID in " + file, e);
+      return UUID.randomUUID().toString();
+    }
+  }
+
+  /**
+   * Replaces the reconciler, for launches that run outside of Jenkins, e.g. in
+   * a simulation
+   */
+  static synchronized void set(InstanceReconciler reconciler) {
+    INSTANCE = reconciler;
+  }
+
+  /**
+   * Tags an instance as launched by this Jenkins for the given node
+   *
+   * @throws AmazonClientException
+   *             if the instance could not be tagged, it won't be found again
+   *             after a restart then
+   */
+  static void tag(EC2ClientRegistry.Handle ec2, String instanceId, String nodeName) {
+    List<Tag> tags = new ArrayList<Tag>();
+    tags.add(new Tag(CONTROLLER_TAG, get().getControllerId()));
+    if (nodeName != null) {
+      tags.add(new Tag(NODE_TAG, nodeName));
+    }
+    ec2.get().createTags(new CreateTagsRequest().withResources(instanceId).withTags(tags));
+  }
+
+  /**
+   * An instance found running for a node
+   */
+  static final class Claim {
+    final String instanceId;
+    final EC2ClientRegistry.Handle ec2;
+    final boolean pending;
+    final long launchedAt;
+    final long foundAt = System.currentTimeMillis();
+
+    private Claim(String instanceId, EC2ClientRegistry.Handle ec2, boolean pending, long launchedAt) {
+      this.instanceId = instanceId;
+      this.ec2 = ec2;
+      this.pending = pending;
+      this.launchedAt = launchedAt;
+    }
+  }
+
+  private final String controllerId;
+
+  /* guarded by this, node name -> instance */
+  private final Map<String, Claim> claims = new HashMap<String, Claim>();
+
+  InstanceReconciler(String controllerId) {
+    this.controllerId = controllerId;
+  }
+
+  /**
+   * Identifies this Jenkins installation among all that share an AWS account
+   */
+  public String getControllerId() {
+    return controllerId;
+  }
+
+  /**
+   * Hands the instance found for the given node to its launcher.  The claim holds
+   * a retained handle to the client, which the caller takes over.
+   *
+   * @return the instance, or null if none was found for the node
+   */
+  public synchronized Claim claim(String nodeName, EC2ClientRegistry.Handle ec2) {
+    Claim claim = claims.get(nodeName);
+    if (claim == null || !claim.ec2.getKey().equals(ec2.getKey())) {
+      return null;
+    }
+    return claims.remove(nodeName);
+  }
+
+  public synchronized int getClaimCount() {
+    return claims.size();
+  }
+
+  /**
+   * Sorts out the tagged instances of one account
+   *
+   * @param launchers
+   *            the launchers of the nodes using this account, by node name
+   */
+  void reconcile(EC2ClientRegistry.Handle ec2, Map<String, EC2ImageLaunchWrapper> launchers) {
+    // the pinned SDK has no paging for DescribeInstances, a filtered call returns everything
+    DescribeInstancesRequest req = new DescribeInstancesRequest().withFilters(
+        new Filter("tag:" + CONTROLLER_TAG, Arrays.asList(controllerId)),
+        new Filter("instance-state-name", Arrays.asList(InstanceStateName.Pending.toString(),
+            InstanceStateName.Running.toString(), InstancePool.STOPPING, InstancePool.STOPPED)));
+
+    int kept = 0, pooled = 0, orphaned = 0;
+    for (Reservation r : ec2.get().describeInstances(req).getReservations()) {
+      for (Instance instance : r.getInstances()) {
+        String id = instance.getInstanceId();
+        String nodeName = tagValue(instance, NODE_TAG);
+        EC2ImageLaunchWrapper launcher = nodeName == null ? null : launchers.get(nodeName);
+        String state = instance.getState().getName();
+        long launchedAt = instance.getLaunchTime() != null ? instance.getLaunchTime().getTime() : System
+            .currentTimeMillis();
+
+        if (launcher != null && (InstancePool.STOPPED.equals(state) || InstancePool.STOPPING.equals(state))) {
+          if (launcher.offerToPool(ec2, id, launchedAt)) {
+            pooled++;
+            continue;
+          }
+        } else if (launcher != null) {
+          synchronized (this) {
+            if (!claims.containsKey(nodeName)) {
+              EC2ClientRegistry.Handle retained = ec2.copy();
+              retained.retain();
+              claims.put(nodeName, new Claim(id, retained, InstanceStateName.Pending.toString().equals(state),
+                  launchedAt));
+              kept++;
+              continue;
+            }
+          }
+        }
+
+        LOGGER.info("Terminating orphaned EC2 instance " + id + " of node " + nodeName);
+        TerminationReaper.get().terminate(ec2, id);
+        orphaned++;
+      }
+    }
+    LOGGER.info("Reconciled EC2 instances of " + ec2 + ": " + kept + " kept, " + pooled + " pooled, " + orphaned
+        + " orphaned");
+  }
+
+  private static String tagValue(Instance instance, String key) {
+    if (instance.getTags() != null) {
+      for (Tag t : instance.getTags()) {
+        if (key.equals(t.getKey())) {
+          return t.getValue();
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Terminates kept instances that no launch claimed in time
+   */
+  void expireClaims(long cutoff) {
+    List<Claim> expired = new ArrayList<Claim>();
+    synchronized (this) {
+      for (Iterator<Claim> itr = claims.values().iterator(); itr.hasNext();) {
+        Claim c = itr.next();
+        if (c.foundAt < cutoff) {
+          itr.remove();
+          expired.add(c);
+        }
+      }
+    }
+    for (Claim c : expired) {
+      LOGGER.info("Terminating EC2 instance " + c.instanceId + " since its node did not launch again");
+      TerminationReaper.get().terminate(c.ec2, c.instanceId);
+      c.ec2.release();
+    }
+  }
+
+  /**
+   * Reconciles every account used by an {@link EC2ImageSlave} once the nodes have
+   * been loaded
+   */
+  @Initializer(after = InitMilestone.JOB_LOADED)
+  public static void reconcileOnStartup() {
+    Map<String, EC2ClientRegistry.Handle> accounts = new HashMap<String, EC2ClientRegistry.Handle>();
+    Map<String, Map<String, EC2ImageLaunchWrapper>> launchers = new HashMap<String, Map<String, EC2ImageLaunchWrapper>>();
+    for (Node node : Hudson.getInstance().getNodes()) {
+      if (node instanceof EC2ImageSlave) {
+        EC2ImageLaunchWrapper launcher = (EC2ImageLaunchWrapper) ((EC2ImageSlave) node).getLauncher();
+        // every region is an account of its own here
+        for (EC2ClientRegistry.Handle ec2 : launcher.getClientHandles()) {
+          if (!accounts.containsKey(ec2.getKey())) {
+            accounts.put(ec2.getKey(), ec2);
+            launchers.put(ec2.getKey(), new HashMap<String, EC2ImageLaunchWrapper>());
+          }
+          launchers.get(ec2.getKey()).put(node.getNodeName(), launcher);
+        }
+      }
+    }
+    for (Map.Entry<String, EC2ClientRegistry.Handle> e : accounts.entrySet()) {
+      try {
+        get().reconcile(e.getValue(), launchers.get(e.getKey()));
+      } catch (AmazonClientException ex) {
+        LOGGER.log(Level.WARNING, "Failed to reconcile the EC2 instances of " + e.getValue(), ex);
+      }
+    }
+  }
+
+  @Extension
+  public static final class ClaimSweeper extends PeriodicWork {
+    @Override
+    public long getRecurrencePeriod() {
+      return MIN;
+    }
+
+    @Override
+    protected void doRun() {
+      get().expireClaims(System.currentTimeMillis() - CLAIM_TIMEOUT_MINUTES * 60 * 1000L);
+    }
+  }
+}
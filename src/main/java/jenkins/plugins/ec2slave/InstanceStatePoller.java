@@ -0,0 +1,377 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import hudson.util.DaemonThreadFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceStateName;
+import com.amazonaws.services.ec2.model.Reservation;
+
+/**
+ * The {@link InstanceStatePoller} keeps track of the state of every EC2 instance
+ * that an {@link EC2ImageLaunchWrapper} is currently waiting on.  Rather than each
+ * wrapper issuing its own DescribeInstances call for its own instance, all instance
+ * IDs known to a poller are described together once per tick and every waiting
+ * launch is notified when its instance changes state.
+ * <p>
+ * There is one poller per AWS account and endpoint, so the number of API calls
+ * grows with the number of ticks, not with the number of nodes being launched.
+ * The poller only ticks, and only holds on to its shared client, while somebody
+ * is waiting on it.  Each waiting launch says when it next wants its instance
+ * polled (see {@link LaunchWaitPolicy}), and the poller ticks at the earliest of
+ * those times, but never more often than {@link #MIN_POLL_INTERVAL_MILLIS}.  While
+ * EC2 throttles the poller it backs off instead, its single thread is not held up
+ * retrying the throttled call.
+ *
+ * @author Aaron Phillips
+ */
+final class InstanceStatePoller {
+
+  private static final Logger LOGGER = Logger.getLogger(InstanceStatePoller.class.getName());
+
+  /**
+   * The poller never describes its instances more often than this, however eagerly
+   * the waiting launches ask for it
+   */
+  static long MIN_POLL_INTERVAL_MILLIS = Long.getLong(InstanceStatePoller.class.getName() + ".minPollIntervalMillis",
+      1000L);
+
+  /**
+   * How long past its requested poll time a launch keeps waiting for that poll to
+   * happen (e.g. while DescribeInstances is failing) before it is told "no change"
+   */
+  static long POLL_GRACE_MILLIS = 30 * 1000L;
+
+  /**
+   * Upper bound on the number of instance IDs sent in a single DescribeInstances
+   * call, large fleets are described in several chunks per tick
+   */
+  static final int MAX_IDS_PER_REQUEST = 200;
+
+  private static final Map<String, InstanceStatePoller> POLLERS = new HashMap<String, InstanceStatePoller>();
+
+  private static final ScheduledExecutorService TIMER = Executors
+      .newSingleThreadScheduledExecutor(EC2RateLimiter.failFast(new DaemonThreadFactory()));
+
+  /**
+   * Returns the poller for the account and endpoint of the given client handle,
+   * creating it if this is the first time they are seen.
+   */
+  public static InstanceStatePoller get(EC2ClientRegistry.Handle ec2) {
+    synchronized (POLLERS) {
+      InstanceStatePoller poller = POLLERS.get(ec2.getKey());
+      if (poller == null) {
+        poller = new InstanceStatePoller(ec2);
+        POLLERS.put(ec2.getKey(), poller);
+      }
+      return poller;
+    }
+  }
+
+  /**
+   * Receives the outcome of a {@link InstanceStatePoller#requestPoll requested poll}.
+   * Callbacks run on the poller's own thread and must not block.
+   */
+  interface Callback {
+    /**
+     * @param state
+     *            the new state of the instance, or the state the requester passed
+     *            in if it did not change
+     */
+    void polled(InstanceStateName state);
+  }
+
+  /**
+   * A pending poll request of one launch
+   */
+  final class Request {
+    private final String instanceId;
+    private final InstanceStateName current;
+    private final long dueAt, deadline;
+    private final Callback callback;
+
+    private Request(String instanceId, InstanceStateName current, long dueAt, Callback callback) {
+      this.instanceId = instanceId;
+      this.current = current;
+      this.dueAt = dueAt;
+      this.deadline = dueAt + POLL_GRACE_MILLIS;
+      this.callback = callback;
+    }
+
+    /**
+     * Withdraws the request, its callback will not be called
+     */
+    public void cancel() {
+      synchronized (InstanceStatePoller.this) {
+        List<Request> requests = watches.get(instanceId);
+        if (requests != null && requests.remove(this) && requests.isEmpty()) {
+          unwatch(instanceId);
+        }
+      }
+    }
+  }
+
+  private final EC2ClientRegistry.Handle ec2;
+
+  /* everything below is guarded by this */
+
+  private final Map<String, List<Request>> watches = new HashMap<String, List<Request>>();
+
+  private ScheduledFuture<?> task;
+
+  private long taskDueAt;
+
+  private long lastTickAt;
+
+  /* ticks in a row that EC2 throttled, and when the next one may happen */
+  private int throttles;
+
+  private long throttledUntil;
+
+  InstanceStatePoller(EC2ClientRegistry.Handle ec2) {
+    // a handle of our own, retaining and releasing the caller's would undo its retain
+    this.ec2 = ec2.copy();
+  }
+
+  /**
+   * Asks for the instance to be polled after the given delay.  The callback is
+   * called once that poll has happened, or earlier if a poll requested by somebody
+   * else already sees the instance in a state other than <tt>current</tt>.  Polls
+   * requested by different launches are served by the same DescribeInstances call
+   * whenever they fall close together.
+   */
+  public synchronized Request requestPoll(String instanceId, InstanceStateName current, long pollDelay,
+      TimeUnit unit, Callback callback) {
+    Request req = new Request(instanceId, current, System.currentTimeMillis() + unit.toMillis(pollDelay), callback);
+    if (watches.isEmpty()) {
+      ec2.retain();
+    }
+    List<Request> requests = watches.get(instanceId);
+    if (requests == null) {
+      requests = new ArrayList<Request>();
+      watches.put(instanceId, requests);
+    }
+    requests.add(req);
+    schedule(req.dueAt);
+    return req;
+  }
+
+  /**
+   * Blocking version of {@link #requestPoll}
+   *
+   * @return the new state of the instance, or <tt>current</tt> if nothing changed
+   * @throws InterruptedException
+   *             if the waiting thread is interrupted
+   */
+  public InstanceStateName awaitStateChange(String instanceId, InstanceStateName current, long pollDelay,
+      TimeUnit unit) throws InterruptedException {
+    final InstanceStateName[] result = { current };
+    final CountDownLatch done = new CountDownLatch(1);
+    Request req = requestPoll(instanceId, current, pollDelay, unit, new Callback() {
+      public void polled(InstanceStateName state) {
+        result[0] = state;
+        done.countDown();
+      }
+    });
+    try {
+      done.await();
+    } catch (InterruptedException e) {
+      req.cancel();
+      throw e;
+    }
+    return result[0];
+  }
+
+  /**
+   * Returns the number of instances currently being watched
+   */
+  public synchronized int getWatchCount() {
+    return watches.size();
+  }
+
+  private void unwatch(String instanceId) {
+    watches.remove(instanceId);
+    if (watches.isEmpty()) {
+      if (task != null) {
+        task.cancel(false);
+        task = null;
+      }
+      ec2.release();
+    }
+  }
+
+  /**
+   * Makes sure a tick happens no later than <tt>dueAt</tt>, or as soon after it as
+   * {@link #MIN_POLL_INTERVAL_MILLIS} and any backoff from throttling allow
+   */
+  private void schedule(long dueAt) {
+    long at = Math.max(Math.max(dueAt, lastTickAt + MIN_POLL_INTERVAL_MILLIS), throttledUntil);
+    if (task != null) {
+      if (taskDueAt <= at) {
+        return; // the tick that is already scheduled is early enough
+      }
+      task.cancel(false);
+    }
+    taskDueAt = at;
+    task = TIMER.schedule(new Runnable() {
+      public void run() {
+        tick();
+      }
+    }, Math.max(0, at - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Describes every watched instance and completes the requests whose instance
+   * changed state or whose poll has now happened.  Instance IDs are passed as a
+   * filter rather than as explicit IDs so that an instance which EC2 does not know
+   * about yet (eventual consistency right after RunInstances) does not fail the
+   * whole batch.
+   */
+  void tick() {
+    long started = System.currentTimeMillis();
+    List<String> ids;
+    synchronized (this) {
+      if (task != null && taskDueAt <= started) {
+        task = null; // that's us
+      }
+      lastTickAt = started;
+      ids = new ArrayList<String>(watches.keySet());
+    }
+
+    Map<String, InstanceStateName> states = new HashMap<String, InstanceStateName>();
+    Set<String> polled = new HashSet<String>();
+    boolean throttled = false;
+    for (int i = 0; i < ids.size(); i += MAX_IDS_PER_REQUEST) {
+      List<String> chunk = ids.subList(i, Math.min(i + MAX_IDS_PER_REQUEST, ids.size()));
+      DescribeInstancesRequest req = new DescribeInstancesRequest().withFilters(new Filter("instance-id", chunk));
+      try {
+        for (Reservation r : ec2.get().describeInstances(req).getReservations()) {
+          for (Instance instance : r.getInstances()) {
+            states.put(instance.getInstanceId(), stateOf(instance));
+          }
+        }
+        polled.addAll(chunk);
+      } catch (AmazonClientException e) {
+        if (EC2Metrics.isThrottle(e)) {
+          throttled = true;
+          LOGGER.fine("EC2 throttled the poll of " + chunk.size() + " instances, backing off");
+        } else {
+          LOGGER.log(Level.WARNING, "Failed to poll the state of " + chunk.size() + " EC2 instances", e);
+        }
+      }
+    }
+
+    List<Runnable> callbacks = new ArrayList<Runnable>();
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      if (throttled) {
+        throttledUntil = now + EC2RateLimiter.backoffMillis(throttles++);
+      } else {
+        throttles = 0;
+      }
+      for (String instanceId : ids) {
+        List<Request> requests = watches.get(instanceId);
+        if (requests == null) {
+          continue;
+        }
+        boolean wasPolled = polled.contains(instanceId);
+        InstanceStateName state = states.get(instanceId);
+        for (Iterator<Request> itr = requests.iterator(); itr.hasNext();) {
+          Request req = itr.next();
+          if (wasPolled && state != null && state != req.current) {
+            callbacks.add(complete(req, state));
+          } else if ((wasPolled && started >= req.dueAt) || now >= req.deadline) {
+            callbacks.add(complete(req, req.current));
+          } else {
+            continue;
+          }
+          itr.remove();
+        }
+        if (requests.isEmpty()) {
+          unwatch(instanceId);
+        }
+      }
+
+      long next = Long.MAX_VALUE;
+      for (List<Request> requests : watches.values()) {
+        for (Request req : requests) {
+          next = Math.min(next, req.dueAt);
+        }
+      }
+      if (next != Long.MAX_VALUE) {
+        schedule(next);
+      }
+    }
+
+    for (Runnable callback : callbacks) {
+      callback.run();
+    }
+  }
+
+  private Runnable complete(final Request req, final InstanceStateName state) {
+    if (state != req.current) {
+      LOGGER.fine("EC2 instance " + req.instanceId + " changed state from " + req.current + " to " + state);
+    }
+    return new Runnable() {
+      public void run() {
+        try {
+          req.callback.polled(state);
+        } catch (RuntimeException e) {
+          LOGGER.log(Level.WARNING, "Instance state callback failed for " + req.instanceId, e);
+        }
+      }
+    };
+  }
+
+  /**
+   * Returns the state of the given instance, or null if it is in a state the SDK
+   * has no {@link InstanceStateName} for (e.g. stopping or stopped)
+   */
+  static InstanceStateName stateOf(Instance instance) {
+    try {
+      return InstanceStateName.fromValue(instance.getState().getName());
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+}
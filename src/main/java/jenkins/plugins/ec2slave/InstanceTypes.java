@@ -0,0 +1,183 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Hudson;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The number of vCPUs and the memory of each EC2 instance type, as far as the
+ * plugin knows them.  A catalogue of the common types is built in, types missing
+ * from it and specs that have changed can be added in
+ * <tt>ec2-slave-instance-types.properties</tt> in JENKINS_HOME, one
+ * <tt>type=vCPUs,memory in MB</tt> per line.  That file is picked up again
+ * whenever it changes.
+ *
+ * @author Aaron Phillips
+ */
+final class InstanceTypes {
+
+  private static final Logger LOGGER = Logger.getLogger(InstanceTypes.class.getName());
+
+  static final String FILE_NAME = "ec2-slave-instance-types.properties";
+
+  private static final InstanceTypes INSTANCE = new InstanceTypes();
+
+  public static InstanceTypes get() {
+    return INSTANCE;
+  }
+
+  /**
+   * The hardware of an instance type
+   */
+  static final class Spec {
+    final int vcpus, memoryMb;
+
+    Spec(int vcpus, int memoryMb) {
+      this.vcpus = vcpus;
+      this.memoryMb = memoryMb;
+    }
+
+    @Override
+    public String toString() {
+      return vcpus + " vCPUs, " + memoryMb + "MB";
+    }
+  }
+
+  private final Map<String, Spec> builtIn;
+
+  /* replaced as a whole when the override file changes */
+  private volatile Map<String, Spec> specs;
+
+  private long overrideModified;
+
+  InstanceTypes() {
+    Map<String, Spec> m = new HashMap<String, Spec>();
+    try {
+      InputStream in = InstanceTypes.class.getResourceAsStream("instance-types.properties");
+      if (in == null) {
+        throw new IOException("instance-types.properties is missing");
+      }
+      try {
+        parse(in, "the built-in instance types", m);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to load the built-in instance types", e);
+    }
+    builtIn = Collections.unmodifiableMap(m);
+    specs = builtIn;
+  }
+
+  /**
+   * Returns the spec of the given instance type, or null if it is not known
+   */
+  public Spec get(String instanceType) {
+    return instanceType == null ? null : specs.get(instanceType);
+  }
+
+  /**
+   * Puts the given file's specs on top of the built-in ones, if it changed since
+   * the last call, or goes back to the built-in ones if it no longer exists
+   */
+  public synchronized void reloadIfChanged(File override) {
+    long modified = override.lastModified(); // 0 if it does not exist
+    if (modified == overrideModified) {
+      return;
+    }
+    overrideModified = modified;
+    if (modified == 0) {
+      specs = builtIn;
+      return;
+    }
+    Map<String, Spec> m = new HashMap<String, Spec>(builtIn);
+    try {
+      InputStream in = new FileInputStream(override);
+      try {
+        parse(in, override.getPath(), m);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to load instance types from " + override, e);
+      return;
+    }
+    specs = Collections.unmodifiableMap(m);
+    LOGGER.info("Loaded instance types from " + override);
+  }
+
+  private static void parse(InputStream in, String source, Map<String, Spec> into) throws IOException {
+    Properties p = new Properties();
+    p.load(in);
+    for (String type : p.stringPropertyNames()) {
+      Spec spec = parse(p.getProperty(type));
+      if (spec == null) {
+        LOGGER.warning("Ignoring instance type " + type + " in " + source + ", expected vCPUs,memory in MB but got "
+            + p.getProperty(type));
+      } else {
+        into.put(type.trim(), spec);
+      }
+    }
+  }
+
+  /**
+   * Parses <tt>vCPUs,memory in MB</tt>
+   *
+   * @return null if that is not what the value is
+   */
+  static Spec parse(String value) {
+    String[] f = value.split(",");
+    if (f.length != 2) {
+      return null;
+    }
+    try {
+      int vcpus = Integer.parseInt(f[0].trim()), memoryMb = Integer.parseInt(f[1].trim());
+      return vcpus > 0 && memoryMb > 0 ? new Spec(vcpus, memoryMb) : null;
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  static File overrideFile() {
+    return new File(Hudson.getInstance().getRootDir(), FILE_NAME);
+  }
+
+  @Initializer(after = InitMilestone.PLUGINS_STARTED)
+  public static void loadOnStartup() {
+    get().reloadIfChanged(overrideFile());
+  }
+}
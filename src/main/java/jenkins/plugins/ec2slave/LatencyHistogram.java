@@ -0,0 +1,116 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of latencies in milliseconds.  Values are counted in log
+ * linear buckets, 8 per power of two, so recording is a couple of atomic
+ * increments and percentiles are accurate to within about 12%, which is plenty
+ * to tell a 40 second boot from a 90 second one.
+ *
+ * @author Aaron Phillips
+ */
+final class LatencyHistogram {
+
+  private static final int SUB_BITS = 3;
+
+  private static final int SUB = 1 << SUB_BITS;
+
+  private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+  private final AtomicLong count = new AtomicLong();
+
+  private final AtomicLong sum = new AtomicLong();
+
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(long millis) {
+    long v = Math.max(0, millis);
+    buckets.incrementAndGet(indexOf(v));
+    count.incrementAndGet();
+    sum.addAndGet(v);
+    long m;
+    while ((m = max.get()) < v && !max.compareAndSet(m, v)) {
+      // retry
+    }
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public long getMean() {
+    long n = count.get();
+    return n == 0 ? 0 : sum.get() / n;
+  }
+
+  /**
+   * Returns the value below which the given fraction of the recorded values fall,
+   * rounded up to the bucket boundary
+   *
+   * @param q
+   *            between 0 and 1, e.g. 0.99 for the 99th percentile
+   */
+  public long getPercentile(double q) {
+    long n = count.get();
+    if (n == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(q * n));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += buckets.get(i);
+      if (seen >= target) {
+        return Math.min(upperBoundOf(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  static int indexOf(long v) {
+    if (v < SUB) {
+      return (int) v;
+    }
+    int exp = 63 - Long.numberOfLeadingZeros(v);
+    return (exp - SUB_BITS + 1) * SUB + (int) ((v >>> (exp - SUB_BITS)) & (SUB - 1));
+  }
+
+  static long upperBoundOf(int index) {
+    if (index < SUB) {
+      return index;
+    }
+    int shift = index / SUB - 1;
+    long lower = (long) (SUB + index % SUB) << shift;
+    return lower + (1L << shift) - 1;
+  }
+}
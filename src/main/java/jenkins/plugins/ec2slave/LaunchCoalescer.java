@@ -0,0 +1,229 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import hudson.util.DaemonThreadFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+
+/**
+ * Gathers launches with identical launch specs that arrive within a short window
+ * and serves them with a single RunInstances call for N instances, rather than N
+ * calls for one instance each.
+ * <p>
+ * EC2 may start fewer instances than asked for.  The launches left over are sent
+ * again, on their own, until EC2 either starts them or refuses to start any at
+ * all, in which case they fail with EC2's error.  A throttled call is sent again
+ * after a backoff rather than failing the batch, without holding up one of the
+ * coalescer's threads in the meantime.
+ *
+ * @author Aaron Phillips
+ */
+final class LaunchCoalescer {
+
+  private static final Logger LOGGER = Logger.getLogger(LaunchCoalescer.class.getName());
+
+  /**
+   * How long the first launch of a batch waits for others to join it
+   */
+  static int WINDOW_MILLIS = Integer.getInteger(LaunchCoalescer.class.getName() + ".windowMillis", 250);
+
+  /**
+   * A batch that reaches this size is sent right away
+   */
+  static int MAX_BATCH = Integer.getInteger(LaunchCoalescer.class.getName() + ".maxBatch", 50);
+
+  private static final ScheduledExecutorService EXECUTOR = Executors.newScheduledThreadPool(2,
+      EC2RateLimiter.failFast(new DaemonThreadFactory()));
+
+  private static final LaunchCoalescer INSTANCE = new LaunchCoalescer(WINDOW_MILLIS, MAX_BATCH);
+
+  public static LaunchCoalescer get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Receives the outcome of a {@link LaunchCoalescer#submit submitted} launch, on
+   * one of the coalescer's threads
+   */
+  interface Callback {
+    void launched(String instanceId);
+
+    void failed(Throwable cause);
+  }
+
+  private final class Batch implements Runnable {
+    private final String specKey;
+    private final EC2ClientRegistry.Handle ec2;
+    private final RunInstancesRequest template;
+    private final List<Callback> callbacks = new ArrayList<Callback>();
+
+    private Batch(String specKey, EC2ClientRegistry.Handle ec2, RunInstancesRequest template) {
+      this.specKey = specKey;
+      this.ec2 = ec2;
+      this.template = template;
+    }
+
+    public void run() {
+      synchronized (LaunchCoalescer.this) {
+        if (batches.get(specKey) != this) {
+          return; // already sent because it filled up
+        }
+        batches.remove(specKey);
+      }
+      runInstances(ec2, template, callbacks, 0);
+    }
+  }
+
+  private final long windowMillis;
+
+  private final int maxBatch;
+
+  /* guarded by this, the batch still open for each launch spec */
+  private final Map<String, Batch> batches = new HashMap<String, Batch>();
+
+  LaunchCoalescer(long windowMillis, int maxBatch) {
+    this.windowMillis = windowMillis;
+    this.maxBatch = maxBatch;
+  }
+
+  /**
+   * Requests one instance.  The request joins the batch open for the same launch
+   * spec, or opens one.
+   *
+   * @param specKey
+   *            identifies the launch spec, requests with the same key must be
+   *            interchangeable
+   * @param template
+   *            the request to send, its instance counts are filled in here
+   */
+  public void submit(String specKey, EC2ClientRegistry.Handle ec2, RunInstancesRequest template, Callback callback) {
+    Batch full = null;
+    synchronized (this) {
+      Batch batch = batches.get(specKey);
+      if (batch == null) {
+        batch = new Batch(specKey, ec2, template);
+        batches.put(specKey, batch);
+        EXECUTOR.schedule(batch, windowMillis, TimeUnit.MILLISECONDS);
+      }
+      batch.callbacks.add(callback);
+      if (batch.callbacks.size() >= maxBatch) {
+        batches.remove(specKey);
+        full = batch;
+      }
+    }
+    if (full != null) {
+      final Batch b = full;
+      EXECUTOR.execute(new Runnable() {
+        public void run() {
+          runInstances(b.ec2, b.template, b.callbacks, 0);
+        }
+      });
+    }
+  }
+
+  /**
+   * @param throttles
+   *            how often EC2 has throttled this call in a row so far
+   */
+  private void runInstances(EC2ClientRegistry.Handle ec2, RunInstancesRequest template, List<Callback> callbacks,
+      int throttles) {
+    List<Callback> waiting = new ArrayList<Callback>(callbacks);
+    while (!waiting.isEmpty()) {
+      List<Instance> instances;
+      try {
+        template.setMinCount(1);
+        template.setMaxCount(waiting.size());
+        instances = ec2.get().runInstances(template).getReservation().getInstances();
+        throttles = 0;
+      } catch (RuntimeException e) {
+        if (EC2Metrics.isThrottle(e) && throttles < EC2RateLimiter.MAX_RETRIES) {
+          retryLater(ec2, template, waiting, throttles + 1);
+          return;
+        }
+        for (Callback c : waiting) {
+          failed(c, e);
+        }
+        return;
+      }
+
+      if (instances.isEmpty()) {
+        IllegalStateException e = new IllegalStateException("EC2 did not start any instance of image "
+            + template.getImageId());
+        for (Callback c : waiting) {
+          failed(c, e);
+        }
+        return;
+      }
+      if (instances.size() < waiting.size()) {
+        LOGGER.info("EC2 started " + instances.size() + " of " + waiting.size() + " requested instances of image "
+            + template.getImageId() + ", asking again for the rest");
+      } else if (waiting.size() > 1) {
+        LOGGER.fine("Started " + waiting.size() + " instances of image " + template.getImageId()
+            + " with one RunInstances call");
+      }
+
+      int n = Math.min(instances.size(), waiting.size());
+      for (int i = 0; i < n; i++) {
+        Callback c = waiting.get(i);
+        try {
+          c.launched(instances.get(i).getInstanceId());
+        } catch (RuntimeException e) {
+          LOGGER.log(Level.WARNING, "Launch callback failed for " + instances.get(i).getInstanceId(), e);
+        }
+      }
+      waiting = new ArrayList<Callback>(waiting.subList(n, waiting.size()));
+    }
+  }
+
+  private void retryLater(final EC2ClientRegistry.Handle ec2, final RunInstancesRequest template,
+      final List<Callback> waiting, final int throttles) {
+    long delay = EC2RateLimiter.backoffMillis(throttles - 1);
+    LOGGER.fine("EC2 throttled RunInstances for image " + template.getImageId() + ", retrying in " + delay + "ms");
+    EXECUTOR.schedule(new Runnable() {
+      public void run() {
+        runInstances(ec2, template, waiting, throttles);
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+
+  private static void failed(Callback c, Throwable cause) {
+    try {
+      c.failed(cause);
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.WARNING, "Launch callback failed", e);
+    }
+  }
+}
@@ -0,0 +1,544 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Hudson;
+import hudson.model.PeriodicWork;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * A journal of what happened to the instances of EC2 image slaves: launches being
+ * requested, RunInstances results, state changes, hand-offs, disconnects and
+ * terminations, each with its time, node and instance.  Unlike the launch log
+ * it can be filtered and it survives restarts, so that slow launches can be
+ * analysed across many of them.
+ * <p>
+ * The latest {@link #CAPACITY} events are kept in memory.  Once Jenkins has
+ * started, every event is also appended to a file in JENKINS_HOME, one event per
+ * line, its fields separated by tabs:
+ * <pre>
+ * time  type  node  instance  detail
+ * </pre>
+ * where time is in milliseconds since the epoch and a missing instance or detail
+ * is written as <tt>-</tt>.  Writes are buffered and flushed every
+ * {@link #FLUSH_SECONDS}, so recording an event never waits on the disk.  The
+ * file is rolled over to a single older generation once it grows beyond
+ * {@link #MAX_FILE_KB}.
+ *
+ * @author Aaron Phillips
+ */
+final class LaunchJournal {
+
+  private static final Logger LOGGER = Logger.getLogger(LaunchJournal.class.getName());
+
+  /**
+   * How many events are kept in memory
+   */
+  static int CAPACITY = Integer.getInteger(LaunchJournal.class.getName() + ".capacity", 10000);
+
+  /**
+   * Size at which the journal file is rolled over
+   */
+  static int MAX_FILE_KB = Integer.getInteger(LaunchJournal.class.getName() + ".maxFileKb", 4096);
+
+  /**
+   * How often buffered events are written to the file
+   */
+  static int FLUSH_SECONDS = Integer.getInteger(LaunchJournal.class.getName() + ".flushSeconds", 5);
+
+  static final String FILE_NAME = "ec2-slave-journal.log";
+
+  private static final LaunchJournal INSTANCE = new LaunchJournal(CAPACITY);
+
+  public static LaunchJournal get() {
+    return INSTANCE;
+  }
+
+  /**
+   * What happened
+   */
+  public enum Type {
+    /** a launch started, the detail is the phase it started in */
+    LAUNCH_REQUESTED,
+    /** RunInstances returned the instance, the detail is the instance type and zone */
+    INSTANCE_CREATED,
+    /** a stopped instance was started out of the pool */
+    INSTANCE_STARTED,
+    /** RunInstances failed, the detail is why */
+    RUN_INSTANCES_FAILED,
+    /** the poller saw the instance in a new state, the detail is the state */
+    STATE_CHANGED,
+    /** the slave is up, the detail is the milliseconds since the launch was requested */
+    HANDED_OFF,
+    /** the launch failed, the detail is the phase it failed in and why */
+    LAUNCH_FAILED,
+    /** the slave disconnected from its instance */
+    DISCONNECTED,
+    /** the instance was stopped and pooled */
+    STOPPED,
+    /** the instance is being baked into an AMI */
+    BAKING,
+    /** the instance was handed to the reaper to be terminated */
+    TERMINATED
+  }
+
+  /**
+   * One entry of the journal
+   */
+  public static final class Event {
+    private final long time;
+    private final Type type;
+    private final String node, instanceId, detail;
+
+    Event(long time, Type type, String node, String instanceId, String detail) {
+      this.time = time;
+      this.type = type;
+      this.node = node;
+      this.instanceId = instanceId;
+      this.detail = detail;
+    }
+
+    public long getTime() {
+      return time;
+    }
+
+    public String getAgo() {
+      return Util.getPastTimeString(System.currentTimeMillis() - time);
+    }
+
+    public Type getType() {
+      return type;
+    }
+
+    public String getNode() {
+      return node;
+    }
+
+    public String getInstanceId() {
+      return instanceId;
+    }
+
+    public String getDetail() {
+      return detail;
+    }
+
+    /**
+     * Returns the event as a line of the journal file, without the line break
+     */
+    String toLine() {
+      return time + "\t" + type + "\t" + field(node) + "\t" + field(instanceId) + "\t" + field(detail);
+    }
+
+    private static String field(String s) {
+      return StringUtils.isEmpty(s) ? "-" : s.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    /**
+     * Parses a line of the journal file
+     *
+     * @return null if the line is not an event, e.g. because it was cut short
+     */
+    static Event parse(String line) {
+      String[] f = line.split("\t", 5);
+      if (f.length < 5) {
+        return null;
+      }
+      try {
+        return new Event(Long.parseLong(f[0]), Type.valueOf(f[1]), unfield(f[2]), unfield(f[3]), unfield(f[4]));
+      } catch (IllegalArgumentException e) {
+        return null;
+      }
+    }
+
+    private static String unfield(String s) {
+      return s.equals("-") ? null : s;
+    }
+  }
+
+  /**
+   * Selects events, every criterion that is not set matches all events
+   */
+  public static final class Query {
+    private String node, instanceId;
+    private Set<Type> types;
+    private long since;
+    private int limit = Integer.MAX_VALUE;
+
+    public Query node(String node) {
+      this.node = node;
+      return this;
+    }
+
+    public Query instanceId(String instanceId) {
+      this.instanceId = instanceId;
+      return this;
+    }
+
+    public Query types(Set<Type> types) {
+      this.types = types;
+      return this;
+    }
+
+    /**
+     * Only events at or after the given time
+     */
+    public Query since(long since) {
+      this.since = since;
+      return this;
+    }
+
+    /**
+     * At most this many events, the oldest matching ones
+     */
+    public Query limit(int limit) {
+      this.limit = limit;
+      return this;
+    }
+
+    boolean matches(Event e) {
+      return e.time >= since && (node == null || node.equals(e.node))
+          && (instanceId == null || instanceId.equals(e.instanceId)) && (types == null || types.contains(e.type));
+    }
+
+    /**
+     * Parses a comma separated list of event types
+     *
+     * @throws IllegalArgumentException
+     *             if one of them is not a {@link Type}
+     */
+    static Set<Type> typesOf(String list) {
+      Set<Type> types = EnumSet.noneOf(Type.class);
+      for (String t : CapacityFallback.split(list)) {
+        types.add(Type.valueOf(t.toUpperCase()));
+      }
+      return types;
+    }
+  }
+
+  /* everything below is guarded by this */
+
+  /* the latest events, oldest first starting at head once the ring is full */
+  private final Event[] ring;
+
+  private int head, size;
+
+  /* null until the journal is opened, and again should writing to it fail */
+  private File file;
+
+  private Writer out;
+
+  private long fileLength;
+
+  LaunchJournal(int capacity) {
+    this.ring = new Event[Math.max(1, capacity)];
+  }
+
+  /**
+   * Starts appending to the given file, after loading the events it already has.
+   * Events recorded before are kept and written to the file as well.
+   */
+  public synchronized void open(File file) throws IOException {
+    close();
+    List<Event> loaded = new ArrayList<Event>();
+    for (File f : generationsOf(file)) {
+      BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+      try {
+        String line;
+        while ((line = r.readLine()) != null) {
+          Event e = Event.parse(line);
+          if (e != null) {
+            loaded.add(e);
+          }
+        }
+      } finally {
+        r.close();
+      }
+    }
+    Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+
+    List<Event> earlier = snapshot();
+    head = size = 0;
+    for (Event e : loaded.subList(Math.max(0, loaded.size() - ring.length), loaded.size())) {
+      add(e);
+    }
+    this.file = file;
+    this.fileLength = file.length();
+    this.out = w;
+    for (Event e : earlier) {
+      add(e);
+      if (out != null) {
+        write(e);
+      }
+    }
+    flush();
+  }
+
+  public synchronized void close() {
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        LOGGER.log(Level.FINE, "Failed to close " + file, e);
+      }
+      out = null;
+    }
+    file = null;
+  }
+
+  /**
+   * Records an event that happened just now
+   *
+   * @param instanceId
+   *            the instance, or null if there is none (yet)
+   * @param detail
+   *            more about the event, see {@link Type}, or null
+   */
+  public void record(Type type, String node, String instanceId, String detail) {
+    record(new Event(System.currentTimeMillis(), type, node, instanceId, detail));
+  }
+
+  synchronized void record(Event e) {
+    add(e);
+    if (out != null) {
+      write(e);
+    }
+  }
+
+  private void add(Event e) {
+    ring[(head + size) % ring.length] = e;
+    if (size < ring.length) {
+      size++;
+    } else {
+      head = (head + 1) % ring.length;
+    }
+  }
+
+  private void write(Event e) {
+    try {
+      String line = e.toLine() + "\n";
+      int bytes = utf8Length(line);
+      if (fileLength + bytes > MAX_FILE_KB * 1024L) {
+        rollOver();
+      }
+      out.write(line);
+      fileLength += bytes;
+    } catch (IOException x) {
+      failed(x);
+    }
+  }
+
+  private static int utf8Length(String s) {
+    try {
+      return s.getBytes("UTF-8").length;
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Writes the buffered events to the file
+   */
+  synchronized void flush() {
+    if (out != null) {
+      try {
+        out.flush();
+      } catch (IOException x) {
+        failed(x);
+      }
+    }
+  }
+
+  private void rollOver() throws IOException {
+    out.close();
+    File older = olderOf(file);
+    if (older.exists() && !older.delete()) {
+      throw new IOException("Failed to delete " + older);
+    }
+    if (!file.renameTo(older)) {
+      throw new IOException("Failed to rename " + file + " to " + older);
+    }
+    out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+    fileLength = 0;
+  }
+
+  private void failed(IOException x) {
+    // the events are still kept in memory
+    LOGGER.log(Level.WARNING, "Failed to write to " + file + ", no longer writing the EC2 slave journal to disk", x);
+    close();
+  }
+
+  private static File olderOf(File file) {
+    return new File(file.getPath() + ".1");
+  }
+
+  /**
+   * Returns the older and the current journal file, if they exist
+   */
+  private static List<File> generationsOf(File file) {
+    List<File> files = new ArrayList<File>();
+    if (olderOf(file).exists()) {
+      files.add(olderOf(file));
+    }
+    if (file.exists()) {
+      files.add(file);
+    }
+    return files;
+  }
+
+  private List<Event> snapshot() {
+    List<Event> events = new ArrayList<Event>(size);
+    for (int i = 0; i < size; i++) {
+      events.add(ring[(head + i) % ring.length]);
+    }
+    return events;
+  }
+
+  /**
+   * Returns the given number of latest events, newest first
+   */
+  public synchronized List<Event> getRecent(int count) {
+    List<Event> events = new ArrayList<Event>(Math.min(count, size));
+    for (int i = size - 1; i >= 0 && events.size() < count; i--) {
+      events.add(ring[(head + i) % ring.length]);
+    }
+    return Collections.unmodifiableList(events);
+  }
+
+  /**
+   * Returns the matching events that are held in memory, oldest first
+   */
+  public synchronized List<Event> query(Query q) {
+    List<Event> events = new ArrayList<Event>();
+    for (Event e : snapshot()) {
+      if (events.size() >= q.limit) {
+        break;
+      }
+      if (q.matches(e)) {
+        events.add(e);
+      }
+    }
+    return events;
+  }
+
+  /**
+   * Writes the matching events to the given writer as lines in the format of the
+   * journal file, oldest first.  If the journal has a file, all of it is searched,
+   * not just the events held in memory, without loading it into memory.
+   *
+   * @return the number of events written
+   */
+  public int stream(Query q, Writer w) throws IOException {
+    List<File> files;
+    synchronized (this) {
+      if (file == null) {
+        files = null;
+      } else {
+        flush();
+        files = generationsOf(file);
+      }
+    }
+    if (files == null) {
+      int count = 0;
+      for (Event e : query(q)) {
+        w.write(e.toLine());
+        w.write('\n');
+        count++;
+      }
+      return count;
+    }
+
+    int count = 0;
+    for (File f : files) {
+      BufferedReader r;
+      try {
+        r = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+      } catch (IOException e) {
+        continue; // rolled over meanwhile
+      }
+      try {
+        String line;
+        while (count < q.limit && (line = r.readLine()) != null) {
+          Event e = Event.parse(line);
+          if (e != null && q.matches(e)) {
+            w.write(line);
+            w.write('\n');
+            count++;
+          }
+        }
+      } finally {
+        r.close();
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Starts writing the journal to JENKINS_HOME before any slave is launched
+   */
+  @Initializer(after = InitMilestone.PLUGINS_STARTED)
+  public static void openOnStartup() {
+    File f = new File(Hudson.getInstance().getRootDir(), FILE_NAME);
+    try {
+      get().open(f);
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to open " + f + ", the EC2 slave journal is kept in memory only", e);
+    }
+  }
+
+  @Extension
+  public static final class Flusher extends PeriodicWork {
+    @Override
+    public long getRecurrencePeriod() {
+      return FLUSH_SECONDS * 1000L;
+    }
+
+    @Override
+    protected void doRun() {
+      get().flush();
+    }
+  }
+}
@@ -0,0 +1,515 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import static com.amazonaws.services.ec2.model.InstanceStateName.Pending;
+import static com.amazonaws.services.ec2.model.InstanceStateName.Running;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.remoting.AsyncFutureImpl;
+import hudson.slaves.SlaveComputer;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.MessageFormat;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.model.InstanceStateName;
+
+/**
+ * Drives the EC2 side of a single launch of an {@link EC2ImageLaunchWrapper}
+ * without holding on to a thread while the instance boots.  Each step runs on a
+ * small shared scheduler and either moves on to the next {@link Phase} right away
+ * or leaves a callback with the {@link InstanceStatePoller}, so a thread is only
+ * busy while there is actual work to do.  A step that EC2 throttles is run again
+ * after a backoff instead of waiting for EC2 on the shared scheduler.
+ * <p>
+ * The final hand-off to the user's connector (e.g. SSH) is blocking by nature and
+ * therefore runs on {@link Computer#threadPoolForRemoting}, like any other launcher.
+ * The launcher itself waits for the hand-off with {@link #awaitHandOff()}, as
+ * Jenkins counts a node as connecting only while its launch is running.
+ *
+ * @author Aaron Phillips
+ */
+final class LaunchStateMachine {
+
+  private static final Logger LOGGER = Logger.getLogger(LaunchStateMachine.class.getName());
+
+  /**
+   * Number of threads shared by all launches in progress
+   */
+  static int THREADS = Integer.getInteger(LaunchStateMachine.class.getName() + ".threads", 2);
+
+  /**
+   * A freshly running instance sometimes has no public DNS name yet, this is how
+   * often we look again before giving up
+   */
+  static int HOSTNAME_ATTEMPTS = 10;
+
+  static long HOSTNAME_RETRY_MILLIS = 3000;
+
+  /**
+   * How long an inbound slave may take to connect back to Jenkins
+   */
+  static int AGENT_TIMEOUT_MINUTES = Integer.getInteger(LaunchStateMachine.class.getName() + ".agentTimeoutMinutes",
+      15);
+
+  static long AGENT_CHECK_MILLIS = 1000;
+
+  /**
+   * How long a running instance may take to accept connections on its agent port
+   */
+  static int READY_TIMEOUT_MINUTES = Integer.getInteger(LaunchStateMachine.class.getName() + ".readyTimeoutMinutes",
+      10);
+
+  private static final ScheduledExecutorService EXECUTOR = Executors.newScheduledThreadPool(THREADS,
+      EC2RateLimiter.failFast(new DaemonThreadFactory()));
+
+  enum Phase {
+    REQUESTED, RUN_INSTANCES_SENT, PENDING, RUNNING, HOSTNAME_RESOLVED, PORT_READY, AWAITING_AGENT, HANDED_OFF, FAILED;
+
+    public boolean isDone() {
+      return this == HANDED_OFF || this == FAILED;
+    }
+  }
+
+  private final EC2ImageLaunchWrapper wrapper;
+
+  private final PrintStream logger;
+
+  /* null if the launch stops once the instance is running, see EC2ImageLaunchWrapper#preLaunch */
+  private final SlaveComputer computer;
+
+  private final TaskListener listener;
+
+  private final AsyncFutureImpl<String> running = new AsyncFutureImpl<String>();
+
+  private final AsyncFutureImpl<String> finished = new AsyncFutureImpl<String>();
+
+  private volatile Phase phase;
+
+  private String instanceId;
+
+  private LaunchWaitPolicy.Schedule schedule;
+
+  private long waitStarted;
+
+  private InstanceStateName state;
+
+  private String hostname;
+
+  private int hostnameAttempts;
+
+  private boolean tagged;
+
+  /* steps in a row that EC2 throttled */
+  private int throttles;
+
+  /* for EC2Metrics */
+  private final long created = System.currentTimeMillis();
+
+  private long runInstancesStarted;
+
+  private long hostnameStarted;
+
+  private long agentWaitStarted;
+
+  /**
+   * @param computer
+   *            the computer to hand off to once the instance is up, or null if
+   *            the launch ends once the instance is running
+   * @param instanceId
+   *            the instance if it already exists, null to start one
+   * @param phase
+   *            where to start, {@link Phase#REQUESTED} for a new instance,
+   *            {@link Phase#RUN_INSTANCES_SENT} for one that is still pending and
+   *            {@link Phase#RUNNING} for one that is running
+   */
+  LaunchStateMachine(EC2ImageLaunchWrapper wrapper, PrintStream logger, SlaveComputer computer,
+      TaskListener listener, String instanceId, Phase phase) {
+    this.wrapper = wrapper;
+    this.logger = logger;
+    this.computer = computer;
+    this.listener = listener;
+    this.instanceId = instanceId;
+    this.phase = phase;
+  }
+
+  public Phase getPhase() {
+    return phase;
+  }
+
+  public boolean isDone() {
+    return phase.isDone();
+  }
+
+  public LaunchStateMachine start() {
+    wrapper.journal(LaunchJournal.Type.LAUNCH_REQUESTED, instanceId, phase.toString());
+    submit(0);
+    return this;
+  }
+
+  /**
+   * Blocks until the instance is running
+   *
+   * @return the instance ID
+   * @throws IllegalStateException
+   *             if the instance failed to come up
+   * @throws AmazonClientException
+   *             if talking to EC2 failed
+   */
+  public String awaitRunning() throws InterruptedException {
+    return await(running);
+  }
+
+  /**
+   * Blocks until the launch is over, i.e. the slave is connected or, if there is
+   * no computer to hand off to, the instance is running
+   *
+   * @return the instance ID
+   * @throws IllegalStateException
+   *             if the launch failed
+   * @throws AmazonClientException
+   *             if talking to EC2 failed
+   */
+  public String awaitHandOff() throws InterruptedException {
+    return await(finished);
+  }
+
+  private static String await(AsyncFutureImpl<String> future) throws InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IllegalStateException(cause.getMessage(), cause);
+    }
+  }
+
+  private void submit(long delayMillis) {
+    EXECUTOR.schedule(new Runnable() {
+      public void run() {
+        Phase from = phase;
+        try {
+          step();
+          throttles = 0;
+        } catch (Throwable t) {
+          if (EC2Metrics.isThrottle(t) && throttles < EC2RateLimiter.MAX_RETRIES && !phase.isDone()) {
+            // the step starts over: a throttled pooled instance has been put back,
+            // and selecting the region again cancels the previous selection
+            phase = from;
+            long delay = EC2RateLimiter.backoffMillis(throttles++);
+            LOGGER.fine("EC2 throttled the launch of " + wrapper.getNodeName() + " in phase " + from
+                + ", retrying in " + delay + "ms");
+            submit(delay);
+          } else {
+            fail(t);
+          }
+        }
+      }
+    }, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private void step() throws Exception {
+    switch (phase) {
+    case REQUESTED:
+      phase = Phase.RUN_INSTANCES_SENT;
+      runInstancesStarted = System.currentTimeMillis();
+      instanceId = wrapper.startPooledInstance(this, logger);
+      if (instanceId != null) {
+        submit(0);
+        break;
+      }
+      // launches of the same spec are coalesced into one RunInstances call, so
+      // the instance ID arrives through a callback
+      wrapper.launchInstanceFromImage(this, logger, new LaunchCoalescer.Callback() {
+        public void launched(String id) {
+          instanceId = id;
+          submit(0);
+        }
+
+        public void failed(Throwable cause) {
+          fail(cause);
+        }
+      });
+      break;
+
+    case RUN_INSTANCES_SENT:
+      if (runInstancesStarted > 0) {
+        if (!tagged) {
+          tag();
+        }
+        record(EC2Metrics.Phase.RUN_INSTANCES, System.currentTimeMillis() - runInstancesStarted);
+      }
+      if (isInbound()) {
+        awaitAgent();
+        break;
+      }
+      phase = Phase.PENDING;
+      schedule = wrapper.getWaitPolicy().start();
+      waitStarted = System.currentTimeMillis();
+      state = Pending;
+      poll();
+      break;
+
+    case PENDING:
+      logger.println(MessageFormat.format("state of instance [{0}] is [{1}]", instanceId, state));
+      if (state == Running) {
+        long waited = System.currentTimeMillis() - waitStarted;
+        LOGGER.info("EC2 instance " + instanceId + " took " + waited + "ms to start running");
+        logger.println(MessageFormat.format(
+            "instance [{0}] is running after waiting [{1}] seconds, proceeding to launching Jenkins on this instance",
+            instanceId, waited / 1000));
+        wrapper.instanceRunning(waited);
+        record(EC2Metrics.Phase.PENDING, waited);
+        phase = Phase.RUNNING;
+        if (computer != null) {
+          running.set(instanceId);
+          submit(0);
+        } else {
+          handedOff();
+          running.set(instanceId);
+        }
+      } else if (state == Pending) {
+        logger.println(MessageFormat.format("instance [{0}] is still pending, waiting", instanceId));
+        poll();
+      } else {
+        throw new IllegalStateException(MessageFormat.format(
+            "instance [{0}] encountered unexpected state [{1}]. Aborting launch", instanceId, state));
+      }
+      break;
+
+    case RUNNING:
+      running.set(instanceId);
+      if (isInbound()) {
+        awaitAgent();
+        break;
+      }
+      if (hostnameStarted == 0) {
+        hostnameStarted = System.currentTimeMillis();
+      }
+      hostname = wrapper.getInstancePublicHostName(instanceId);
+      if (StringUtils.isEmpty(hostname)) {
+        if (++hostnameAttempts >= HOSTNAME_ATTEMPTS) {
+          throw new IllegalStateException("instance [" + instanceId + "] has no public DNS name. Aborting launch");
+        }
+        submit(HOSTNAME_RETRY_MILLIS);
+        break;
+      }
+      record(EC2Metrics.Phase.HOSTNAME, System.currentTimeMillis() - hostnameStarted);
+      phase = Phase.HOSTNAME_RESOLVED;
+      if (wrapper.getReadinessPort() > 0) {
+        awaitReady();
+      } else {
+        phase = Phase.PORT_READY;
+        handOff();
+      }
+      break;
+
+    case AWAITING_AGENT:
+      if (computer.getChannel() != null) {
+        long now = System.currentTimeMillis();
+        logger.println(MessageFormat.format("slave on instance [{0}] connected after [{1}] seconds", instanceId,
+            (now - agentWaitStarted) / 1000));
+        wrapper.agentConnected();
+        record(EC2Metrics.Phase.CONNECT, now - agentWaitStarted);
+        record(EC2Metrics.Phase.TOTAL, now - created);
+        handedOff();
+        running.set(instanceId);
+      } else if (System.currentTimeMillis() - agentWaitStarted > AGENT_TIMEOUT_MINUTES * 60 * 1000L) {
+        throw new IllegalStateException(MessageFormat.format(
+            "slave on instance [{0}] did not connect within [{1}] minutes. Aborting launch", instanceId,
+            AGENT_TIMEOUT_MINUTES));
+      } else {
+        submit(AGENT_CHECK_MILLIS);
+      }
+      break;
+
+    default:
+      throw new IllegalStateException("unexpected launch phase " + phase);
+    }
+  }
+
+  /**
+   * Tags the instance this launch started, see {@link InstanceReconciler#tag}.
+   * An instance that can't be tagged could neither be claimed nor be reaped
+   * after a restart, so it is terminated and the launch fails.
+   */
+  private void tag() {
+    try {
+      wrapper.tagInstance(instanceId);
+    } catch (AmazonClientException e) {
+      if (EC2Metrics.isThrottle(e) && throttles < EC2RateLimiter.MAX_RETRIES) {
+        throw e; // retried like any other throttled step
+      }
+      wrapper.terminateInstance(logger);
+      throw new IllegalStateException("instance [" + instanceId + "] could not be tagged. Aborting launch", e);
+    }
+    tagged = true;
+  }
+
+  private void poll() {
+    long delay = schedule.nextDelayMillis();
+    if (delay < 0) {
+      throw new IllegalStateException(MessageFormat.format(
+          "instance [{0}] is still not running after [{1}] seconds. Aborting launch", instanceId,
+          (System.currentTimeMillis() - waitStarted) / 1000));
+    }
+    logger.println(MessageFormat.format("checking state of instance [{0}] in [{1}] ms...", instanceId, delay));
+    wrapper.getPoller().requestPoll(instanceId, state, delay, TimeUnit.MILLISECONDS,
+        new InstanceStatePoller.Callback() {
+          public void polled(InstanceStateName newState) {
+            if (newState != state) {
+              wrapper.journal(LaunchJournal.Type.STATE_CHANGED, instanceId, newState == null ? "unknown"
+                  : newState.toString());
+            }
+            state = newState;
+            submit(0);
+          }
+        });
+  }
+
+  /**
+   * Whether the slave connects back by itself rather than being connected to
+   */
+  private boolean isInbound() {
+    return computer != null && wrapper.isInbound();
+  }
+
+  /**
+   * Waits for an inbound slave to connect, checking on the computer's channel
+   * rather than on EC2
+   */
+  private void awaitAgent() {
+    phase = Phase.AWAITING_AGENT;
+    agentWaitStarted = System.currentTimeMillis();
+    logger.println(MessageFormat.format("waiting for the slave on instance [{0}] to connect...", instanceId));
+    submit(AGENT_CHECK_MILLIS);
+  }
+
+  private void awaitReady() {
+    final long started = System.currentTimeMillis();
+    logger.println(MessageFormat.format("waiting for [{0}] to accept connections on port [{1}]...", hostname,
+        String.valueOf(wrapper.getReadinessPort())));
+    ReadinessProber.get().probe(hostname, wrapper.getReadinessPort(), READY_TIMEOUT_MINUTES * 60 * 1000L,
+        wrapper.isReadinessSshBanner(), new ReadinessProber.Callback() {
+          public void ready() {
+            long waited = System.currentTimeMillis() - started;
+            record(EC2Metrics.Phase.READY, waited);
+            logger.println(MessageFormat.format("[{0}] is accepting connections after [{1}] seconds", hostname,
+                waited / 1000));
+            phase = Phase.PORT_READY;
+            handOff();
+          }
+
+          public void failed(String reason) {
+            fail(new IllegalStateException(reason + ". Aborting launch"));
+          }
+        });
+  }
+
+  private void handOff() {
+    Computer.threadPoolForRemoting.submit(new Runnable() {
+      public void run() {
+        try {
+          long started = System.currentTimeMillis();
+          wrapper.handOff(hostname, computer, listener);
+          long now = System.currentTimeMillis();
+          record(EC2Metrics.Phase.CONNECT, now - started);
+          record(EC2Metrics.Phase.TOTAL, now - created);
+          handedOff();
+        } catch (IOException e) {
+          fail(e);
+        } catch (InterruptedException e) {
+          fail(e);
+        } catch (RuntimeException e) {
+          fail(e);
+        }
+      }
+    });
+  }
+
+  private void handedOff() {
+    phase = Phase.HANDED_OFF;
+    wrapper.journal(LaunchJournal.Type.HANDED_OFF, instanceId, String.valueOf(System.currentTimeMillis() - created));
+    wrapper.launchSucceeded(this);
+    finished.set(instanceId);
+  }
+
+  private void record(EC2Metrics.Phase p, long millis) {
+    EC2Metrics.get().recordPhase(p, wrapper.getAmi(), wrapper.getLaunchedInstanceType(), millis);
+  }
+
+  /**
+   * Maps where a launch was when it failed to the phase it was timing
+   */
+  private static EC2Metrics.Phase metricsPhaseOf(Phase phase) {
+    switch (phase) {
+    case REQUESTED:
+    case RUN_INSTANCES_SENT:
+      return EC2Metrics.Phase.RUN_INSTANCES;
+    case PENDING:
+      return EC2Metrics.Phase.PENDING;
+    case RUNNING:
+      return EC2Metrics.Phase.HOSTNAME;
+    case HOSTNAME_RESOLVED:
+      return EC2Metrics.Phase.READY;
+    case AWAITING_AGENT:
+      return EC2Metrics.Phase.CONNECT;
+    default:
+      return EC2Metrics.Phase.CONNECT;
+    }
+  }
+
+  private void fail(Throwable t) {
+    String msg = t.getMessage() != null ? t.getMessage() : t.toString();
+    if (phase != Phase.FAILED) {
+      EC2Metrics.get().recordFailure(metricsPhaseOf(phase), wrapper.getAmi(), wrapper.getLaunchedInstanceType());
+      wrapper.journal(LaunchJournal.Type.LAUNCH_FAILED, instanceId, phase + ": " + msg);
+      wrapper.launchFailed(this);
+    }
+    phase = Phase.FAILED;
+    running.set(t);
+    finished.set(t);
+    if (listener != null) {
+      listener.error(msg);
+    } else {
+      logger.println(msg);
+    }
+    if (!(t instanceof IllegalStateException || t instanceof AmazonClientException)) {
+      LOGGER.log(Level.WARNING, "Launch of EC2 instance " + instanceId + " failed", t);
+    }
+  }
+}
@@ -0,0 +1,328 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import hudson.Extension;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.model.PeriodicWork;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+/**
+ * The instance of one node and what is being done with it.  The state is an
+ * immutable {@link Snapshot} that only ever changes by compare-and-set, so
+ * whoever decides what to do next (launch, hand off, terminate) decides on one
+ * consistent snapshot and loses cleanly if somebody else got there first.  That
+ * is what keeps a node from ever having two instances, or from having its
+ * instance terminated twice.
+ * <p>
+ * Lifecycles are kept in a registry by node name rather than in the launcher,
+ * since Jenkins creates a new launcher whenever the node is reconfigured while
+ * the instance lives on.  The lifecycles of nodes that have been deleted or
+ * renamed are dropped once they are idle, see {@link #prune}.
+ *
+ * @author Aaron Phillips
+ */
+final class NodeLifecycle {
+
+  private static final Logger LOGGER = Logger.getLogger(NodeLifecycle.class.getName());
+
+  private static final ConcurrentMap<String, NodeLifecycle> REGISTRY = new ConcurrentHashMap<String, NodeLifecycle>();
+
+  /**
+   * Returns the lifecycle of the given node, creating it if this is the first
+   * time the node is seen
+   */
+  public static NodeLifecycle forNode(String nodeName) {
+    NodeLifecycle lifecycle = REGISTRY.get(nodeName);
+    if (lifecycle == null) {
+      NodeLifecycle created = new NodeLifecycle(nodeName);
+      lifecycle = REGISTRY.putIfAbsent(nodeName, created);
+      if (lifecycle == null) {
+        lifecycle = created;
+      }
+    }
+    return lifecycle;
+  }
+
+  /**
+   * Drops the lifecycles of nodes that no longer exist, so that a node created
+   * under the same name later starts afresh.  Only idle lifecycles are dropped,
+   * a leftover instance of a failed launch is terminated, a release in progress
+   * is left to finish first.
+   *
+   * @param nodeNames
+   *            the names of the nodes that do exist
+   */
+  static void prune(Set<String> nodeNames) {
+    for (Map.Entry<String, NodeLifecycle> e : REGISTRY.entrySet()) {
+      if (nodeNames.contains(e.getKey())) {
+        continue;
+      }
+      NodeLifecycle lifecycle = e.getValue();
+      Snapshot s = lifecycle.get();
+      if (s.phase != Phase.IDLE || !lifecycle.compareAndSet(s, s.withPhase(Phase.RELEASING))) {
+        continue;
+      }
+      if (s.hasInstance()) {
+        LOGGER.info("Terminating EC2 instance " + s.instanceId + " of deleted node " + e.getKey());
+        TerminationReaper.get().terminate(s.ec2, s.instanceId);
+        s.ec2.release();
+      }
+      REGISTRY.remove(e.getKey(), lifecycle);
+      lifecycle.released();
+    }
+  }
+
+  enum Phase {
+    /** nothing is going on, there may be an instance left from a launch that failed */
+    IDLE,
+    /** a {@link LaunchStateMachine} is bringing up the instance */
+    LAUNCHING,
+    /** the instance is running and in use */
+    UP,
+    /** the instance is being stopped or terminated */
+    RELEASING
+  }
+
+  /**
+   * One consistent view of the node's instance
+   */
+  static final class Snapshot {
+    final Phase phase;
+
+    /* null if there is no instance */
+    final String instanceId;
+
+    /* the client of the instance's region, retained for as long as there is an instance */
+    final EC2ClientRegistry.Handle ec2;
+
+    final String region;
+
+    /* when the instance was originally launched from its AMI */
+    final long launchedAt;
+
+    /* null if not known, e.g. for an instance out of the pool */
+    final String instanceType;
+
+    /*
+     * the instance must not be reused, see InstanceHealthMonitor.  Kept across
+     * relaunches until the replacement has passed a health check.
+     */
+    final boolean impaired;
+
+    /* the launch that is or was bringing up the instance */
+    final LaunchStateMachine launch;
+
+    private Snapshot(Phase phase, String instanceId, EC2ClientRegistry.Handle ec2, String region, long launchedAt,
+        String instanceType, boolean impaired, LaunchStateMachine launch) {
+      this.phase = phase;
+      this.instanceId = instanceId;
+      this.ec2 = ec2;
+      this.region = region;
+      this.launchedAt = launchedAt;
+      this.instanceType = instanceType;
+      this.impaired = impaired;
+      this.launch = launch;
+    }
+
+    boolean hasInstance() {
+      return instanceId != null;
+    }
+
+    Snapshot withPhase(Phase phase) {
+      return new Snapshot(phase, instanceId, ec2, region, launchedAt, instanceType, impaired, launch);
+    }
+
+    Snapshot launching(LaunchStateMachine launch) {
+      return new Snapshot(Phase.LAUNCHING, instanceId, ec2, region, launchedAt, instanceType, impaired, launch);
+    }
+
+    Snapshot withInstance(String instanceId, EC2ClientRegistry.Handle ec2, String region, long launchedAt,
+        String instanceType) {
+      return new Snapshot(phase, instanceId, ec2, region, launchedAt, instanceType, impaired, launch);
+    }
+
+    Snapshot withImpaired(boolean impaired) {
+      return new Snapshot(phase, instanceId, ec2, region, launchedAt, instanceType, impaired, launch);
+    }
+
+    @Override
+    public String toString() {
+      return phase + (instanceId == null ? "" : " " + instanceId);
+    }
+  }
+
+  static final Snapshot EMPTY = new Snapshot(Phase.IDLE, null, null, null, 0, null, false, null);
+
+  private final String nodeName;
+
+  private final AtomicReference<Snapshot> state = new AtomicReference<Snapshot>(EMPTY);
+
+  /**
+   * @param nodeName
+   *            null for a lifecycle outside the registry
+   */
+  NodeLifecycle(String nodeName) {
+    this.nodeName = nodeName;
+  }
+
+  public Snapshot get() {
+    return state.get();
+  }
+
+  /**
+   * Moves to the given snapshot, if the current one is still <tt>expect</tt>
+   */
+  public boolean compareAndSet(Snapshot expect, Snapshot update) {
+    if (!state.compareAndSet(expect, update)) {
+      return false;
+    }
+    LOGGER.fine("Lifecycle of " + nodeName + ": " + expect + " -> " + update);
+    return true;
+  }
+
+  /**
+   * Records the instance the given launch brought up, unless that launch has been
+   * superseded in the meantime
+   *
+   * @return false if the launch no longer owns the node, in which case the
+   *         instance belongs to nobody
+   */
+  public boolean assign(LaunchStateMachine launch, String instanceId, EC2ClientRegistry.Handle ec2, String region,
+      long launchedAt, String instanceType) {
+    while (true) {
+      Snapshot s = state.get();
+      if (s.phase != Phase.LAUNCHING || s.launch != launch) {
+        return false;
+      }
+      if (compareAndSet(s, s.withInstance(instanceId, ec2, region, launchedAt, instanceType))) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Ends the given launch in the given phase, unless it has been superseded
+   *
+   * @param phase
+   *            {@link Phase#UP} if the instance is up, {@link Phase#IDLE} if the
+   *            launch failed
+   * @return the snapshot that was ended, or null if the launch no longer owns the node
+   */
+  public Snapshot finish(LaunchStateMachine launch, Phase phase) {
+    while (true) {
+      Snapshot s = state.get();
+      if (s.phase != Phase.LAUNCHING || s.launch != launch) {
+        return null;
+      }
+      if (compareAndSet(s, s.withPhase(phase))) {
+        return s;
+      }
+    }
+  }
+
+  /**
+   * Claims the instance for releasing it.  Exactly one of several concurrent
+   * callers gets it.
+   *
+   * @return the snapshot to release, or null if it is already being released
+   */
+  public Snapshot beginRelease() {
+    while (true) {
+      Snapshot s = state.get();
+      if (s.phase == Phase.RELEASING) {
+        return null;
+      }
+      if (compareAndSet(s, s.withPhase(Phase.RELEASING))) {
+        return s;
+      }
+    }
+  }
+
+  /**
+   * Ends a release started by {@link #beginRelease()}, the node is left without instance
+   */
+  public void released() {
+    while (true) {
+      Snapshot s = state.get();
+      // e.g. markImpaired() may have changed the snapshot since we looked
+      if (s.phase != Phase.RELEASING || compareAndSet(s, s.impaired ? EMPTY.withImpaired(true) : EMPTY)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Marks the current instance as not to be reused
+   */
+  public void markImpaired() {
+    while (true) {
+      Snapshot s = state.get();
+      if (!s.hasInstance() || s.impaired || compareAndSet(s, s.withImpaired(true))) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Clears the mark of {@link #markImpaired()} once the given instance, which
+   * replaced the impaired one, has passed a health check
+   */
+  public void markHealthy(String instanceId) {
+    while (true) {
+      Snapshot s = state.get();
+      if (!s.impaired || !instanceId.equals(s.instanceId) || compareAndSet(s, s.withImpaired(false))) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Periodically drops the lifecycles of deleted nodes
+   */
+  @Extension
+  public static final class Pruner extends PeriodicWork {
+    @Override
+    public long getRecurrencePeriod() {
+      return MIN;
+    }
+
+    @Override
+    protected void doRun() {
+      Set<String> nodeNames = new HashSet<String>();
+      for (Node node : Hudson.getInstance().getNodes()) {
+        nodeNames.add(node.getNodeName());
+      }
+      prune(nodeNames);
+    }
+  }
+}
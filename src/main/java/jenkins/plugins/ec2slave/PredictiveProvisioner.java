@@ -0,0 +1,394 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.PeriodicWork;
+import hudson.model.Queue;
+import hudson.slaves.OfflineCause;
+import hudson.slaves.SlaveComputer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+/**
+ * Launches EC2 image slaves ahead of demand.  The buildable items in the queue
+ * are counted per label every {@link #SAMPLE_SECONDS} and a {@link DemandForecast}
+ * per label predicts how many will be waiting {@link #LEAD_SECONDS} from now,
+ * which is about the time it takes to boot a slave.  Whenever the predicted
+ * demand exceeds the executors that are idle or on their way, offline slaves
+ * with that label are launched right away rather than once the retention
+ * strategy notices the queue.  A slave counts as on its way from the moment its
+ * {@link NodeLifecycle} starts launching until it is online.
+ * <p>
+ * At most {@link #MAX_AHEAD} slaves launched this way wait for their first build
+ * at any time.  A slave that is still idle {@link #LINGER_MINUTES} after it was
+ * launched ahead, and for which no more demand is predicted, is disconnected
+ * again.  Once a slave takes a build it is left to its retention strategy.
+ *
+ * @author Aaron Phillips
+ */
+final class PredictiveProvisioner {
+
+  private static final Logger LOGGER = Logger.getLogger(PredictiveProvisioner.class.getName());
+
+  static int SAMPLE_SECONDS = Integer.getInteger(PredictiveProvisioner.class.getName() + ".sampleSeconds", 10);
+
+  /**
+   * How far ahead demand is predicted
+   */
+  static int LEAD_SECONDS = Integer.getInteger(PredictiveProvisioner.class.getName() + ".leadSeconds", 120);
+
+  /**
+   * Upper bound on the slaves launched ahead of demand that have not taken a build
+   * yet, 0 turns predictive provisioning off
+   */
+  static int MAX_AHEAD = Integer.getInteger(PredictiveProvisioner.class.getName() + ".maxAhead", 5);
+
+  static int LINGER_MINUTES = Integer.getInteger(PredictiveProvisioner.class.getName() + ".lingerMinutes", 10);
+
+  private static final PredictiveProvisioner INSTANCE = new PredictiveProvisioner();
+
+  public static PredictiveProvisioner get() {
+    return INSTANCE;
+  }
+
+  /**
+   * The demand for one label, as shown on the EC2 Slaves management page
+   */
+  public static final class LabelDemand {
+    private final String label;
+    private final int queued;
+    private final double predicted;
+
+    LabelDemand(String label, int queued, double predicted) {
+      this.label = label;
+      this.queued = queued;
+      this.predicted = predicted;
+    }
+
+    public String getLabel() {
+      return label;
+    }
+
+    public int getQueued() {
+      return queued;
+    }
+
+    public String getPredicted() {
+      return String.format("%.1f", predicted);
+    }
+  }
+
+  /**
+   * Why a slave launched ahead of demand was disconnected again
+   */
+  public static final class NoDemand extends OfflineCause {
+    @Override
+    public String toString() {
+      return "Launched ahead of demand that did not come";
+    }
+  }
+
+  private static final class Tracked {
+    private final Label label; /* null for builds that can run anywhere */
+    private final DemandForecast forecast = new DemandForecast();
+    private int demand;
+
+    private Tracked(Label label) {
+      this.label = label;
+    }
+
+    private boolean matches(Candidate c) {
+      return c.matches(label);
+    }
+  }
+
+  /**
+   * An EC2 image slave, as far as the provisioner is concerned
+   */
+  static abstract class Candidate {
+    abstract String getName();
+
+    /**
+     * Whether the slave takes builds of the given label, null for builds that can
+     * run anywhere
+     */
+    abstract boolean matches(Label label);
+
+    abstract int getNumExecutors();
+
+    /**
+     * Whether the slave is on its way up, i.e. its instance is being launched or
+     * the slave is connecting
+     */
+    abstract boolean isBooting();
+
+    abstract boolean isOnline();
+
+    abstract boolean isTemporarilyOffline();
+
+    abstract int countIdle();
+
+    abstract boolean isIdle();
+
+    abstract void connect();
+
+    abstract void disconnect(OfflineCause cause);
+  }
+
+  private static final class ComputerCandidate extends Candidate {
+    private final SlaveComputer computer;
+    private final Node node;
+
+    private ComputerCandidate(SlaveComputer computer, Node node) {
+      this.computer = computer;
+      this.node = node;
+    }
+
+    String getName() {
+      return computer.getName();
+    }
+
+    boolean matches(Label label) {
+      return label == null ? node.getMode() == Node.Mode.NORMAL : label.contains(node);
+    }
+
+    int getNumExecutors() {
+      return node.getNumExecutors();
+    }
+
+    boolean isBooting() {
+      // the lifecycle knows about a launch before Jenkins does, and Jenkins only
+      // sees the node connecting for as long as its launch is running
+      NodeLifecycle.Phase phase = ((EC2ImageLaunchWrapper) computer.getLauncher()).getLifecycle().get().phase;
+      return computer.isConnecting() || phase == NodeLifecycle.Phase.LAUNCHING;
+    }
+
+    boolean isOnline() {
+      return computer.isOnline();
+    }
+
+    boolean isTemporarilyOffline() {
+      return computer.isTemporarilyOffline();
+    }
+
+    int countIdle() {
+      return computer.countIdle();
+    }
+
+    boolean isIdle() {
+      return computer.isIdle();
+    }
+
+    void connect() {
+      computer.connect(false);
+    }
+
+    void disconnect(OfflineCause cause) {
+      computer.disconnect(cause);
+    }
+  }
+
+  /* everything below is guarded by this */
+
+  private final Map<String, Tracked> labels = new TreeMap<String, Tracked>();
+
+  private final Map<String, Long> launchedAhead = new HashMap<String, Long>(); /* node name -> when */
+
+  PredictiveProvisioner() {
+  }
+
+  /**
+   * Returns the demand for every label that had builds queued recently
+   */
+  public synchronized List<LabelDemand> getLabels() {
+    List<LabelDemand> r = new ArrayList<LabelDemand>();
+    for (Map.Entry<String, Tracked> e : labels.entrySet()) {
+      DemandForecast f = e.getValue().forecast;
+      r.add(new LabelDemand(e.getKey(), f.getLastQueued(), f.predict(LEAD_SECONDS / SAMPLE_SECONDS)));
+    }
+    return r;
+  }
+
+  /**
+   * Returns the number of slaves launched ahead of demand that have not taken a build yet
+   */
+  public synchronized int getLaunchedAheadCount() {
+    return launchedAhead.size();
+  }
+
+  /**
+   * Returns how many executors the given forecast calls for, never less than the
+   * builds already queued
+   */
+  static int demandOf(DemandForecast forecast, int leadIntervals) {
+    return Math.max(forecast.getLastQueued(), (int) Math.round(forecast.predict(leadIntervals)));
+  }
+
+  void run() {
+    Hudson h = Hudson.getInstance();
+    List<Label> buildable = new ArrayList<Label>();
+    for (Queue.BuildableItem item : h.getQueue().getBuildableItems()) {
+      buildable.add(item.task.getAssignedLabel());
+    }
+
+    List<Candidate> candidates = new ArrayList<Candidate>();
+    for (Computer c : h.getComputers()) {
+      Node node = c.getNode();
+      if (c instanceof SlaveComputer && node != null
+          && ((SlaveComputer) c).getLauncher() instanceof EC2ImageLaunchWrapper) {
+        candidates.add(new ComputerCandidate((SlaveComputer) c, node));
+      }
+    }
+    sample(buildable, candidates, System.currentTimeMillis());
+  }
+
+  /**
+   * Takes one sample of the queue and launches or disconnects slaves accordingly
+   *
+   * @param buildable
+   *            the label of every buildable item in the queue, null for items that
+   *            can run anywhere
+   */
+  synchronized void sample(List<Label> buildable, List<Candidate> candidates, long now) {
+    Map<String, Integer> queued = new HashMap<String, Integer>();
+    for (Label label : buildable) {
+      String key = label == null ? "" : label.getName();
+      if (!labels.containsKey(key)) {
+        labels.put(key, new Tracked(label));
+      }
+      Integer n = queued.get(key);
+      queued.put(key, n == null ? 1 : n + 1);
+    }
+
+    for (Iterator<Map.Entry<String, Tracked>> itr = labels.entrySet().iterator(); itr.hasNext();) {
+      Map.Entry<String, Tracked> e = itr.next();
+      Tracked t = e.getValue();
+      Integer n = queued.get(e.getKey());
+      t.forecast.sample(n == null ? 0 : n);
+      if (t.forecast.isQuiet()) {
+        itr.remove();
+        continue;
+      }
+      t.demand = demandOf(t.forecast, LEAD_SECONDS / SAMPLE_SECONDS);
+      provision(e.getKey(), t, candidates, now);
+    }
+
+    linger(candidates, now);
+  }
+
+  /**
+   * Launches offline slaves with the given label until the idle and launching
+   * executors cover its demand
+   */
+  private void provision(String key, Tracked t, List<Candidate> candidates, long now) {
+    int shortfall = t.demand;
+    List<Candidate> offline = new ArrayList<Candidate>();
+    for (Candidate c : candidates) {
+      if (!t.matches(c)) {
+        continue;
+      }
+      if (c.isBooting()) {
+        shortfall -= c.getNumExecutors();
+      } else if (c.isOnline()) {
+        shortfall -= c.isTemporarilyOffline() ? 0 : c.countIdle();
+      } else if (!c.isTemporarilyOffline()) {
+        offline.add(c);
+      }
+    }
+
+    for (Candidate c : offline) {
+      if (shortfall <= 0 || launchedAhead.size() >= MAX_AHEAD) {
+        return;
+      }
+      LOGGER.info("Launching " + c.getName() + " ahead of demand for label '" + key + "', " + t.demand
+          + " executors predicted to be needed");
+      launchedAhead.put(c.getName(), now);
+      c.connect();
+      shortfall -= c.getNumExecutors();
+    }
+  }
+
+  /**
+   * Lets go of the slaves that took a build, and disconnects the ones for which
+   * the predicted demand did not come
+   */
+  private void linger(List<Candidate> candidates, long now) {
+    Map<String, Candidate> byName = new HashMap<String, Candidate>();
+    for (Candidate c : candidates) {
+      byName.put(c.getName(), c);
+    }
+    long lingerMillis = LINGER_MINUTES * 60 * 1000L;
+    for (Iterator<Map.Entry<String, Long>> itr = launchedAhead.entrySet().iterator(); itr.hasNext();) {
+      Map.Entry<String, Long> e = itr.next();
+      Candidate c = byName.get(e.getKey());
+      if (c == null || !c.isIdle()) {
+        itr.remove(); // gone, or it is doing what it was launched for
+        continue;
+      }
+      if (c.isBooting() || now - e.getValue() < lingerMillis || isInDemand(c)) {
+        continue;
+      }
+      itr.remove();
+      if (c.isOnline()) {
+        LOGGER.info("Disconnecting " + c.getName() + ", it was launched ahead of demand but stayed idle");
+        c.disconnect(new NoDemand());
+      }
+    }
+  }
+
+  private boolean isInDemand(Candidate c) {
+    for (Tracked t : labels.values()) {
+      if (t.demand > 0 && t.matches(c)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Extension
+  public static final class DemandSampler extends PeriodicWork {
+    @Override
+    public long getRecurrencePeriod() {
+      return SAMPLE_SECONDS * 1000L;
+    }
+
+    @Override
+    protected void doRun() {
+      if (MAX_AHEAD > 0) {
+        get().run();
+      }
+    }
+  }
+}
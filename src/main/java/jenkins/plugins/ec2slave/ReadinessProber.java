@@ -0,0 +1,332 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import hudson.util.DaemonThreadFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Waits for freshly started instances to accept connections on their agent port
+ * (usually sshd), so that the user's launcher is not handed an instance that is
+ * running as far as EC2 is concerned but still booting.
+ * <p>
+ * All probes share one thread and one {@link Selector}: each probe keeps trying
+ * to connect, every {@link #RETRY_MILLIS}, until the TCP handshake succeeds and,
+ * if asked for, the SSH server has sent its banner, or until its deadline passes.
+ * Host names are resolved by a few threads of their own, so that a slow DNS
+ * lookup does not hold up the other probes.
+ *
+ * @author Aaron Phillips
+ */
+final class ReadinessProber implements Runnable {
+
+  private static final Logger LOGGER = Logger.getLogger(ReadinessProber.class.getName());
+
+  /**
+   * Delay between two connection attempts to the same host
+   */
+  static int RETRY_MILLIS = Integer.getInteger(ReadinessProber.class.getName() + ".retryMillis", 2000);
+
+  /**
+   * How long a single connection attempt may take
+   */
+  static int ATTEMPT_TIMEOUT_MILLIS = Integer.getInteger(ReadinessProber.class.getName() + ".attemptTimeoutMillis",
+      5000);
+
+  /**
+   * Number of threads resolving host names
+   */
+  static int RESOLVER_THREADS = Integer.getInteger(ReadinessProber.class.getName() + ".resolverThreads", 4);
+
+  private static final byte[] SSH_BANNER = { 'S', 'S', 'H', '-' };
+
+  private static ReadinessProber INSTANCE;
+
+  public static synchronized ReadinessProber get() {
+    if (INSTANCE == null) {
+      INSTANCE = new ReadinessProber(RETRY_MILLIS, ATTEMPT_TIMEOUT_MILLIS);
+    }
+    return INSTANCE;
+  }
+
+  /**
+   * Receives the outcome of a probe, on the prober's thread, must not block
+   */
+  interface Callback {
+    void ready();
+
+    void failed(String reason);
+  }
+
+  private static final class Probe {
+    private final InetSocketAddress address;
+    private final long deadline;
+    private final boolean sshBanner;
+    private final Callback callback;
+    private final ByteBuffer banner = ByteBuffer.allocate(SSH_BANNER.length);
+    private SocketChannel channel;
+    private long attemptDeadline, retryAt;
+    private String lastError = "no attempt made";
+    /* set by the resolver, null until the host name resolved */
+    private volatile InetSocketAddress resolved;
+    private volatile boolean resolving;
+
+    private Probe(InetSocketAddress address, long deadline, boolean sshBanner, Callback callback) {
+      this.address = address;
+      this.deadline = deadline;
+      this.sshBanner = sshBanner;
+      this.callback = callback;
+    }
+  }
+
+  private final long retryMillis, attemptTimeoutMillis;
+
+  private final Selector selector;
+
+  private final ExecutorService resolver = Executors.newFixedThreadPool(RESOLVER_THREADS, new DaemonThreadFactory());
+
+  private final Queue<Probe> added = new ConcurrentLinkedQueue<Probe>();
+
+  /* only touched by the prober thread */
+  private final List<Probe> waiting = new ArrayList<Probe>();
+
+  ReadinessProber(long retryMillis, long attemptTimeoutMillis) {
+    this.retryMillis = retryMillis;
+    this.attemptTimeoutMillis = attemptTimeoutMillis;
+    try {
+      selector = Selector.open();
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to open a selector", e);
+    }
+    Thread t = new Thread(this, "EC2 instance readiness prober");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /**
+   * Starts probing the given port
+   *
+   * @param timeoutMillis
+   *            how long to keep trying before the probe fails
+   * @param sshBanner
+   *            whether the port only counts as ready once an SSH banner arrived
+   */
+  public void probe(String host, int port, long timeoutMillis, boolean sshBanner, Callback callback) {
+    added.add(new Probe(InetSocketAddress.createUnresolved(host, port), System.currentTimeMillis() + timeoutMillis,
+        sshBanner, callback));
+    selector.wakeup();
+  }
+
+  public void run() {
+    while (true) {
+      try {
+        Probe p;
+        while ((p = added.poll()) != null) {
+          if (p.resolving) {
+            // back from the resolver
+            p.resolving = false;
+            if (p.resolved == null) {
+              retryLater(p, "cannot resolve " + p.address.getHostName());
+              continue;
+            }
+          }
+          attempt(p);
+        }
+
+        long now = System.currentTimeMillis();
+        long next = Long.MAX_VALUE;
+        for (Probe w : waiting) {
+          next = Math.min(next, w.retryAt);
+        }
+        for (SelectionKey key : selector.keys()) {
+          next = Math.min(next, ((Probe) key.attachment()).attemptDeadline);
+        }
+        if (next != Long.MAX_VALUE && next <= now) {
+          selector.selectNow();
+        } else {
+          selector.select(next == Long.MAX_VALUE ? 0 : next - now);
+        }
+
+        for (Iterator<SelectionKey> itr = selector.selectedKeys().iterator(); itr.hasNext();) {
+          SelectionKey key = itr.next();
+          itr.remove();
+          handle(key);
+        }
+
+        now = System.currentTimeMillis();
+        for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+          Probe k = (Probe) key.attachment();
+          if (key.isValid() && now >= k.attemptDeadline) {
+            retryLater(k, k.channel.isConnected() ? "no SSH banner received" : "connection timed out");
+          }
+        }
+        List<Probe> due = new ArrayList<Probe>();
+        for (Iterator<Probe> itr = waiting.iterator(); itr.hasNext();) {
+          Probe w = itr.next();
+          if (w.retryAt <= now) {
+            itr.remove();
+            due.add(w);
+          }
+        }
+        for (Probe w : due) {
+          attempt(w);
+        }
+      } catch (Throwable t) {
+        // keep going, a dead prober would stall every launch
+        LOGGER.log(Level.WARNING, "Readiness prober failed", t);
+      }
+    }
+  }
+
+  private void attempt(Probe p) {
+    long now = System.currentTimeMillis();
+    if (now >= p.deadline) {
+      fail(p);
+      return;
+    }
+    if (p.resolved == null) {
+      resolve(p);
+      return;
+    }
+    p.attemptDeadline = Math.min(p.deadline, now + attemptTimeoutMillis);
+    p.banner.clear();
+    try {
+      p.channel = SocketChannel.open();
+      p.channel.configureBlocking(false);
+      if (p.channel.connect(p.resolved)) {
+        connected(p, null);
+      } else {
+        p.channel.register(selector, SelectionKey.OP_CONNECT, p);
+      }
+    } catch (IOException e) {
+      retryLater(p, e.toString());
+    }
+  }
+
+  /**
+   * Resolves the probe's host name on a resolver thread and hands the probe
+   * back to the prober thread.  Resolved again until it works, a fresh
+   * instance's DNS name may take a moment to appear.
+   */
+  private void resolve(final Probe p) {
+    p.resolving = true;
+    resolver.execute(new Runnable() {
+      public void run() {
+        InetSocketAddress address = new InetSocketAddress(p.address.getHostName(), p.address.getPort());
+        p.resolved = address.isUnresolved() ? null : address;
+        added.add(p);
+        selector.wakeup();
+      }
+    });
+  }
+
+  private void handle(SelectionKey key) {
+    Probe p = (Probe) key.attachment();
+    try {
+      if (key.isConnectable()) {
+        p.channel.finishConnect();
+        connected(p, key);
+      } else if (key.isReadable()) {
+        if (p.channel.read(p.banner) < 0) {
+          retryLater(p, "connection closed before the SSH banner");
+        } else if (!p.banner.hasRemaining()) {
+          if (Arrays.equals(p.banner.array(), SSH_BANNER)) {
+            succeed(p);
+          } else {
+            retryLater(p, "port does not speak SSH");
+          }
+        }
+      }
+    } catch (IOException e) {
+      retryLater(p, e.toString());
+    }
+  }
+
+  private void connected(Probe p, SelectionKey key) throws IOException {
+    if (!p.sshBanner) {
+      succeed(p);
+    } else if (key != null) {
+      key.interestOps(SelectionKey.OP_READ);
+    } else {
+      p.channel.register(selector, SelectionKey.OP_READ, p);
+    }
+  }
+
+  private void retryLater(Probe p, String reason) {
+    close(p);
+    p.lastError = reason;
+    p.retryAt = System.currentTimeMillis() + retryMillis;
+    if (p.retryAt >= p.deadline) {
+      fail(p);
+    } else {
+      waiting.add(p);
+    }
+  }
+
+  private void succeed(Probe p) {
+    close(p);
+    try {
+      p.callback.ready();
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.WARNING, "Readiness callback failed for " + p.address, e);
+    }
+  }
+
+  private void fail(Probe p) {
+    close(p);
+    try {
+      p.callback.failed(p.address.getHostName() + ":" + p.address.getPort() + " did not become ready: "
+          + p.lastError);
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.WARNING, "Readiness callback failed for " + p.address, e);
+    }
+  }
+
+  private static void close(Probe p) {
+    if (p.channel != null) {
+      try {
+        p.channel.close();
+      } catch (IOException e) {
+        // ignore
+      }
+      p.channel = null;
+    }
+  }
+}
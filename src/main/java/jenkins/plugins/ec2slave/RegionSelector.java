@@ -0,0 +1,181 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Picks the region a slave that spreads its launches over several regions
+ * launches in next.  Every region is scored by what a launch there is expected
+ * to cost: the smoothed time recent launches took until their instance was up,
+ * plus {@link #FAILURE_PENALTY_MILLIS} weighted by the smoothed rate of failed
+ * launches (API errors, throttling, capacity), plus
+ * {@link #IN_FLIGHT_PENALTY_MILLIS} for each launch already under way there, so
+ * that a burst of launches is spread over regions that are about equally good.
+ * The region with the lowest score wins, ties go to the region listed first.
+ * A region nothing is known about yet scores as if its launches were instant,
+ * so every region gets tried.
+ *
+ * @author Aaron Phillips
+ */
+final class RegionSelector {
+
+  /**
+   * How much the latest launch counts towards a region's latency and failure rate
+   */
+  static final double SMOOTHING = 0.2;
+
+  static long FAILURE_PENALTY_MILLIS = 10 * 60 * 1000L;
+
+  static long IN_FLIGHT_PENALTY_MILLIS = 15 * 1000L;
+
+  private static final RegionSelector INSTANCE = new RegionSelector();
+
+  public static RegionSelector get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Returns the EC2 endpoint of the given region, or null for the SDK's default
+   */
+  static String endpointOf(String region) {
+    return region == null ? null : "https://ec2." + region + ".amazonaws.com";
+  }
+
+  /**
+   * What is known about launches in one region, as shown on the EC2 Slaves
+   * management page
+   */
+  public static final class RegionStats {
+    private final String region;
+    private double latencyMillis = -1; /* -1 until the first launch there finished */
+    private double failureRate;
+    private int inFlight;
+    private long launches, failures;
+
+    private RegionStats(String region) {
+      this.region = region;
+    }
+
+    private double score() {
+      return Math.max(0, latencyMillis) + failureRate * FAILURE_PENALTY_MILLIS + inFlight * IN_FLIGHT_PENALTY_MILLIS;
+    }
+
+    public String getRegion() {
+      return region;
+    }
+
+    public long getLatencyMillis() {
+      return Math.round(latencyMillis);
+    }
+
+    public String getFailureRate() {
+      return String.format("%.0f%%", failureRate * 100);
+    }
+
+    public int getInFlight() {
+      return inFlight;
+    }
+
+    public long getLaunches() {
+      return launches;
+    }
+
+    public long getFailures() {
+      return failures;
+    }
+  }
+
+  /* guarded by this */
+  private final Map<String, RegionStats> regions = new TreeMap<String, RegionStats>();
+
+  RegionSelector() {
+  }
+
+  private RegionStats stats(String region) {
+    RegionStats s = regions.get(region);
+    if (s == null) {
+      s = new RegionStats(region);
+      regions.put(region, s);
+    }
+    return s;
+  }
+
+  /**
+   * Picks the best of the given regions and counts a launch as under way there.
+   * Every selection must be followed by {@link #launched}, {@link #failed} or
+   * {@link #cancelled}.
+   */
+  public synchronized String select(List<String> candidates) {
+    RegionStats best = null;
+    for (String region : candidates) {
+      RegionStats s = stats(region);
+      if (best == null || s.score() < best.score()) {
+        best = s;
+      }
+    }
+    if (best == null) {
+      throw new IllegalArgumentException("No region to select from");
+    }
+    best.inFlight++;
+    return best.region;
+  }
+
+  /**
+   * Records that a launch in the given region got its instance up after the given time
+   */
+  public synchronized void launched(String region, long millis) {
+    RegionStats s = stats(region);
+    s.inFlight = Math.max(0, s.inFlight - 1);
+    s.latencyMillis = s.latencyMillis < 0 ? millis : SMOOTHING * millis + (1 - SMOOTHING) * s.latencyMillis;
+    s.failureRate = (1 - SMOOTHING) * s.failureRate;
+    s.launches++;
+  }
+
+  /**
+   * Records that a launch in the given region failed
+   */
+  public synchronized void failed(String region) {
+    RegionStats s = stats(region);
+    s.inFlight = Math.max(0, s.inFlight - 1);
+    s.failureRate = SMOOTHING + (1 - SMOOTHING) * s.failureRate;
+    s.failures++;
+  }
+
+  /**
+   * Records that a launch selected for the given region was not made after all,
+   * e.g. because the selection is made again
+   */
+  public synchronized void cancelled(String region) {
+    RegionStats s = stats(region);
+    s.inFlight = Math.max(0, s.inFlight - 1);
+  }
+
+  public synchronized List<RegionStats> getRegions() {
+    return new ArrayList<RegionStats>(regions.values());
+  }
+}
@@ -0,0 +1,294 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import hudson.util.DaemonThreadFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceStateName;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+
+/**
+ * Terminates instances in the background, so that a disconnecting slave does not
+ * wait on EC2 and can be launched again right away.  Instances queued within one
+ * {@link #FLUSH_MILLIS} are terminated with a single TerminateInstances call per
+ * account.
+ * <p>
+ * A failed termination is retried with a growing delay until it succeeds, and a
+ * successful one is checked on {@link #CONFIRM_SECONDS} later: an instance that
+ * is not on its way to terminated by then is terminated again.  The reaper keeps
+ * the shared client of an account {@link EC2ClientRegistry.Handle#retain()
+ * retained} while it has instances of that account to deal with.
+ *
+ * @author Aaron Phillips
+ */
+final class TerminationReaper {
+
+  private static final Logger LOGGER = Logger.getLogger(TerminationReaper.class.getName());
+
+  static int FLUSH_MILLIS = Integer.getInteger(TerminationReaper.class.getName() + ".flushMillis", 1000);
+
+  /**
+   * How long after TerminateInstances succeeded the instance is checked on
+   */
+  static int CONFIRM_SECONDS = Integer.getInteger(TerminationReaper.class.getName() + ".confirmSeconds", 60);
+
+  /**
+   * Upper bound on the delay between retries of a failing termination
+   */
+  static long MAX_RETRY_DELAY_MILLIS = 5 * 60 * 1000L;
+
+  private static final ScheduledExecutorService EXECUTOR = Executors
+      .newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+
+  private static final TerminationReaper INSTANCE = new TerminationReaper(CONFIRM_SECONDS * 1000L);
+
+  public static TerminationReaper get() {
+    return INSTANCE;
+  }
+
+  /**
+   * The instances of one account and endpoint that still need attention
+   */
+  private static final class Account {
+    private final EC2ClientRegistry.Handle ec2;
+    private final Set<String> toTerminate = new LinkedHashSet<String>();
+    private final Map<String, Long> toConfirm = new LinkedHashMap<String, Long>(); /* ID -> when to check */
+    private int failures;
+    private long retryAt;
+
+    private Account(EC2ClientRegistry.Handle ec2) {
+      this.ec2 = ec2;
+    }
+
+    private boolean isEmpty() {
+      return toTerminate.isEmpty() && toConfirm.isEmpty();
+    }
+  }
+
+  private final long confirmMillis;
+
+  /* everything below is guarded by this */
+
+  private final Map<String, Account> accounts = new HashMap<String, Account>();
+
+  private ScheduledFuture<?> task;
+
+  TerminationReaper(long confirmMillis) {
+    this.confirmMillis = confirmMillis;
+  }
+
+  /**
+   * Queues the instance for termination
+   */
+  public synchronized void terminate(EC2ClientRegistry.Handle ec2, String instanceId) {
+    Account account = accounts.get(ec2.getKey());
+    if (account == null) {
+      account = new Account(ec2.copy());
+      account.ec2.retain();
+      accounts.put(ec2.getKey(), account);
+    }
+    account.toConfirm.remove(instanceId);
+    account.toTerminate.add(instanceId);
+    if (task == null) {
+      task = EXECUTOR.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          flush();
+        }
+      }, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Returns the number of instances that are not yet confirmed to be terminated
+   */
+  public synchronized int getPendingCount() {
+    int n = 0;
+    for (Account a : accounts.values()) {
+      n += a.toTerminate.size() + a.toConfirm.size();
+    }
+    return n;
+  }
+
+  /**
+   * Terminates what has been queued and checks on what was terminated a while ago
+   */
+  void flush() {
+    List<Account> snapshot;
+    synchronized (this) {
+      snapshot = new ArrayList<Account>(accounts.values());
+    }
+    for (Account account : snapshot) {
+      terminateQueued(account);
+      confirmTerminated(account);
+    }
+    synchronized (this) {
+      for (Iterator<Account> itr = accounts.values().iterator(); itr.hasNext();) {
+        Account account = itr.next();
+        if (account.isEmpty()) {
+          itr.remove();
+          account.ec2.release();
+        }
+      }
+      if (accounts.isEmpty() && task != null) {
+        task.cancel(false);
+        task = null;
+      }
+    }
+  }
+
+  private void terminateQueued(Account account) {
+    List<String> ids;
+    synchronized (this) {
+      if (account.toTerminate.isEmpty() || System.currentTimeMillis() < account.retryAt) {
+        return;
+      }
+      ids = new ArrayList<String>(account.toTerminate);
+    }
+
+    for (int i = 0; i < ids.size(); i += InstanceStatePoller.MAX_IDS_PER_REQUEST) {
+      List<String> chunk = ids.subList(i, Math.min(i + InstanceStatePoller.MAX_IDS_PER_REQUEST, ids.size()));
+      try {
+        account.ec2.get().terminateInstances(new TerminateInstancesRequest().withInstanceIds(chunk));
+        LOGGER.fine("Terminated EC2 instances " + chunk);
+        terminated(account, chunk);
+      } catch (AmazonServiceException e) {
+        if (isNotFound(e) && chunk.size() > 1) {
+          // one unknown ID fails the whole call, sort it out one by one
+          for (String id : chunk) {
+            terminateOne(account, id);
+          }
+        } else if (isNotFound(e)) {
+          terminated(account, chunk);
+        } else {
+          failed(account, chunk, e);
+        }
+      } catch (AmazonClientException e) {
+        failed(account, chunk, e);
+      }
+    }
+  }
+
+  private void terminateOne(Account account, String id) {
+    List<String> ids = new ArrayList<String>();
+    ids.add(id);
+    try {
+      account.ec2.get().terminateInstances(new TerminateInstancesRequest().withInstanceIds(id));
+      terminated(account, ids);
+    } catch (AmazonServiceException e) {
+      if (isNotFound(e)) {
+        terminated(account, ids);
+      } else {
+        failed(account, ids, e);
+      }
+    } catch (AmazonClientException e) {
+      failed(account, ids, e);
+    }
+  }
+
+  private synchronized void terminated(Account account, List<String> ids) {
+    long confirmAt = System.currentTimeMillis() + confirmMillis;
+    for (String id : ids) {
+      if (account.toTerminate.remove(id)) {
+        account.toConfirm.put(id, confirmAt);
+      }
+    }
+    account.failures = 0;
+  }
+
+  private synchronized void failed(Account account, List<String> ids, AmazonClientException e) {
+    account.failures++;
+    long delay = Math.min(MAX_RETRY_DELAY_MILLIS, (long) FLUSH_MILLIS << Math.min(account.failures, 20));
+    account.retryAt = System.currentTimeMillis() + delay;
+    LOGGER.log(Level.WARNING, "Failed to terminate EC2 instances " + ids + ", retrying in " + delay / 1000 + "s", e);
+  }
+
+  private void confirmTerminated(Account account) {
+    List<String> due = new ArrayList<String>();
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      for (Map.Entry<String, Long> e : account.toConfirm.entrySet()) {
+        if (e.getValue() <= now) {
+          due.add(e.getKey());
+        }
+      }
+    }
+    if (due.isEmpty()) {
+      return;
+    }
+
+    Map<String, String> states = new HashMap<String, String>();
+    try {
+      DescribeInstancesRequest req = new DescribeInstancesRequest().withFilters(new Filter("instance-id", due));
+      for (Reservation r : account.ec2.get().describeInstances(req).getReservations()) {
+        for (Instance instance : r.getInstances()) {
+          states.put(instance.getInstanceId(), instance.getState().getName());
+        }
+      }
+    } catch (AmazonClientException e) {
+      LOGGER.log(Level.WARNING, "Failed to confirm the termination of EC2 instances " + due, e);
+      return;
+    }
+
+    synchronized (this) {
+      for (String id : due) {
+        String state = states.get(id);
+        if (state == null || InstanceStateName.Terminated.toString().equals(state)) {
+          // terminated instances eventually disappear altogether
+          account.toConfirm.remove(id);
+        } else if (InstanceStateName.ShuttingDown.toString().equals(state)) {
+          account.toConfirm.put(id, System.currentTimeMillis() + confirmMillis);
+        } else {
+          LOGGER.warning("EC2 instance " + id + " is still " + state + " after it was terminated, terminating it again");
+          account.toConfirm.remove(id);
+          account.toTerminate.add(id);
+        }
+      }
+    }
+  }
+
+  private static boolean isNotFound(AmazonServiceException e) {
+    return e.getErrorCode() != null && e.getErrorCode().startsWith("InvalidInstanceID");
+  }
+}
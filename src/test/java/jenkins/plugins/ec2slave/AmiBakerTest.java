@@ -0,0 +1,227 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.BlockDeviceMapping;
+import com.amazonaws.services.ec2.model.CreateImageRequest;
+import com.amazonaws.services.ec2.model.CreateImageResult;
+import com.amazonaws.services.ec2.model.DeleteSnapshotRequest;
+import com.amazonaws.services.ec2.model.DeregisterImageRequest;
+import com.amazonaws.services.ec2.model.DescribeImagesRequest;
+import com.amazonaws.services.ec2.model.DescribeImagesResult;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.DescribeVolumesResult;
+import com.amazonaws.services.ec2.model.DetachVolumeRequest;
+import com.amazonaws.services.ec2.model.EbsBlockDevice;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.EbsInstanceBlockDevice;
+import com.amazonaws.services.ec2.model.Image;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceBlockDeviceMapping;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.TerminateInstancesResult;
+import com.amazonaws.services.ec2.model.Volume;
+
+public class AmiBakerTest {
+
+  /* the images in our fake account */
+  private final List<Image> images = new ArrayList<Image>();
+
+  private final List<String> deleted = new ArrayList<String>();
+
+  /* the calls that change the cache volume or create an image, in order */
+  private final List<String> calls = new ArrayList<String>();
+
+  private String cacheVolumeState = "in-use";
+
+  private static Image image(String id, String state, String baseAmi, long bakedAt) {
+    return new Image().withImageId(id).withState(state).withTags(new Tag(InstanceReconciler.CONTROLLER_TAG,
+        "controller"), new Tag(InstanceReconciler.NODE_TAG, "node"), new Tag(AmiBaker.BASE_TAG, baseAmi),
+        new Tag(AmiBaker.BAKED_AT_TAG, String.valueOf(bakedAt))).withBlockDeviceMappings(
+        new BlockDeviceMapping().withEbs(new EbsBlockDevice().withSnapshotId("snap-" + id)));
+  }
+
+  private Image find(String id) {
+    for (Image image : images) {
+      if (image.getImageId().equals(id)) {
+        return image;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Whether the image has all the tags the given tag filters ask for
+   */
+  private static boolean matches(Image image, List<Filter> filters) {
+    for (Filter f : filters) {
+      boolean found = false;
+      for (Tag t : image.getTags()) {
+        found |= f.getName().equals("tag:" + t.getKey()) && f.getValues().contains(t.getValue());
+      }
+      if (!found) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private final EC2ClientRegistry.Handle ec2 = new EC2ClientRegistry(new EC2ClientRegistry.ClientFactory() {
+    public AmazonEC2 create(String accessKey, String secretKey, String endpoint) {
+      return (AmazonEC2) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { AmazonEC2.class },
+          new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+              String name = method.getName();
+              if (name.equals("createImage")) {
+                String id = "ami-" + ((CreateImageRequest) args[0]).getInstanceId();
+                calls.add("createImage " + id);
+                images.add(new Image().withImageId(id).withState("pending"));
+                return new CreateImageResult().withImageId(id);
+              } else if (name.equals("describeImages")) {
+                DescribeImagesRequest req = (DescribeImagesRequest) args[0];
+                List<Image> result = new ArrayList<Image>();
+                for (Image image : images) {
+                  if (req.getImageIds().isEmpty() ? matches(image, req.getFilters())
+                      : req.getImageIds().contains(image.getImageId())) {
+                    result.add(image);
+                  }
+                }
+                return new DescribeImagesResult().withImages(result);
+              } else if (name.equals("deregisterImage")) {
+                images.remove(find(((DeregisterImageRequest) args[0]).getImageId()));
+                return null;
+              } else if (name.equals("deleteSnapshot")) {
+                deleted.add(((DeleteSnapshotRequest) args[0]).getSnapshotId());
+                return null;
+              } else if (name.equals("describeInstances")) {
+                return new DescribeInstancesResult().withReservations(new Reservation().withInstances(
+                    new Instance().withInstanceId("i-1").withBlockDeviceMappings(
+                        new InstanceBlockDeviceMapping().withDeviceName("/dev/sdf").withEbs(
+                            new EbsInstanceBlockDevice().withVolumeId("vol-cache")))));
+              } else if (name.equals("detachVolume")) {
+                calls.add("detachVolume " + ((DetachVolumeRequest) args[0]).getVolumeId());
+                cacheVolumeState = "detaching";
+                return null;
+              } else if (name.equals("describeVolumes")) {
+                return new DescribeVolumesResult().withVolumes(new Volume().withVolumeId("vol-cache").withState(
+                    cacheVolumeState));
+              } else if (name.equals("terminateInstances")) {
+                return new TerminateInstancesResult();
+              }
+              return null; // createTags
+            }
+          });
+    }
+  }).handle("accessKey", "secretKey", null);
+
+  @Test
+  public void testNewestBakedImageIsUsed() {
+    images.add(image("ami-old", "available", "ami-base", 1000));
+    images.add(image("ami-new", "available", "ami-base", 2000));
+    images.add(image("ami-other", "available", "ami-otherbase", 3000));
+
+    assertEquals("ami-new", new AmiBaker("controller").imageFor(ec2, "node", "ami-base"));
+    assertEquals("ami-unbaked", new AmiBaker("controller").imageFor(ec2, "node", "ami-unbaked"));
+  }
+
+  @Test
+  public void testDueAfterBuilds() {
+    AmiBaker baker = new AmiBaker("controller");
+    long now = System.currentTimeMillis();
+    assertFalse(baker.isDue("node", 2, 0, now));
+    baker.recordBuild("node");
+    assertFalse(baker.isDue("node", 2, 0, now));
+    baker.recordBuild("node");
+    assertTrue(baker.isDue("node", 2, 0, now));
+
+    baker.bake(ec2, "node", "ami-base", "i-1", null, null);
+    assertFalse(baker.isDue("node", 1, 0, now));
+  }
+
+  @Test
+  public void testDueAfterInterval() {
+    AmiBaker baker = new AmiBaker("controller");
+    long now = System.currentTimeMillis();
+    baker.recordBuild("node");
+    assertFalse(baker.isDue("node", 0, 1, now));
+    assertTrue(baker.isDue("node", 0, 1, now + 60 * 60 * 1000L));
+  }
+
+  @Test
+  public void testFinishedBakeRollsForwardAndPrunes() {
+    images.add(image("ami-1", "available", "ami-base", 1000));
+    images.add(image("ami-2", "available", "ami-base", 2000));
+    images.add(image("ami-stale", "available", "ami-oldbase", 500));
+    AmiBaker baker = new AmiBaker("controller");
+    assertEquals("ami-2", baker.imageFor(ec2, "node", "ami-base"));
+
+    baker.bake(ec2, "node", "ami-base", "i-1", null, null);
+    baker.check();
+    assertEquals(1, baker.getBakes().size()); // still pending
+
+    // EC2 finished the image, and it carries the tags bake() put on it
+    images.remove(find("ami-i-1"));
+    images.add(image("ami-i-1", "available", "ami-base", 3000));
+    baker.check();
+
+    assertEquals(0, baker.getBakes().size());
+    assertEquals("ami-i-1", baker.imageFor(ec2, "node", "ami-base"));
+    assertTrue(find("ami-2") != null);
+    assertEquals(null, find("ami-1"));
+    assertEquals(null, find("ami-stale"));
+    assertTrue(deleted.contains("snap-ami-1"));
+    assertTrue(deleted.contains("snap-ami-stale"));
+  }
+
+  @Test
+  public void testCacheVolumeIsDetachedBeforeBaking() {
+    AmiBaker baker = new AmiBaker("controller");
+    baker.bake(ec2, "node", "ami-base", "i-1", "cache", "/dev/sdf");
+    assertEquals(Arrays.asList("detachVolume vol-cache"), calls);
+    assertEquals(null, baker.getBakes().get(0).getImageId());
+
+    baker.check();
+    assertEquals(1, calls.size()); // still detaching
+
+    cacheVolumeState = "available";
+    baker.check();
+    assertEquals(Arrays.asList("detachVolume vol-cache", "createImage ami-i-1"), calls);
+    assertEquals("ami-i-1", baker.getBakes().get(0).getImageId());
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.BlockDeviceMapping;
+import com.amazonaws.services.ec2.model.CreateSnapshotRequest;
+import com.amazonaws.services.ec2.model.CreateSnapshotResult;
+import com.amazonaws.services.ec2.model.DeleteSnapshotRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.DescribeSnapshotsResult;
+import com.amazonaws.services.ec2.model.DescribeVolumesResult;
+import com.amazonaws.services.ec2.model.DetachVolumeRequest;
+import com.amazonaws.services.ec2.model.EbsInstanceBlockDevice;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceBlockDeviceMapping;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.Snapshot;
+import com.amazonaws.services.ec2.model.Volume;
+
+public class CacheVolumesTest {
+
+  /* the completed snapshots of the cache in our fake account, oldest first */
+  private final List<Snapshot> snapshots = new ArrayList<Snapshot>();
+
+  private final List<String> snapshotted = new ArrayList<String>();
+
+  private final List<String> detached = new ArrayList<String>();
+
+  private String rootDeviceType = "ebs", instanceState = "running", volumeState = "in-use";
+
+  private void addSnapshot(String id, long startTime) {
+    snapshots.add(new Snapshot().withSnapshotId(id).withStartTime(new Date(startTime)).withVolumeSize(10));
+  }
+
+  private final EC2ClientRegistry.Handle ec2 = new EC2ClientRegistry(new EC2ClientRegistry.ClientFactory() {
+    public AmazonEC2 create(String accessKey, String secretKey, String endpoint) {
+      return (AmazonEC2) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { AmazonEC2.class },
+          new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+              String name = method.getName();
+              if (name.equals("describeSnapshots")) {
+                return new DescribeSnapshotsResult().withSnapshots(snapshots);
+              } else if (name.equals("describeInstances")) {
+                return new DescribeInstancesResult().withReservations(new Reservation().withInstances(new Instance()
+                    .withInstanceId("i-1").withRootDeviceType(rootDeviceType)
+                    .withState(new InstanceState().withName(instanceState)).withBlockDeviceMappings(
+                        new InstanceBlockDeviceMapping().withDeviceName("/dev/sda1").withEbs(
+                            new EbsInstanceBlockDevice().withVolumeId("vol-root")),
+                        new InstanceBlockDeviceMapping().withDeviceName("/dev/sdf").withEbs(
+                            new EbsInstanceBlockDevice().withVolumeId("vol-cache")))));
+              } else if (name.equals("stopInstances")) {
+                instanceState = "stopping";
+              } else if (name.equals("detachVolume")) {
+                detached.add(((DetachVolumeRequest) args[0]).getVolumeId());
+                volumeState = "detaching";
+              } else if (name.equals("describeVolumes")) {
+                return new DescribeVolumesResult().withVolumes(new Volume().withVolumeId("vol-cache").withState(
+                    volumeState));
+              } else if (name.equals("createSnapshot")) {
+                snapshotted.add(((CreateSnapshotRequest) args[0]).getVolumeId());
+                return new CreateSnapshotResult().withSnapshot(new Snapshot().withSnapshotId("snap-new"));
+              } else if (name.equals("deleteSnapshot")) {
+                String id = ((DeleteSnapshotRequest) args[0]).getSnapshotId();
+                for (Snapshot s : new ArrayList<Snapshot>(snapshots)) {
+                  if (s.getSnapshotId().equals(id)) {
+                    snapshots.remove(s);
+                  }
+                }
+              }
+              return null; // createTags and the like
+            }
+          });
+    }
+  }).handle("accessKey", "secretKey", null);
+
+  @Test
+  public void testNewVolumeIsEmptyWithoutSnapshot() {
+    BlockDeviceMapping mapping = new CacheVolumes("controller").mappingFor(ec2, "linux", "/dev/sdf", 20);
+    assertEquals("/dev/sdf", mapping.getDeviceName());
+    assertNull(mapping.getEbs().getSnapshotId());
+    assertEquals(20, mapping.getEbs().getVolumeSize().intValue());
+    assertTrue(mapping.getEbs().getDeleteOnTermination());
+  }
+
+  @Test
+  public void testNewVolumeIsFromNewestSnapshot() {
+    addSnapshot("snap-1", 1000);
+    addSnapshot("snap-2", 2000);
+    BlockDeviceMapping mapping = new CacheVolumes("controller").mappingFor(ec2, "linux", "/dev/sdf", 5);
+    assertEquals("snap-2", mapping.getEbs().getSnapshotId());
+    assertNull(mapping.getEbs().getVolumeSize()); // the snapshot's own size
+  }
+
+  private CacheVolumes.Save save(String device) {
+    return new CacheVolumes("controller").new Save(ec2, "i-1", "linux", device);
+  }
+
+  @Test
+  public void testSnapshotOfCacheVolumeAndRetention() {
+    for (int i = 1; i <= 4; i++) {
+      addSnapshot("snap-" + i, i * 1000);
+    }
+    CacheVolumes.Save save = save("/dev/sdf");
+    assertFalse(save.step());
+    assertEquals("stopping", instanceState);
+    // nothing is snapshotted while the instance may still write to the volume
+    assertFalse(save.step());
+    assertTrue(snapshotted.isEmpty());
+
+    instanceState = "stopped";
+    assertTrue(save.step());
+    assertEquals("snap-new", save.snapshotId);
+    assertEquals("vol-cache", snapshotted.get(0));
+
+    // the newest three completed snapshots survive
+    assertEquals(CacheVolumes.KEEP_SNAPSHOTS, snapshots.size());
+    assertEquals("snap-2", snapshots.get(0).getSnapshotId());
+  }
+
+  @Test
+  public void testVolumeOfInstanceStoreInstanceIsDetachedFirst() {
+    rootDeviceType = "instance-store";
+    CacheVolumes.Save save = save("/dev/sdf");
+    assertFalse(save.step());
+    assertEquals("[vol-cache]", detached.toString());
+    assertEquals("running", instanceState);
+    assertFalse(save.step());
+    assertTrue(snapshotted.isEmpty());
+
+    volumeState = "available";
+    assertTrue(save.step());
+    assertEquals("vol-cache", snapshotted.get(0));
+  }
+
+  @Test
+  public void testNoSnapshotWithoutCacheVolume() {
+    CacheVolumes.Save save = save("/dev/sdg");
+    assertTrue(save.step());
+    assertNull(save.snapshotId);
+    assertTrue(snapshotted.isEmpty());
+    assertEquals("running", instanceState);
+  }
+}
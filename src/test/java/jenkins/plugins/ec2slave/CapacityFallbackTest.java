@@ -0,0 +1,101 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+
+public class CapacityFallbackTest {
+
+  private static String toString(List<CapacityFallback.Choice> choices) {
+    return choices.toString();
+  }
+
+  @Test
+  public void testSplit() {
+    assertEquals(Arrays.asList("m1.large", "c1.xlarge", "m1.small"),
+        CapacityFallback.split(" m1.large,c1.xlarge  m1.small, m1.large"));
+    assertTrue(CapacityFallback.split("").isEmpty());
+    assertTrue(CapacityFallback.split(null).isEmpty());
+  }
+
+  @Test
+  public void testTypesBeforeZones() {
+    CapacityFallback fallback = new CapacityFallback(1000);
+    assertEquals("[m1.large in us-east-1a, m1.large in us-east-1b, c1.xlarge in us-east-1a, c1.xlarge in us-east-1b]",
+        toString(fallback.choices("account", "m1.large, c1.xlarge", "us-east-1a us-east-1b", 0)));
+
+    List<CapacityFallback.Choice> anyZone = fallback.choices("account", "m1.large", "", 0);
+    assertEquals(1, anyZone.size());
+    assertNull(anyZone.get(0).availabilityZone);
+  }
+
+  @Test
+  public void testFailedChoiceCoolsDown() {
+    CapacityFallback fallback = new CapacityFallback(1000);
+    List<CapacityFallback.Choice> choices = fallback.choices("account", "m1.large, c1.xlarge", "", 0);
+    fallback.failed("account", choices.get(0), 100);
+
+    assertEquals("[c1.xlarge]", toString(fallback.choices("account", "m1.large, c1.xlarge", "", 500)));
+    // other accounts have capacity of their own
+    assertEquals("[m1.large, c1.xlarge]", toString(fallback.choices("other", "m1.large, c1.xlarge", "", 500)));
+    // cooled down
+    assertEquals("[m1.large, c1.xlarge]", toString(fallback.choices("account", "m1.large, c1.xlarge", "", 1100)));
+
+    // a launch that got through ends the cooldown early
+    fallback.failed("account", choices.get(0), 2000);
+    fallback.succeeded("account", choices.get(0));
+    assertEquals("[m1.large, c1.xlarge]", toString(fallback.choices("account", "m1.large, c1.xlarge", "", 2100)));
+  }
+
+  @Test
+  public void testEverythingCoolingDownIsTriedAnyway() {
+    CapacityFallback fallback = new CapacityFallback(1000);
+    for (CapacityFallback.Choice c : fallback.choices("account", "m1.large, c1.xlarge", "", 0)) {
+      fallback.failed("account", c, 0);
+    }
+    assertEquals("[m1.large, c1.xlarge]", toString(fallback.choices("account", "m1.large, c1.xlarge", "", 500)));
+  }
+
+  @Test
+  public void testCapacityErrors() {
+    AmazonServiceException capacity = new AmazonServiceException("We currently do not have sufficient capacity");
+    capacity.setErrorCode("InsufficientInstanceCapacity");
+    assertTrue(CapacityFallback.isCapacityError(capacity));
+
+    AmazonServiceException auth = new AmazonServiceException("AWS was not able to validate the provided access credentials");
+    auth.setErrorCode("AuthFailure");
+    assertFalse(CapacityFallback.isCapacityError(auth));
+    assertFalse(CapacityFallback.isCapacityError(new IllegalStateException()));
+  }
+}
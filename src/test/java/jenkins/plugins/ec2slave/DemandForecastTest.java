@@ -0,0 +1,68 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class DemandForecastTest {
+
+  @Test
+  public void testGrowingQueueIsPredictedToGrow() {
+    DemandForecast f = new DemandForecast();
+    for (int queued = 0; queued <= 10; queued += 2) {
+      f.sample(queued);
+    }
+    assertTrue(f.predict(0) > 5);
+    assertTrue(f.predict(12) > 10);
+    assertTrue(PredictiveProvisioner.demandOf(f, 0) >= 10);
+    assertTrue(PredictiveProvisioner.demandOf(f, 12) > 10);
+  }
+
+  @Test
+  public void testDrainedQueueGoesQuiet() {
+    DemandForecast f = new DemandForecast();
+    f.sample(8);
+    f.sample(4);
+    assertFalse(f.isQuiet());
+    // never predicts a negative queue
+    assertEquals(0, f.predict(100), 0);
+    for (int i = 0; i < 30; i++) {
+      f.sample(0);
+    }
+    assertTrue(f.isQuiet());
+    assertEquals(0, PredictiveProvisioner.demandOf(f, 12));
+  }
+
+  @Test
+  public void testDemandNeverBelowQueued() {
+    DemandForecast f = new DemandForecast();
+    f.sample(10);
+    f.sample(3);
+    assertEquals(3, PredictiveProvisioner.demandOf(f, 12));
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+
+public class EC2ClientRegistryTest {
+
+  private final AtomicInteger created = new AtomicInteger();
+
+  private final AtomicInteger shutdown = new AtomicInteger();
+
+  private EC2ClientRegistry registry;
+
+  @Before
+  public void setup() {
+    registry = new EC2ClientRegistry(new EC2ClientRegistry.ClientFactory() {
+      public AmazonEC2 create(String accessKey, String secretKey, String endpoint) {
+        created.incrementAndGet();
+        return (AmazonEC2) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { AmazonEC2.class },
+            new InvocationHandler() {
+              public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("shutdown")) {
+                  shutdown.incrementAndGet();
+                }
+                return null;
+              }
+            });
+      }
+    });
+  }
+
+  @Test
+  public void testSameCredentialsShareClient() {
+    AmazonEC2 a = registry.handle("key", "secret", null).get();
+    AmazonEC2 b = registry.handle("key", "secret", null).get();
+    AmazonEC2 c = registry.handle("key", "secret", "ec2.eu-west-1.amazonaws.com").get();
+    AmazonEC2 d = registry.handle("key", "other secret", null).get();
+
+    assertSame(a, b);
+    assertNotSame(a, c);
+    assertNotSame(a, d);
+    assertEquals(3, created.get());
+  }
+
+  @Test
+  public void testRetainedClientIsNotEvicted() {
+    EC2ClientRegistry.Handle retained = registry.handle("key", "secret", null);
+    retained.retain();
+    retained.retain();
+    registry.handle("idle", "secret", null).get();
+
+    assertEquals(1, registry.evictIdleBefore(Long.MAX_VALUE));
+    assertEquals(1, registry.size());
+
+    // retain is idempotent per handle, so a single release frees it
+    retained.release();
+    assertEquals(1, registry.evictIdleBefore(Long.MAX_VALUE));
+    assertEquals(0, registry.size());
+    assertEquals(2, shutdown.get());
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+
+public class EC2LookupCacheTest {
+
+  private final EC2ClientRegistry.Handle ec2 = new EC2ClientRegistry(new EC2ClientRegistry.ClientFactory() {
+    public AmazonEC2 create(String accessKey, String secretKey, String endpoint) {
+      return null; // the loaders below never touch the client
+    }
+  }).handle("accessKey", "secretKey", null);
+
+  private final AtomicInteger loads = new AtomicInteger();
+
+  private EC2LookupCache.Loader<String> loader(final String value) {
+    return new EC2LookupCache.Loader<String>() {
+      public String load(AmazonEC2 client) {
+        loads.incrementAndGet();
+        return value;
+      }
+    };
+  }
+
+  @Test
+  public void testCachedUntilExpired() throws InterruptedException {
+    EC2LookupCache cache = new EC2LookupCache(100, 10);
+    assertEquals("a", cache.get(ec2, "x", loader("a")));
+    assertEquals("a", cache.get(ec2, "x", loader("b")));
+    assertEquals(1, loads.get());
+    Thread.sleep(150);
+    assertEquals("b", cache.get(ec2, "x", loader("b")));
+    assertEquals(2, loads.get());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedIsEvicted() {
+    EC2LookupCache cache = new EC2LookupCache(60 * 1000, 2);
+    cache.get(ec2, "x", loader("x"));
+    cache.get(ec2, "y", loader("y"));
+    cache.get(ec2, "x", loader("x"));
+    cache.get(ec2, "z", loader("z"));
+    assertEquals(2, cache.size());
+    assertEquals(3, loads.get());
+    cache.get(ec2, "x", loader("x"));
+    assertEquals(3, loads.get());
+    cache.get(ec2, "y", loader("y"));
+    assertEquals(4, loads.get());
+  }
+
+  @Test
+  public void testFailuresAreNotCached() {
+    EC2LookupCache cache = new EC2LookupCache(60 * 1000, 10);
+    try {
+      cache.get(ec2, "x", new EC2LookupCache.Loader<String>() {
+        public String load(AmazonEC2 client) {
+          throw new AmazonServiceException("AuthFailure");
+        }
+      });
+      fail();
+    } catch (AmazonServiceException e) {
+      // expected
+    }
+    assertEquals("a", cache.get(ec2, "x", loader("a")));
+  }
+
+  @Test
+  public void testConcurrentLookupsShareOneLoad() throws InterruptedException {
+    final EC2LookupCache cache = new EC2LookupCache(60 * 1000, 10);
+    final CountDownLatch release = new CountDownLatch(1);
+    final EC2LookupCache.Loader<String> slow = new EC2LookupCache.Loader<String>() {
+      public String load(AmazonEC2 client) {
+        loads.incrementAndGet();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+        return "a";
+      }
+    };
+
+    final int threads = 10;
+    final CountDownLatch done = new CountDownLatch(threads);
+    final AtomicInteger hits = new AtomicInteger();
+    for (int i = 0; i < threads; i++) {
+      new Thread() {
+        public void run() {
+          if ("a".equals(cache.get(ec2, "x", slow))) {
+            hits.incrementAndGet();
+          }
+          done.countDown();
+        }
+      }.start();
+    }
+    Thread.sleep(100);
+    release.countDown();
+    done.await(10, TimeUnit.SECONDS);
+
+    assertEquals(threads, hits.get());
+    assertEquals(1, loads.get());
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+
+public class EC2MetricsTest {
+
+  @Test
+  public void testPercentiles() {
+    LatencyHistogram h = new LatencyHistogram();
+    for (int i = 1; i <= 1000; i++) {
+      h.record(i);
+    }
+    assertEquals(1000, h.getCount());
+    assertEquals(1000, h.getMax());
+    assertEquals(500, h.getMean());
+    assertWithin(500, h.getPercentile(0.5));
+    assertWithin(990, h.getPercentile(0.99));
+  }
+
+  @Test
+  public void testBuckets() {
+    for (long v = 0; v < 100000; v += 7) {
+      int i = LatencyHistogram.indexOf(v);
+      assertTrue(v <= LatencyHistogram.upperBoundOf(i));
+      assertTrue(i == 0 || v > LatencyHistogram.upperBoundOf(i - 1));
+    }
+  }
+
+  @Test
+  public void testApiCallsAreCounted() {
+    EC2Metrics metrics = new EC2Metrics();
+    AmazonEC2 ec2 = metrics.instrument((AmazonEC2) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class[] { AmazonEC2.class }, new InvocationHandler() {
+          private int calls;
+
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if (++calls == 2) {
+              AmazonServiceException e = new AmazonServiceException("Request limit exceeded.");
+              e.setErrorCode("RequestLimitExceeded");
+              throw e;
+            }
+            return new DescribeInstancesResult();
+          }
+        }));
+
+    ec2.describeInstances();
+    try {
+      ec2.describeInstances();
+      fail();
+    } catch (AmazonServiceException e) {
+      // expected, the instrumented client passes errors on unchanged
+    }
+    ec2.describeInstances();
+
+    EC2Metrics.OperationStats stats = metrics.getOperations().get(0);
+    assertEquals("describeInstances", stats.getOperation());
+    assertEquals(3, stats.getCalls());
+    assertEquals(1, stats.getErrors());
+    assertEquals(1, stats.getThrottles());
+  }
+
+  private static void assertWithin(long expected, long actual) {
+    assertTrue("expected about " + expected + " but was " + actual, Math.abs(actual - expected) <= expected / 8);
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+
+public class EC2RateLimiterTest {
+
+  @Test
+  public void testBurstThenSteadyRate() {
+    EC2RateLimiter.TokenBucket bucket = new EC2RateLimiter.TokenBucket(10, 2);
+    assertEquals(0, bucket.reserve());
+    assertEquals(0, bucket.reserve());
+    long wait = bucket.reserve();
+    assertTrue("waited " + wait, wait > 50 && wait <= 100);
+    wait = bucket.reserve();
+    assertTrue("waited " + wait, wait > 150 && wait <= 200);
+  }
+
+  /**
+   * A client which throttles its first two calls
+   */
+  private AmazonEC2 throttling(final AtomicInteger calls) {
+    return (AmazonEC2) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { AmazonEC2.class },
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if (calls.incrementAndGet() <= 2) {
+              AmazonServiceException e = new AmazonServiceException("Request limit exceeded.");
+              e.setErrorCode("RequestLimitExceeded");
+              throw e;
+            }
+            return new DescribeInstancesResult();
+          }
+        });
+  }
+
+  @Test
+  public void testThrottledCallsAreRetried() {
+    final AtomicInteger calls = new AtomicInteger();
+    AmazonEC2 raw = throttling(calls);
+
+    long backoff = EC2RateLimiter.BASE_BACKOFF_MILLIS;
+    EC2RateLimiter.BASE_BACKOFF_MILLIS = 10;
+    try {
+      EC2RateLimiter limiter = new EC2RateLimiter();
+      double rate = limiter.describe.getRate();
+      limiter.limit(raw).describeInstances();
+      assertEquals(3, calls.get());
+      assertTrue(limiter.describe.getRate() < rate);
+    } finally {
+      EC2RateLimiter.BASE_BACKOFF_MILLIS = backoff;
+    }
+  }
+
+  @Test
+  public void testThrottledCallsFailFastOnSharedThreads() throws InterruptedException {
+    final AtomicInteger calls = new AtomicInteger();
+    final EC2RateLimiter limiter = new EC2RateLimiter();
+    final AmazonEC2 ec2 = limiter.limit(throttling(calls));
+    final AtomicReference<Throwable> thrown = new AtomicReference<Throwable>();
+    Thread t = EC2RateLimiter.failFast(Executors.defaultThreadFactory()).newThread(new Runnable() {
+      public void run() {
+        try {
+          ec2.describeInstances();
+        } catch (Throwable e) {
+          thrown.set(e);
+        }
+      }
+    });
+    t.start();
+    t.join(10 * 1000);
+    assertEquals(1, calls.get());
+    assertTrue(EC2Metrics.isThrottle(thrown.get()));
+    // the bucket still slows down for everybody else
+    assertTrue(limiter.describe.getRate() < EC2RateLimiter.DESCRIBE_PER_SECOND);
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class ExecutorSizerTest {
+
+  private static final InstanceTypes.Spec MICRO = new InstanceTypes.Spec(1, 613);
+
+  private static final InstanceTypes.Spec C_16 = new InstanceTypes.Spec(16, 30720);
+
+  @Test
+  public void testOnePerVcpu() {
+    assertEquals(1, ExecutorSizer.executorsFor(MICRO, 0, 0));
+    assertEquals(16, ExecutorSizer.executorsFor(C_16, 0, 0));
+  }
+
+  @Test
+  public void testMemoryHeadroom() {
+    // (30720 - 512) / 4096
+    assertEquals(7, ExecutorSizer.executorsFor(C_16, 4096, 0));
+    // never less than one, even if it does not fit
+    assertEquals(1, ExecutorSizer.executorsFor(MICRO, 1024, 0));
+  }
+
+  @Test
+  public void testAdjustToLoad() {
+    // overloaded
+    assertEquals(-1, ExecutorSizer.adjust(C_16, 0, 0, 40.0, 0));
+    // busy executors but an idle machine, up to two per vCPU
+    assertEquals(1, ExecutorSizer.adjust(C_16, 0, 0, 2.0, 0));
+    assertEquals(16, ExecutorSizer.adjust(C_16, 0, 16, 2.0, 0));
+    assertEquals(32, ExecutorSizer.executorsFor(C_16, 0, 16));
+    // idle executors, or a load in between, change nothing
+    assertEquals(0, ExecutorSizer.adjust(C_16, 0, 0, 2.0, 3));
+    assertEquals(0, ExecutorSizer.adjust(C_16, 0, 0, 16.0, 0));
+    // no load average
+    assertEquals(0, ExecutorSizer.adjust(C_16, 0, 0, -1, 0));
+    // never below one executor
+    assertEquals(0, ExecutorSizer.adjust(MICRO, 0, 0, 5.0, 0));
+    assertEquals(1, ExecutorSizer.executorsFor(MICRO, 0, -5));
+  }
+
+  @Test
+  public void testAdjustmentIsKeptByNodeName() {
+    ExecutorSizer.setAdjustment("sized", 3);
+    ExecutorSizer.setAdjustment("deleted", -1);
+    assertEquals(3, ExecutorSizer.adjustmentOf("sized"));
+
+    ExecutorSizer.retainAdjustments(Collections.singleton("sized"));
+    assertEquals(3, ExecutorSizer.adjustmentOf("sized"));
+    assertEquals(0, ExecutorSizer.adjustmentOf("deleted"));
+  }
+}
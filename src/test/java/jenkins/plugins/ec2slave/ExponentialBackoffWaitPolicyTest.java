@@ -0,0 +1,64 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ExponentialBackoffWaitPolicyTest {
+
+  @Test
+  public void testDelaysStayWithinBounds() {
+    LaunchWaitPolicy.Schedule schedule = new ExponentialBackoffWaitPolicy(100, 1000, 60 * 1000).start();
+    assertEquals(100, schedule.nextDelayMillis());
+    for (int i = 0; i < 1000; i++) {
+      long delay = schedule.nextDelayMillis();
+      assertTrue("delay " + delay, delay >= 100 && delay <= 1000);
+    }
+  }
+
+  @Test
+  public void testSchedulesAreJittered() {
+    ExponentialBackoffWaitPolicy policy = new ExponentialBackoffWaitPolicy(100, 100 * 1000, 60 * 1000);
+    LaunchWaitPolicy.Schedule a = policy.start(), b = policy.start();
+    int same = 0;
+    for (int i = 0; i < 10; i++) {
+      if (a.nextDelayMillis() == b.nextDelayMillis()) {
+        same++;
+      }
+    }
+    // only the very first delay is deterministic
+    assertTrue(same < 5);
+  }
+
+  @Test
+  public void testDeadline() throws InterruptedException {
+    LaunchWaitPolicy.Schedule schedule = new ExponentialBackoffWaitPolicy(1000, 1000, 50).start();
+    assertTrue(schedule.nextDelayMillis() <= 50);
+    Thread.sleep(60);
+    assertEquals(-1, schedule.nextDelayMillis());
+  }
+}
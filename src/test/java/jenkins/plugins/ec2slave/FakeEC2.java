@@ -0,0 +1,385 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.amazonaws.services.ec2.model.RunInstancesResult;
+import com.amazonaws.services.ec2.model.StartInstancesRequest;
+import com.amazonaws.services.ec2.model.StartInstancesResult;
+import com.amazonaws.services.ec2.model.StopInstancesRequest;
+import com.amazonaws.services.ec2.model.StopInstancesResult;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import com.amazonaws.services.ec2.model.TerminateInstancesResult;
+
+/**
+ * An in-process stand-in for EC2 that the plugin can be pointed at, see
+ * {@link #handle()}.  It knows the calls a launch and a disconnect make and
+ * plays them out against instances that only exist in memory:
+ * <ul>
+ * <li>instances stay pending for a random time within the configured bounds</li>
+ * <li>every call takes the configured latency</li>
+ * <li>a configured share of the calls, CreateTags included, is turned down as
+ * throttled, or the next few calls of an operation, see {@link #throttle}</li>
+ * <li>RunInstances fails with InsufficientInstanceCapacity once the configured
+ * number of instances is alive</li>
+ * </ul>
+ * Calls are counted per operation.
+ *
+ * @author Aaron Phillips
+ */
+final class FakeEC2 implements InvocationHandler {
+
+  private static final AtomicInteger ACCOUNTS = new AtomicInteger();
+
+  /**
+   * An instance as far as EC2 is concerned
+   */
+  private static final class FakeInstance {
+    private final String instanceId, instanceType;
+    private final long runningAt;
+    private String state = "pending";
+    private final List<Tag> tags = new ArrayList<Tag>();
+
+    private FakeInstance(String instanceId, String instanceType, long runningAt) {
+      this.instanceId = instanceId;
+      this.instanceType = instanceType;
+      this.runningAt = runningAt;
+    }
+
+    private Instance describe(long now) {
+      if (state.equals("pending") && now >= runningAt) {
+        state = "running";
+      }
+      Instance i = new Instance().withInstanceId(instanceId).withInstanceType(instanceType)
+          .withState(new InstanceState().withName(state)).withRootDeviceType("ebs")
+          .withTags(new ArrayList<Tag>(tags));
+      if (state.equals("running")) {
+        i.setPublicDnsName(instanceId + ".fake.internal");
+      }
+      return i;
+    }
+  }
+
+  /* pollers and the like are per account, so every fake is an account of its own */
+  private final String accessKey = "fake" + ACCOUNTS.incrementAndGet();
+
+  private final Random random = new Random();
+
+  private long minPendingMillis = 1000, maxPendingMillis = 3000;
+
+  private long latencyMillis = 0;
+
+  private double throttleRate = 0;
+
+  private int capacity = Integer.MAX_VALUE;
+
+  /* everything below is guarded by this */
+
+  private final Map<String, FakeInstance> instances = new LinkedHashMap<String, FakeInstance>();
+
+  private final Map<String, AtomicInteger> calls = new HashMap<String, AtomicInteger>();
+
+  private final Map<String, Integer> throttled = new HashMap<String, Integer>(); /* operation -> calls left */
+
+  private int nextId;
+
+  /**
+   * Sets how long a new or started instance stays pending
+   */
+  public FakeEC2 setPending(long minMillis, long maxMillis) {
+    this.minPendingMillis = minMillis;
+    this.maxPendingMillis = Math.max(minMillis, maxMillis);
+    return this;
+  }
+
+  /**
+   * Sets how long every call takes
+   */
+  public FakeEC2 setLatency(long millis) {
+    this.latencyMillis = millis;
+    return this;
+  }
+
+  /**
+   * Sets the share of calls, between 0 and 1, that are turned down as throttled
+   */
+  public FakeEC2 setThrottleRate(double rate) {
+    this.throttleRate = rate;
+    return this;
+  }
+
+  /**
+   * Turns down the next calls of the given operation as throttled
+   */
+  public synchronized FakeEC2 throttle(String operation, int calls) {
+    throttled.put(operation, calls);
+    return this;
+  }
+
+  /**
+   * Sets how many instances can be alive at once
+   */
+  public FakeEC2 setCapacity(int capacity) {
+    this.capacity = capacity;
+    return this;
+  }
+
+  /**
+   * Returns a client talking to this fake
+   */
+  public AmazonEC2 client() {
+    return (AmazonEC2) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { AmazonEC2.class }, this);
+  }
+
+  /**
+   * Returns a handle to a shared client talking to this fake, as the plugin would
+   * get one from the {@link EC2ClientRegistry}
+   */
+  public EC2ClientRegistry.Handle handle() {
+    final AmazonEC2 client = client();
+    return new EC2ClientRegistry(new EC2ClientRegistry.ClientFactory() {
+      public AmazonEC2 create(String accessKey, String secretKey, String endpoint) {
+        return client;
+      }
+    }).handle(accessKey, "fakeSecretKey", null);
+  }
+
+  /**
+   * Returns how often each operation has been called
+   */
+  public synchronized Map<String, Integer> getCalls() {
+    Map<String, Integer> counts = new HashMap<String, Integer>();
+    for (Map.Entry<String, AtomicInteger> e : calls.entrySet()) {
+      counts.put(e.getKey(), e.getValue().get());
+    }
+    return counts;
+  }
+
+  public synchronized int getCalls(String operation) {
+    AtomicInteger count = calls.get(operation);
+    return count == null ? 0 : count.get();
+  }
+
+  /**
+   * Returns the IDs of the instances that are neither terminated nor on their way there
+   */
+  public synchronized List<String> getLiveInstances() {
+    List<String> live = new ArrayList<String>();
+    for (FakeInstance i : instances.values()) {
+      if (isAlive(i)) {
+        live.add(i.instanceId);
+      }
+    }
+    return live;
+  }
+
+  /**
+   * Whether the given instance carries a tag with the given key
+   */
+  public synchronized boolean isTagged(String instanceId, String key) {
+    FakeInstance i = instances.get(instanceId);
+    if (i != null) {
+      for (Tag t : i.tags) {
+        if (t.getKey().equals(key)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  public synchronized int getInstanceCount() {
+    return instances.size();
+  }
+
+  private static boolean isAlive(FakeInstance i) {
+    return !i.state.equals("terminated") && !i.state.equals("shutting-down");
+  }
+
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    if (method.getDeclaringClass() == Object.class) {
+      return method.invoke(this, args);
+    }
+    String op = method.getName();
+    if (op.equals("shutdown") || op.equals("setEndpoint")) {
+      return null;
+    }
+    boolean throttle;
+    synchronized (this) {
+      AtomicInteger count = calls.get(op);
+      if (count == null) {
+        count = new AtomicInteger();
+        calls.put(op, count);
+      }
+      count.incrementAndGet();
+      Integer left = throttled.get(op);
+      throttle = left != null && left > 0;
+      if (throttle) {
+        throttled.put(op, left - 1);
+      }
+    }
+    if (latencyMillis > 0) {
+      Thread.sleep(latencyMillis);
+    }
+    if (throttle || (throttleRate > 0 && random.nextDouble() < throttleRate)) {
+      throw error("RequestLimitExceeded", "Request limit exceeded.");
+    }
+
+    if (op.equals("runInstances")) {
+      return runInstances((RunInstancesRequest) args[0]);
+    } else if (op.equals("describeInstances")) {
+      return describeInstances((DescribeInstancesRequest) args[0]);
+    } else if (op.equals("terminateInstances")) {
+      setState(((TerminateInstancesRequest) args[0]).getInstanceIds(), "terminated");
+      return new TerminateInstancesResult();
+    } else if (op.equals("stopInstances")) {
+      setState(((StopInstancesRequest) args[0]).getInstanceIds(), "stopped");
+      return new StopInstancesResult();
+    } else if (op.equals("startInstances")) {
+      start(((StartInstancesRequest) args[0]).getInstanceIds());
+      return new StartInstancesResult();
+    } else if (op.equals("createTags")) {
+      createTags((CreateTagsRequest) args[0]);
+      return null;
+    }
+    throw new UnsupportedOperationException(op);
+  }
+
+  private synchronized RunInstancesResult runInstances(RunInstancesRequest req) {
+    int alive = getLiveInstances().size();
+    int n = Math.min(req.getMaxCount(), capacity - alive);
+    if (n < req.getMinCount()) {
+      throw error("InsufficientInstanceCapacity", "We currently do not have sufficient " + req.getInstanceType()
+          + " capacity.");
+    }
+    long now = System.currentTimeMillis();
+    List<Instance> launched = new ArrayList<Instance>();
+    for (int i = 0; i < n; i++) {
+      FakeInstance instance = new FakeInstance(String.format("i-%08x", ++nextId), req.getInstanceType(), now
+          + pendingMillis());
+      instances.put(instance.instanceId, instance);
+      launched.add(instance.describe(now));
+    }
+    return new RunInstancesResult().withReservation(new Reservation().withInstances(launched));
+  }
+
+  private synchronized DescribeInstancesResult describeInstances(DescribeInstancesRequest req) {
+    long now = System.currentTimeMillis();
+    List<Instance> found = new ArrayList<Instance>();
+    if (!req.getInstanceIds().isEmpty()) {
+      // asking for an unknown instance by ID fails the call, as it does on EC2
+      for (String id : req.getInstanceIds()) {
+        if (!instances.containsKey(id)) {
+          throw error("InvalidInstanceID.NotFound", "The instance ID '" + id + "' does not exist");
+        }
+        found.add(instances.get(id).describe(now));
+      }
+    } else {
+      Collection<String> ids = null;
+      for (Filter f : req.getFilters()) {
+        if (f.getName().equals("instance-id")) {
+          ids = f.getValues();
+        } else {
+          throw new UnsupportedOperationException("filter " + f.getName());
+        }
+      }
+      for (FakeInstance i : instances.values()) {
+        if (ids == null || ids.contains(i.instanceId)) {
+          found.add(i.describe(now));
+        }
+      }
+    }
+    return new DescribeInstancesResult().withReservations(new Reservation().withInstances(found));
+  }
+
+  private synchronized void setState(List<String> ids, String state) {
+    for (String id : ids) {
+      if (!instances.containsKey(id)) {
+        throw error("InvalidInstanceID.NotFound", "The instance ID '" + id + "' does not exist");
+      }
+    }
+    for (String id : ids) {
+      FakeInstance i = instances.get(id);
+      if (!i.state.equals("terminated")) {
+        i.state = state;
+      }
+    }
+  }
+
+  private synchronized void start(List<String> ids) {
+    long now = System.currentTimeMillis();
+    for (String id : ids) {
+      FakeInstance old = instances.get(id);
+      if (old == null || !old.state.equals("stopped")) {
+        throw error("IncorrectInstanceState", "The instance '" + id + "' is not in a state from which it can be started.");
+      }
+      FakeInstance started = new FakeInstance(id, old.instanceType, now + pendingMillis());
+      started.tags.addAll(old.tags);
+      instances.put(id, started);
+    }
+  }
+
+  private synchronized void createTags(CreateTagsRequest req) {
+    for (String id : req.getResources()) {
+      FakeInstance i = instances.get(id);
+      if (i != null) {
+        i.tags.addAll(req.getTags());
+      }
+    }
+  }
+
+  private long pendingMillis() {
+    return minPendingMillis + (long) (random.nextDouble() * (maxPendingMillis - minPendingMillis));
+  }
+
+  private static AmazonServiceException error(String code, String message) {
+    AmazonServiceException e = new AmazonServiceException(message);
+    e.setErrorCode(code);
+    e.setStatusCode(code.equals("RequestLimitExceeded") ? 503 : 400);
+    e.setServiceName("AmazonEC2");
+    return e;
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class InboundAgentUserDataTest {
+
+  @Test
+  public void testQuote() {
+    assertEquals("'plain'", InboundAgentUserData.quote("plain"));
+    assertEquals("'it'\\''s'", InboundAgentUserData.quote("it's"));
+    assertEquals("'$HOME `x`'", InboundAgentUserData.quote("$HOME `x`"));
+  }
+
+  @Test
+  public void testScriptConnectsBackAsNode() {
+    String script = InboundAgentUserData.script("http://ci.example.com/", "s3cr3t", "ec2 node", "/home/ec2-user/jenkins");
+    assertTrue(script.startsWith("#!/bin/sh\n"));
+    assertTrue(script.contains("cd '/home/ec2-user/jenkins'"));
+    assertTrue(script.contains("curl -sf -o slave.jar 'http://ci.example.com/jnlpJars/slave.jar'"));
+    assertTrue(script.contains("-url 'http://ci.example.com/' 's3cr3t' 'ec2 node'\n"));
+  }
+
+  @Test
+  public void testScriptFetchesSecretWithCredentials() {
+    String script = InboundAgentUserData.fetchingScript("http://ci.example.com/", "ec2 node", "/home/ec2-user/jenkins",
+        "/etc/jenkins/credentials");
+    assertTrue(script.contains("curl -sf -u \"$(cat '/etc/jenkins/credentials')\" "
+        + "'http://ci.example.com/computer/ec2%20node/slave-agent.jnlp'"));
+    assertTrue(script.contains("-url 'http://ci.example.com/' \"$secret\" 'ec2 node'\n"));
+  }
+}
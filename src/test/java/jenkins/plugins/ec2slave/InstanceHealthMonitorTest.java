@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.StateReason;
+
+public class InstanceHealthMonitorTest {
+
+  private final AtomicInteger describeCalls = new AtomicInteger();
+
+  /**
+   * A handle to an EC2 client which knows i-running and i-stopped, and no other instance
+   */
+  private EC2ClientRegistry.Handle fakeEc2() {
+    final AmazonEC2 ec2 = (AmazonEC2) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { AmazonEC2.class },
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if (!method.getName().equals("describeInstances")) {
+              throw new UnsupportedOperationException(method.getName());
+            }
+            describeCalls.incrementAndGet();
+            DescribeInstancesRequest req = (DescribeInstancesRequest) args[0];
+            List<Instance> instances = new ArrayList<Instance>();
+            for (String id : req.getFilters().get(0).getValues()) {
+              if (id.equals("i-running")) {
+                instances.add(new Instance().withInstanceId(id).withState(new InstanceState().withName("running")));
+              } else if (id.equals("i-stopped")) {
+                instances.add(new Instance().withInstanceId(id).withState(new InstanceState().withName("stopped"))
+                    .withStateReason(new StateReason().withMessage("Server.ScheduledStop")));
+              }
+            }
+            return new DescribeInstancesResult().withReservations(new Reservation().withInstances(instances));
+          }
+        });
+    return new EC2ClientRegistry(new EC2ClientRegistry.ClientFactory() {
+      public AmazonEC2 create(String accessKey, String secretKey, String endpoint) {
+        return ec2;
+      }
+    }).handle("accessKey", "secretKey", null);
+  }
+
+  @Test
+  public void testOneDescribeForAllInstances() {
+    Map<String, String> problems = InstanceHealthMonitor.check(fakeEc2(),
+        Arrays.asList("i-running", "i-stopped", "i-gone"));
+    assertEquals(1, describeCalls.get());
+    assertEquals(3, problems.size());
+    assertNull(problems.get("i-running"));
+    assertEquals("instance is stopped (Server.ScheduledStop)", problems.get("i-stopped"));
+    assertEquals("instance is unknown to EC2", problems.get("i-gone"));
+  }
+
+  @Test
+  public void testUnhealthyAfterConsecutiveFailedChecks() {
+    InstanceHealthMonitor.NodeHealth h = new InstanceHealthMonitor.NodeHealth("node");
+    assertFalse(h.checked("i-1", "instance is stopped", 1));
+    assertEquals(InstanceHealthMonitor.State.FAILING, h.getState());
+    assertFalse(h.checked("i-1", null, 2));
+    assertEquals(InstanceHealthMonitor.State.HEALTHY, h.getState());
+
+    assertFalse(h.checked("i-1", "instance is stopped", 3));
+    assertTrue(h.checked("i-1", "instance is stopped", 4));
+    assertEquals(2, h.getFailedChecks());
+
+    // only reported once
+    h.setState(InstanceHealthMonitor.State.DRAINING);
+    assertFalse(h.checked("i-1", "instance is stopped", 5));
+
+    // a new instance starts with a clean slate
+    h.setState(InstanceHealthMonitor.State.HEALTHY);
+    assertFalse(h.checked("i-2", "instance is stopped", 6));
+    assertEquals(1, h.getFailedChecks());
+  }
+
+  @Test
+  public void testReplacementIsOverdueAfterTimeout() {
+    InstanceHealthMonitor.NodeHealth h = new InstanceHealthMonitor.NodeHealth("node");
+    h.checked("i-1", "instance is stopped", 1);
+    h.setState(InstanceHealthMonitor.State.REPLACING);
+    long now = System.currentTimeMillis();
+    assertFalse(h.isReplaceOverdue(now));
+    assertTrue(h.isReplaceOverdue(now + InstanceHealthMonitor.REPLACE_TIMEOUT_MINUTES * 60000L + 1));
+
+    h.setState(InstanceHealthMonitor.State.FAILED);
+    assertFalse(h.isReplaceOverdue(now + InstanceHealthMonitor.REPLACE_TIMEOUT_MINUTES * 60000L + 1));
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class InstancePoolTest {
+
+  private final InstancePool pool = new InstancePool();
+
+  private final EC2ClientRegistry.Handle ec2 = new FakeEC2().handle();
+
+  private InstancePool.Entry entry(String instanceId, long launchedAt, long maxAgeMillis) {
+    EC2ClientRegistry.Handle retained = ec2.copy();
+    retained.retain();
+    return new InstancePool.Entry(instanceId, retained, launchedAt, maxAgeMillis);
+  }
+
+  private static String poolKey(String instanceType, String availabilityZone) {
+    return new EC2ImageLaunchWrapper(null, "fakeSecretKey", "fakeAccessKey", "ami-pool", instanceType, "keypair",
+        "default", availabilityZone).getPoolKey();
+  }
+
+  @Test
+  public void testMostRecentlyOfferedIsTakenFirst() {
+    long now = System.currentTimeMillis();
+    InstancePool.Entry older = entry("i-1", now, 0), newer = entry("i-2", now, 0);
+    assertTrue(pool.offer("spec", older, 2));
+    assertTrue(pool.offer("spec", newer, 2));
+    assertEquals(2, pool.size("spec"));
+
+    assertSame(newer, pool.take("spec"));
+    assertSame(older, pool.take("spec"));
+    assertNull(pool.take("spec"));
+    assertEquals(0, pool.size("spec"));
+  }
+
+  @Test
+  public void testFullPoolTurnsInstancesDown() {
+    long now = System.currentTimeMillis();
+    assertTrue(pool.offer("spec", entry("i-1", now, 0), 1));
+    assertFalse(pool.offer("spec", entry("i-2", now, 0), 1));
+    assertEquals(1, pool.size("spec"));
+    // other launch specs have pools of their own
+    assertTrue(pool.offer("other", entry("i-3", now, 0), 1));
+  }
+
+  @Test
+  public void testExpiredInstancesAreNotReused() {
+    long now = System.currentTimeMillis();
+    assertFalse(pool.offer("spec", entry("i-old", now - 2 * 60000L, 60000L), 2));
+
+    InstancePool.Entry expiring = entry("i-1", now - 60000L + 200, 60000L);
+    assertTrue(pool.offer("spec", expiring, 2));
+    assertTrue(expiring.isExpired(now + 1000));
+    assertFalse(expiring.isExpired(now));
+    // no maximum age, kept for good
+    assertFalse(entry("i-2", 0, 0).isExpired(now));
+  }
+
+  @Test
+  public void testExpiredInstanceIsSkippedByTake() throws InterruptedException {
+    long now = System.currentTimeMillis();
+    InstancePool.Entry fresh = entry("i-1", now, 0), expiring = entry("i-2", now - 60000L + 100, 60000L);
+    pool.offer("spec", fresh, 2);
+    pool.offer("spec", expiring, 2);
+    Thread.sleep(200);
+
+    assertSame(fresh, pool.take("spec"));
+    assertEquals(0, pool.size("spec"));
+  }
+
+  @Test
+  public void testEvictExpired() throws InterruptedException {
+    long now = System.currentTimeMillis();
+    pool.offer("spec", entry("i-1", now - 60000L + 100, 60000L), 2);
+    pool.offer("spec", entry("i-2", now, 0), 2);
+    Thread.sleep(200);
+
+    pool.evictExpired();
+    assertEquals(1, pool.size("spec"));
+  }
+
+  @Test
+  public void testKeyDiffersByTypeAndZone() {
+    String key = poolKey("m1.small", "us-east-1a");
+    assertEquals(key, poolKey("m1.small", "us-east-1a"));
+    assertFalse(key.equals(poolKey("m1.large", "us-east-1a")));
+    assertFalse(key.equals(poolKey("m1.small", "us-east-1b")));
+
+    assertTrue(pool.offer(key, entry("i-1", System.currentTimeMillis(), 0), 1));
+    assertNull(pool.take(poolKey("m1.small", "us-east-1b")));
+    assertNull(pool.take(poolKey("m1.large", "us-east-1a")));
+    assertEquals("i-1", pool.take(key).instanceId);
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import hudson.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.TerminateInstancesResult;
+
+public class InstanceReconcilerTest {
+
+  private static Instance instance(String id, String state, String nodeName) {
+    return new Instance().withInstanceId(id).withState(new InstanceState().withName(state)).withTags(
+        new Tag(InstanceReconciler.CONTROLLER_TAG, "controller"),
+        new Tag(InstanceReconciler.NODE_TAG, nodeName));
+  }
+
+  private final EC2ClientRegistry.Handle ec2 = new EC2ClientRegistry(new EC2ClientRegistry.ClientFactory() {
+    public AmazonEC2 create(String accessKey, String secretKey, String endpoint) {
+      return (AmazonEC2) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { AmazonEC2.class },
+          new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+              if (method.getName().equals("terminateInstances")) {
+                return new TerminateInstancesResult(); // orphans
+              }
+              return new DescribeInstancesResult().withReservations(new Reservation().withInstances(
+                  instance("i-a", "running", "a"), instance("i-b", "stopped", "b"),
+                  instance("i-c", "pending", "c"), instance("i-gone", "running", "gone")));
+            }
+          });
+    }
+  }).handle("accessKey", "secretKey", null);
+
+  private EC2ImageLaunchWrapper launcher(String nodeName, int poolSize) {
+    EC2ImageLaunchWrapper launcher = new EC2ImageLaunchWrapper(null, "secretKey", "accessKey", "ami-1",
+        "m1.small", "keypair", null, null);
+    launcher.setNodeName(nodeName);
+    launcher.setPool(poolSize, 0);
+    return launcher;
+  }
+
+  @Test
+  public void testInstancesAreReattachedPooledOrReaped() {
+    Map<String, EC2ImageLaunchWrapper> launchers = new HashMap<String, EC2ImageLaunchWrapper>();
+    launchers.put("a", launcher("a", 0));
+    launchers.put("b", launcher("b", 1));
+    launchers.put("c", launcher("c", 0));
+
+    InstanceReconciler reconciler = new InstanceReconciler("controller");
+    reconciler.reconcile(ec2, launchers);
+
+    assertEquals(2, reconciler.getClaimCount());
+    InstanceReconciler.Claim a = reconciler.claim("a", ec2);
+    assertEquals("i-a", a.instanceId);
+    assertEquals(false, a.pending);
+    assertEquals(true, reconciler.claim("c", ec2).pending);
+    assertNull(reconciler.claim("a", ec2));
+    assertNull(reconciler.claim("gone", ec2));
+
+    assertEquals(1, InstancePool.get().size(launchers.get("b").getPoolKey()));
+    assertEquals("i-b", InstancePool.get().take(launchers.get("b").getPoolKey()).instanceId);
+  }
+
+  @Test
+  public void testControllerIdIsGeneratedOnceAndKept() throws IOException {
+    File dir = Util.createTempDir();
+    try {
+      File file = new File(dir, InstanceReconciler.ID_FILE_NAME);
+      String id = InstanceReconciler.controllerId(file);
+      assertTrue(file.exists());
+      assertEquals(id, InstanceReconciler.controllerId(file));
+      assertFalse(id.equals(InstanceReconciler.controllerId(new File(dir, "other"))));
+    } finally {
+      Util.deleteRecursive(dir);
+    }
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.InstanceStateName;
+import com.amazonaws.services.ec2.model.Reservation;
+
+public class InstanceStatePollerTest {
+
+  private final AtomicInteger describeCalls = new AtomicInteger();
+
+  private EC2ClientRegistry registry;
+
+  /**
+   * A handle to an EC2 client which reports every instance it is asked about as running
+   */
+  private EC2ClientRegistry.Handle allRunning() {
+    final AmazonEC2 ec2 = (AmazonEC2) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { AmazonEC2.class },
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("shutdown")) {
+              return null;
+            }
+            if (!method.getName().equals("describeInstances")) {
+              throw new UnsupportedOperationException(method.getName());
+            }
+            describeCalls.incrementAndGet();
+            DescribeInstancesRequest req = (DescribeInstancesRequest) args[0];
+            List<Instance> instances = new ArrayList<Instance>();
+            for (String id : req.getFilters().get(0).getValues()) {
+              instances.add(new Instance().withInstanceId(id).withState(
+                  new InstanceState().withName(InstanceStateName.Running.toString())));
+            }
+            return new DescribeInstancesResult().withReservations(new Reservation().withInstances(instances));
+          }
+        });
+    registry = new EC2ClientRegistry(new EC2ClientRegistry.ClientFactory() {
+      public AmazonEC2 create(String accessKey, String secretKey, String endpoint) {
+        return ec2;
+      }
+    });
+    return registry.handle("accessKey", "secretKey", null);
+  }
+
+  @Test
+  public void testOneDescribePerTick() throws InterruptedException {
+    final InstanceStatePoller poller = new InstanceStatePoller(allRunning());
+    final int nodes = 50;
+    final CountDownLatch registered = new CountDownLatch(nodes);
+    final CountDownLatch done = new CountDownLatch(nodes);
+    final AtomicInteger running = new AtomicInteger();
+
+    for (int i = 0; i < nodes; i++) {
+      final String id = "i-" + i;
+      new Thread() {
+        public void run() {
+          try {
+            registered.countDown();
+            if (poller.awaitStateChange(id, InstanceStateName.Pending, 30, TimeUnit.SECONDS) == InstanceStateName.Running) {
+              running.incrementAndGet();
+            }
+          } catch (InterruptedException e) {
+            // counted as not running
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+
+    registered.await();
+    while (poller.getWatchCount() < nodes) {
+      Thread.sleep(10);
+    }
+    poller.tick();
+    done.await(30, TimeUnit.SECONDS);
+
+    assertEquals(nodes, running.get());
+    assertEquals(1, describeCalls.get());
+    assertEquals(0, poller.getWatchCount());
+  }
+
+  @Test
+  public void testPollScheduledAtRequestedDelay() throws InterruptedException {
+    InstanceStatePoller poller = new InstanceStatePoller(allRunning());
+    long start = System.currentTimeMillis();
+    assertEquals(InstanceStateName.Running,
+        poller.awaitStateChange("i-1", InstanceStateName.Pending, 100, TimeUnit.MILLISECONDS));
+    assertTrue(System.currentTimeMillis() - start >= 100);
+    assertEquals(1, describeCalls.get());
+    assertEquals(0, poller.getWatchCount());
+  }
+
+  @Test
+  public void testCallersRetainSurvivesPoll() throws InterruptedException {
+    EC2ClientRegistry.Handle ec2 = allRunning();
+    ec2.retain(); // as a launcher does for its instance
+    InstanceStatePoller poller = new InstanceStatePoller(ec2);
+    assertEquals(InstanceStateName.Running,
+        poller.awaitStateChange("i-1", InstanceStateName.Pending, 0, TimeUnit.MILLISECONDS));
+    assertEquals(0, poller.getWatchCount());
+
+    assertEquals(0, registry.evictIdleBefore(Long.MAX_VALUE));
+    ec2.release();
+    assertEquals(1, registry.evictIdleBefore(Long.MAX_VALUE));
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class InstanceTypesTest {
+
+  @Test
+  public void testBuiltIn() {
+    InstanceTypes types = new InstanceTypes();
+    assertEquals(1, types.get("t1.micro").vcpus);
+    assertEquals(16, types.get("c3.4xlarge").vcpus);
+    assertEquals(7168, types.get("c1.xlarge").memoryMb);
+    assertNull(types.get("x9.huge"));
+    assertNull(types.get(null));
+  }
+
+  @Test
+  public void testOverride() throws IOException {
+    InstanceTypes types = new InstanceTypes();
+    File f = File.createTempFile("instance-types", ".properties");
+    try {
+      FileWriter w = new FileWriter(f);
+      w.write("x9.huge=128, 1048576\nm1.small=2,2048\nbroken=many\n");
+      w.close();
+      types.reloadIfChanged(f);
+      assertEquals(128, types.get("x9.huge").vcpus);
+      assertEquals(2, types.get("m1.small").vcpus);
+      assertNull(types.get("broken"));
+      assertEquals(8, types.get("c1.xlarge").vcpus);
+
+      f.delete();
+      types.reloadIfChanged(f);
+      assertNull(types.get("x9.huge"));
+      assertEquals(1, types.get("m1.small").vcpus);
+    } finally {
+      f.delete();
+    }
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.amazonaws.services.ec2.model.RunInstancesResult;
+
+public class LaunchCoalescerTest {
+
+  private final AtomicInteger runCalls = new AtomicInteger();
+
+  private final AtomicInteger nextId = new AtomicInteger();
+
+  /* how many more RunInstances calls EC2 throttles */
+  private final AtomicInteger throttled = new AtomicInteger();
+
+  /**
+   * A client which starts at most <tt>capacity</tt> instances per RunInstances call
+   */
+  private EC2ClientRegistry.Handle ec2(final int capacity) {
+    final AmazonEC2 ec2 = (AmazonEC2) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class[] { AmazonEC2.class }, new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if (!method.getName().equals("runInstances")) {
+              throw new UnsupportedOperationException(method.getName());
+            }
+            if (throttled.getAndDecrement() > 0) {
+              AmazonServiceException e = new AmazonServiceException("Request limit exceeded.");
+              e.setErrorCode("RequestLimitExceeded");
+              throw e;
+            }
+            runCalls.incrementAndGet();
+            RunInstancesRequest req = (RunInstancesRequest) args[0];
+            List<Instance> instances = new ArrayList<Instance>();
+            for (int i = 0; i < Math.min(capacity, req.getMaxCount()); i++) {
+              instances.add(new Instance().withInstanceId("i-" + nextId.incrementAndGet()));
+            }
+            return new RunInstancesResult().withReservation(new Reservation().withInstances(instances));
+          }
+        });
+    return new EC2ClientRegistry(new EC2ClientRegistry.ClientFactory() {
+      public AmazonEC2 create(String accessKey, String secretKey, String endpoint) {
+        return ec2;
+      }
+    }).handle("accessKey", "secretKey", null);
+  }
+
+  private Set<String> launch(EC2ClientRegistry.Handle ec2, LaunchCoalescer coalescer, int nodes)
+      throws InterruptedException {
+    final Set<String> launched = Collections.synchronizedSet(new HashSet<String>());
+    final CountDownLatch done = new CountDownLatch(nodes);
+    for (int i = 0; i < nodes; i++) {
+      coalescer.submit("spec", ec2, new RunInstancesRequest().withImageId("ami-1"), new LaunchCoalescer.Callback() {
+        public void launched(String instanceId) {
+          launched.add(instanceId);
+          done.countDown();
+        }
+
+        public void failed(Throwable cause) {
+          done.countDown();
+        }
+      });
+    }
+    done.await(10, TimeUnit.SECONDS);
+    return launched;
+  }
+
+  @Test
+  public void testOneCallPerWindow() throws InterruptedException {
+    assertEquals(40, launch(ec2(100), new LaunchCoalescer(200, 100), 40).size());
+    assertEquals(1, runCalls.get());
+  }
+
+  @Test
+  public void testFullBatchIsSentRightAway() throws InterruptedException {
+    long start = System.currentTimeMillis();
+    assertEquals(10, launch(ec2(100), new LaunchCoalescer(60 * 1000, 10), 10).size());
+    assertEquals(1, runCalls.get());
+    assertEquals(true, System.currentTimeMillis() - start < 10 * 1000);
+  }
+
+  @Test
+  public void testPartialFulfilmentIsRetried() throws InterruptedException {
+    assertEquals(10, launch(ec2(4), new LaunchCoalescer(200, 100), 10).size());
+    assertEquals(3, runCalls.get());
+  }
+
+  @Test
+  public void testThrottledCallIsRetriedLater() throws InterruptedException {
+    long backoff = EC2RateLimiter.BASE_BACKOFF_MILLIS;
+    int rate = EC2RateLimiter.MUTATE_PER_SECOND;
+    EC2RateLimiter.BASE_BACKOFF_MILLIS = 10;
+    // keeps the bucket, which slows down with every throttle, out of the way
+    EC2RateLimiter.MUTATE_PER_SECOND = 1000;
+    try {
+      // the limiter passes each throttle on right away on the coalescer's threads
+      throttled.set(EC2RateLimiter.MAX_RETRIES);
+      assertEquals(5, launch(ec2(100), new LaunchCoalescer(50, 100), 5).size());
+      assertEquals(1, runCalls.get());
+    } finally {
+      EC2RateLimiter.BASE_BACKOFF_MILLIS = backoff;
+      EC2RateLimiter.MUTATE_PER_SECOND = rate;
+    }
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LaunchJournalTest {
+
+  private File file;
+
+  @Before
+  public void setUp() throws IOException {
+    file = File.createTempFile("journal", ".log");
+    file.delete();
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+    new File(file.getPath() + ".1").delete();
+  }
+
+  @Test
+  public void testKeepsLatestInMemory() {
+    LaunchJournal journal = new LaunchJournal(3);
+    for (int i = 0; i < 5; i++) {
+      journal.record(LaunchJournal.Type.LAUNCH_REQUESTED, "node" + i, null, null);
+    }
+    List<LaunchJournal.Event> recent = journal.getRecent(10);
+    assertEquals(3, recent.size());
+    assertEquals("node4", recent.get(0).getNode());
+    assertEquals("node2", recent.get(2).getNode());
+    assertEquals("node2", journal.query(new LaunchJournal.Query()).get(0).getNode());
+  }
+
+  @Test
+  public void testSurvivesRestart() throws IOException {
+    LaunchJournal journal = new LaunchJournal(10);
+    journal.record(LaunchJournal.Type.LAUNCH_REQUESTED, "node", null, "REQUESTED");
+    journal.open(file);
+    journal.record(LaunchJournal.Type.INSTANCE_CREATED, "node", "i-1", "m1.small\tin us-east-1a");
+    journal.close();
+
+    LaunchJournal restarted = new LaunchJournal(10);
+    restarted.open(file);
+    List<LaunchJournal.Event> events = restarted.query(new LaunchJournal.Query());
+    assertEquals(2, events.size());
+    assertEquals(LaunchJournal.Type.LAUNCH_REQUESTED, events.get(0).getType());
+    assertNull(events.get(0).getInstanceId());
+    assertEquals("i-1", events.get(1).getInstanceId());
+    assertEquals("m1.small in us-east-1a", events.get(1).getDetail());
+    restarted.close();
+  }
+
+  @Test
+  public void testStreamFilters() throws IOException {
+    LaunchJournal journal = new LaunchJournal(10);
+    journal.open(file);
+    journal.record(new LaunchJournal.Event(1000, LaunchJournal.Type.INSTANCE_CREATED, "a", "i-1", null));
+    journal.record(new LaunchJournal.Event(2000, LaunchJournal.Type.STATE_CHANGED, "a", "i-1", "running"));
+    journal.record(new LaunchJournal.Event(3000, LaunchJournal.Type.INSTANCE_CREATED, "b", "i-2", null));
+    journal.record(new LaunchJournal.Event(4000, LaunchJournal.Type.HANDED_OFF, "a", "i-1", "3000"));
+
+    StringWriter w = new StringWriter();
+    assertEquals(2, journal.stream(new LaunchJournal.Query().node("a").since(2000), w));
+    assertEquals("2000\tSTATE_CHANGED\ta\ti-1\trunning\n4000\tHANDED_OFF\ta\ti-1\t3000\n", w.toString());
+
+    w = new StringWriter();
+    assertEquals(1, journal.stream(new LaunchJournal.Query().types(LaunchJournal.Query.typesOf("instance_created"))
+        .limit(1), w));
+    assertEquals("1000\tINSTANCE_CREATED\ta\ti-1\t-\n", w.toString());
+    journal.close();
+
+    // without a file only what is in memory is streamed
+    w = new StringWriter();
+    assertEquals(1, journal.stream(new LaunchJournal.Query().instanceId("i-2")
+        .types(EnumSet.of(LaunchJournal.Type.INSTANCE_CREATED)), w));
+  }
+
+  @Test
+  public void testRollsOver() throws IOException {
+    int maxFileKb = LaunchJournal.MAX_FILE_KB;
+    LaunchJournal.MAX_FILE_KB = 1;
+    try {
+      LaunchJournal journal = new LaunchJournal(10);
+      journal.open(file);
+      for (int i = 0; i < 100; i++) {
+        journal.record(LaunchJournal.Type.TERMINATED, "node", "i-" + i, null);
+      }
+      journal.close();
+      assertEquals(true, file.length() <= 1024);
+      assertEquals(true, new File(file.getPath() + ".1").length() <= 1024);
+
+      // the latest events are still there after a restart
+      LaunchJournal restarted = new LaunchJournal(10);
+      restarted.open(file);
+      assertEquals("i-99", restarted.getRecent(1).get(0).getInstanceId());
+      assertEquals(10, restarted.getRecent(100).size());
+      restarted.close();
+    } finally {
+      LaunchJournal.MAX_FILE_KB = maxFileKb;
+    }
+  }
+
+  @Test
+  public void testWritesAreBufferedUntilFlushed() throws IOException {
+    LaunchJournal journal = new LaunchJournal(10);
+    journal.open(file);
+    journal.record(LaunchJournal.Type.LAUNCH_REQUESTED, "node", null, "REQUESTED");
+    assertEquals(0, file.length());
+    journal.flush();
+    assertTrue(file.length() > 0);
+    journal.close();
+  }
+
+  @Test
+  public void testRollsOverByEncodedSize() throws IOException {
+    int maxFileKb = LaunchJournal.MAX_FILE_KB;
+    LaunchJournal.MAX_FILE_KB = 1;
+    try {
+      LaunchJournal journal = new LaunchJournal(10);
+      journal.open(file);
+      // two bytes per character in UTF-8
+      String detail = StringUtils.repeat("\u00fc", 100);
+      for (int i = 0; i < 20; i++) {
+        journal.record(LaunchJournal.Type.LAUNCH_FAILED, "node", "i-" + i, detail);
+      }
+      journal.close();
+      assertTrue(String.valueOf(file.length()), file.length() <= 1024);
+      assertTrue(new File(file.getPath() + ".1").length() <= 1024);
+    } finally {
+      LaunchJournal.MAX_FILE_KB = maxFileKb;
+    }
+  }
+}
@@ -0,0 +1,238 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import hudson.util.NullStream;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives launch/disconnect cycles of many EC2 image slaves at once against a
+ * {@link FakeEC2}, the way Jenkins would during a burst of builds, and reports
+ * how the plugin held up: launch throughput, time to online, API calls per
+ * operation, instances left behind and instances that came up without the
+ * tags that let {@link InstanceReconciler} find them after a restart.
+ * <p>
+ * Each simulated slave gets its own launcher, launches its instance, keeps it
+ * for a while and terminates it again, for the given number of cycles.  The
+ * launch ends once the instance is running, there is no slave agent to connect
+ * to.  Polling is sped up so that a simulation takes seconds rather than the
+ * minutes real instances take to boot.
+ * <p>
+ * Run it with <tt>main</tt> to get a report with the default EC2 rate limits:
+ * <pre>
+ * java jenkins.plugins.ec2slave.LaunchSimulator [nodes] [cycles] [throttleRate] [capacity]
+ * </pre>
+ *
+ * @author Aaron Phillips
+ */
+final class LaunchSimulator {
+
+  private static final AtomicInteger RUNS = new AtomicInteger();
+
+  private final FakeEC2 ec2;
+
+  private int nodes = 100, cycles = 1;
+
+  private long onlineMillis = 100;
+
+  private long launchTimeoutMillis = 60 * 1000L;
+
+  /**
+   * What a simulation found
+   */
+  static final class Report {
+    int launches, failures;
+    long elapsedMillis;
+    long p50OnlineMillis, p99OnlineMillis, maxOnlineMillis;
+    Map<String, Integer> calls;
+    /* why launches failed, and how often */
+    Map<String, Integer> errors = new TreeMap<String, Integer>();
+    List<String> leaked;
+    /* instances that were online without their controller tag */
+    List<String> untagged = Collections.synchronizedList(new ArrayList<String>());
+
+    synchronized void failed(Throwable t) {
+      String why = t.getMessage() != null ? t.getMessage() : t.toString();
+      Integer count = errors.get(why);
+      errors.put(why, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Returns the successful launches per second
+     */
+    double getThroughput() {
+      return elapsedMillis == 0 ? 0 : launches * 1000.0 / elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder b = new StringBuilder();
+      b.append("launches:        ").append(launches).append(" (").append(failures).append(" failed)\n");
+      b.append("elapsed:         ").append(elapsedMillis).append("ms\n");
+      b.append("throughput:      ").append(String.format("%.1f", getThroughput())).append(" launches/s\n");
+      b.append("time to online:  p50 ").append(p50OnlineMillis).append("ms, p99 ").append(p99OnlineMillis)
+          .append("ms, max ").append(maxOnlineMillis).append("ms\n");
+      if (!errors.isEmpty()) {
+        b.append("errors:          ").append(errors).append("\n");
+      }
+      b.append("API calls:       ").append(new TreeMap<String, Integer>(calls)).append("\n");
+      b.append("leaked:          ").append(leaked.size()).append(leaked.isEmpty() ? "" : " " + leaked).append("\n");
+      b.append("untagged:        ").append(untagged.size()).append(untagged.isEmpty() ? "" : " " + untagged)
+          .append("\n");
+      return b.toString();
+    }
+  }
+
+  LaunchSimulator(FakeEC2 ec2) {
+    this.ec2 = ec2;
+  }
+
+  /**
+   * Sets how many slaves are launched at once and how often each of them is
+   * launched and disconnected
+   */
+  public LaunchSimulator setFleet(int nodes, int cycles) {
+    this.nodes = nodes;
+    this.cycles = cycles;
+    return this;
+  }
+
+  /**
+   * Sets how long each slave stays online before it is disconnected
+   */
+  public LaunchSimulator setOnline(long millis) {
+    this.onlineMillis = millis;
+    return this;
+  }
+
+  public LaunchSimulator setLaunchTimeout(long millis) {
+    this.launchTimeoutMillis = millis;
+    return this;
+  }
+
+  public Report run() throws InterruptedException {
+    InstanceReconciler.set(new InstanceReconciler("simulator"));
+    long minPoll = InstanceStatePoller.MIN_POLL_INTERVAL_MILLIS;
+    InstanceStatePoller.MIN_POLL_INTERVAL_MILLIS = 100;
+    try {
+      return simulate();
+    } finally {
+      InstanceStatePoller.MIN_POLL_INTERVAL_MILLIS = minPoll;
+    }
+  }
+
+  private Report simulate() throws InterruptedException {
+    final EC2ClientRegistry.Handle handle = ec2.handle();
+    final LaunchWaitPolicy waitPolicy = new ExponentialBackoffWaitPolicy(100, 1000, launchTimeoutMillis);
+    final PrintStream logger = new PrintStream(new NullStream());
+    final List<Long> online = Collections.synchronizedList(new ArrayList<Long>());
+    final AtomicInteger failures = new AtomicInteger();
+    final Report report = new Report();
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(nodes);
+    String run = "sim" + RUNS.incrementAndGet();
+
+    for (int n = 0; n < nodes; n++) {
+      final EC2ImageLaunchWrapper launcher = new EC2ImageLaunchWrapper(null, "fakeSecretKey", "fakeAccessKey",
+          "ami-simulated", "m1.small", "simulated", null, null);
+      launcher.setClientHandle(handle);
+      launcher.setNodeName(run + "-" + n);
+      launcher.setWaitPolicy(waitPolicy);
+      new Thread(run + "-" + n) {
+        public void run() {
+          try {
+            start.await();
+            for (int c = 0; c < cycles; c++) {
+              long started = System.currentTimeMillis();
+              try {
+                launcher.preLaunch(logger);
+                online.add(System.currentTimeMillis() - started);
+                String instanceId = launcher.getLifecycle().get().instanceId;
+                if (!ec2.isTagged(instanceId, InstanceReconciler.CONTROLLER_TAG)) {
+                  report.untagged.add(instanceId);
+                }
+                Thread.sleep(onlineMillis);
+              } catch (RuntimeException e) {
+                failures.incrementAndGet();
+                report.failed(e);
+              }
+              // as afterDisconnect would, also for whatever a failed launch left behind
+              launcher.terminateInstance(logger);
+            }
+          } catch (InterruptedException e) {
+            failures.incrementAndGet();
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+
+    long started = System.currentTimeMillis();
+    start.countDown();
+    done.await();
+
+    report.elapsedMillis = System.currentTimeMillis() - started;
+    report.launches = online.size();
+    report.failures = failures.get();
+    List<Long> sorted = new ArrayList<Long>(online);
+    Collections.sort(sorted);
+    if (!sorted.isEmpty()) {
+      report.p50OnlineMillis = sorted.get((sorted.size() - 1) / 2);
+      report.p99OnlineMillis = sorted.get((int) Math.ceil(sorted.size() * 0.99) - 1);
+      report.maxOnlineMillis = sorted.get(sorted.size() - 1);
+    }
+
+    // terminations happen in the background, give them a moment
+    long deadline = System.currentTimeMillis() + TerminationReaper.FLUSH_MILLIS + 10 * 1000L;
+    while (!ec2.getLiveInstances().isEmpty() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(100);
+    }
+    report.leaked = ec2.getLiveInstances();
+    report.calls = ec2.getCalls();
+    return report;
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    FakeEC2 ec2 = new FakeEC2().setPending(1000, 5000).setLatency(20);
+    if (args.length > 2) {
+      ec2.setThrottleRate(Double.parseDouble(args[2]));
+    }
+    if (args.length > 3) {
+      ec2.setCapacity(Integer.parseInt(args[3]));
+    }
+    LaunchSimulator sim = new LaunchSimulator(ec2).setFleet(args.length > 0 ? Integer.parseInt(args[0]) : 200,
+        args.length > 1 ? Integer.parseInt(args[1]) : 3);
+    System.out.print(sim.run());
+    System.exit(0);
+  }
+}
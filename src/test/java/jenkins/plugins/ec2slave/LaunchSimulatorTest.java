@@ -0,0 +1,96 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LaunchSimulatorTest {
+
+  private int mutatePerSecond, mutateBurst;
+
+  @Before
+  public void raiseRateLimits() {
+    // the fake answers right away, the limits would only make the test slow
+    mutatePerSecond = EC2RateLimiter.MUTATE_PER_SECOND;
+    mutateBurst = EC2RateLimiter.MUTATE_BURST;
+    EC2RateLimiter.MUTATE_PER_SECOND = 1000;
+    EC2RateLimiter.MUTATE_BURST = 1000;
+  }
+
+  @After
+  public void restoreRateLimits() {
+    EC2RateLimiter.MUTATE_PER_SECOND = mutatePerSecond;
+    EC2RateLimiter.MUTATE_BURST = mutateBurst;
+  }
+
+  @Test
+  public void testFleetLaunchesWithoutLeaks() throws InterruptedException {
+    FakeEC2 ec2 = new FakeEC2().setPending(200, 600).setLatency(5);
+    LaunchSimulator.Report report = new LaunchSimulator(ec2).setFleet(200, 2).run();
+
+    assertEquals(0, report.failures);
+    assertEquals(400, report.launches);
+    assertTrue(report.leaked.toString(), report.leaked.isEmpty());
+    // launches are coalesced and polls are shared, so the calls grow far slower than the fleet
+    assertTrue(report.toString(), ec2.getCalls("runInstances") < 40);
+    assertTrue(report.toString(), ec2.getCalls("describeInstances") < 400);
+  }
+
+  @Test
+  public void testThrottlingIsRidenOut() throws InterruptedException {
+    FakeEC2 ec2 = new FakeEC2().setPending(200, 600).setThrottleRate(0.05);
+    LaunchSimulator.Report report = new LaunchSimulator(ec2).setFleet(50, 1).run();
+
+    assertEquals(report.toString(), 50, report.launches);
+    assertTrue(report.leaked.toString(), report.leaked.isEmpty());
+    assertTrue(report.untagged.toString(), report.untagged.isEmpty());
+  }
+
+  @Test
+  public void testThrottledTaggingLeavesNoUnownedInstances() throws InterruptedException {
+    FakeEC2 ec2 = new FakeEC2().setPending(200, 600).throttle("createTags", 30);
+    LaunchSimulator.Report report = new LaunchSimulator(ec2).setFleet(20, 1).run();
+
+    assertEquals(report.toString(), 20, report.launches + report.failures);
+    assertTrue(report.toString(), ec2.getCalls("createTags") > 30);
+    assertTrue(report.untagged.toString(), report.untagged.isEmpty());
+    assertTrue(report.leaked.toString(), report.leaked.isEmpty());
+  }
+
+  @Test
+  public void testCapacityShortageLeavesNoInstancesBehind() throws InterruptedException {
+    FakeEC2 ec2 = new FakeEC2().setPending(200, 600).setCapacity(30);
+    LaunchSimulator.Report report = new LaunchSimulator(ec2).setFleet(60, 1).setOnline(2000).run();
+
+    assertTrue(report.toString(), report.failures > 0);
+    assertEquals(60, report.launches + report.failures);
+    assertTrue(report.toString(), ec2.getInstanceCount() <= 60);
+    assertTrue(report.leaked.toString(), report.leaked.isEmpty());
+  }
+}
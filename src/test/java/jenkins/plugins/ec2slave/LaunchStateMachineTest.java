@@ -0,0 +1,189 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import hudson.util.NullStream;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.amazonaws.services.ec2.model.StopInstancesRequest;
+
+public class LaunchStateMachineTest {
+
+  private static int nodes;
+
+  private final PrintStream logger = new PrintStream(new NullStream());
+
+  private FakeEC2 ec2;
+
+  private EC2ImageLaunchWrapper wrapper;
+
+  @Before
+  public void setUp() {
+    InstanceReconciler.set(new InstanceReconciler("test"));
+    ec2 = new FakeEC2().setPending(100, 200);
+    wrapper = new EC2ImageLaunchWrapper(null, "fakeSecretKey", "fakeAccessKey", "ami-test", "m1.small", "test",
+        null, null);
+    wrapper.setClientHandle(ec2.handle());
+    wrapper.setNodeName("lsm-" + ++nodes);
+    wrapper.setWaitPolicy(new ExponentialBackoffWaitPolicy(50, 200, 10 * 1000L));
+  }
+
+  /**
+   * Starts a launch that ends once the instance is running, as preLaunch does
+   */
+  private LaunchStateMachine start() {
+    LaunchStateMachine machine = new LaunchStateMachine(wrapper, logger, null, null, null,
+        LaunchStateMachine.Phase.REQUESTED);
+    NodeLifecycle.Snapshot s = wrapper.getLifecycle().get();
+    assertTrue(wrapper.getLifecycle().compareAndSet(s, s.launching(machine)));
+    return machine.start();
+  }
+
+  private List<LaunchJournal.Type> events() {
+    List<LaunchJournal.Type> types = new ArrayList<LaunchJournal.Type>();
+    for (LaunchJournal.Event e : LaunchJournal.get().query(new LaunchJournal.Query().node(wrapper.getNodeName()))) {
+      types.add(e.getType());
+    }
+    return types;
+  }
+
+  @Test
+  public void testLaunchRunsThroughItsPhases() throws InterruptedException {
+    LaunchStateMachine machine = start();
+    String instanceId = machine.awaitRunning();
+
+    assertEquals(instanceId, machine.awaitHandOff());
+    assertEquals(LaunchStateMachine.Phase.HANDED_OFF, machine.getPhase());
+    assertEquals(NodeLifecycle.Phase.UP, wrapper.getLifecycle().get().phase);
+    assertEquals(instanceId, wrapper.getLifecycle().get().instanceId);
+    List<LaunchJournal.Type> events = events();
+    assertTrue(events.toString(), events.indexOf(LaunchJournal.Type.LAUNCH_REQUESTED) < events
+        .indexOf(LaunchJournal.Type.INSTANCE_CREATED));
+    assertTrue(events.toString(), events.indexOf(LaunchJournal.Type.INSTANCE_CREATED) < events
+        .indexOf(LaunchJournal.Type.STATE_CHANGED));
+    assertTrue(events.toString(), events.indexOf(LaunchJournal.Type.STATE_CHANGED) < events
+        .indexOf(LaunchJournal.Type.HANDED_OFF));
+    assertEquals(1, ec2.getCalls("runInstances"));
+  }
+
+  @Test
+  public void testFailedRunInstancesFailsTheLaunch() throws InterruptedException {
+    ec2.setCapacity(0);
+    LaunchStateMachine machine = start();
+    try {
+      machine.awaitHandOff();
+      fail("launched without capacity");
+    } catch (AmazonServiceException e) {
+      assertEquals("InsufficientInstanceCapacity", e.getErrorCode());
+    }
+    assertEquals(LaunchStateMachine.Phase.FAILED, machine.getPhase());
+    assertEquals(NodeLifecycle.Phase.IDLE, wrapper.getLifecycle().get().phase);
+    assertTrue(events().contains(LaunchJournal.Type.LAUNCH_FAILED));
+  }
+
+  @Test
+  public void testInstanceThatNeverRunsTimesOut() throws InterruptedException {
+    ec2.setPending(60 * 1000L, 60 * 1000L);
+    wrapper.setWaitPolicy(new ExponentialBackoffWaitPolicy(50, 100, 500));
+    LaunchStateMachine machine = start();
+    try {
+      machine.awaitRunning();
+      fail("an instance that is still pending is not running");
+    } catch (IllegalStateException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("still not running"));
+    }
+    assertEquals(LaunchStateMachine.Phase.FAILED, machine.getPhase());
+    // the instance is kept for the next launch to take a look at
+    assertTrue(wrapper.getLifecycle().get().hasInstance());
+    wrapper.terminateInstance(logger);
+  }
+
+  @Test
+  public void testThrottledTaggingIsRetried() throws InterruptedException {
+    ec2.throttle("createTags", 1);
+    LaunchStateMachine machine = start();
+    String instanceId = machine.awaitHandOff();
+    assertEquals(2, ec2.getCalls("createTags"));
+    assertEquals(1, ec2.getLiveInstances().size());
+    assertEquals(instanceId, wrapper.getLifecycle().get().instanceId);
+    wrapper.terminateInstance(logger);
+  }
+
+  @Test
+  public void testInstanceThatCanNotBeTaggedIsTerminated() throws InterruptedException {
+    int maxRetries = EC2RateLimiter.MAX_RETRIES;
+    EC2RateLimiter.MAX_RETRIES = 1;
+    try {
+      ec2.throttle("createTags", 2);
+      LaunchStateMachine machine = start();
+      try {
+        machine.awaitHandOff();
+        fail("launched an instance that could not be tagged");
+      } catch (IllegalStateException e) {
+        assertTrue(e.getMessage(), e.getMessage().contains("could not be tagged"));
+      }
+    } finally {
+      EC2RateLimiter.MAX_RETRIES = maxRetries;
+    }
+    assertFalse(wrapper.getLifecycle().get().hasInstance());
+    assertTrue(events().toString(), events().contains(LaunchJournal.Type.TERMINATED));
+  }
+
+  @Test
+  public void testThrottledRequestIsRetriedWithoutLeakingItsRegion() throws InterruptedException {
+    String a = "throttle-" + nodes + "a", b = "throttle-" + nodes + "b";
+    wrapper.setRegions(a + " " + b, true);
+    wrapper.setPool(1, 0);
+    // a stopped instance waiting in the pool of the region selected first
+    EC2ClientRegistry.Handle handle = wrapper.getClientHandle();
+    String pooled = handle.get().runInstances(new RunInstancesRequest().withMinCount(1).withMaxCount(1))
+        .getReservation().getInstances().get(0).getInstanceId();
+    handle.get().stopInstances(new StopInstancesRequest().withInstanceIds(pooled));
+    EC2ClientRegistry.Handle entryHandle = handle.copy();
+    entryHandle.retain();
+    InstancePool.get().offer(wrapper.getPoolKey(), new InstancePool.Entry(pooled, entryHandle, 0, 0), 1);
+    ec2.throttle("describeInstances", 1);
+
+    LaunchStateMachine machine = start();
+    assertEquals(pooled, machine.awaitHandOff());
+    for (RegionSelector.RegionStats r : RegionSelector.get().getRegions()) {
+      if (r.getRegion().equals(a) || r.getRegion().equals(b)) {
+        assertEquals(r.getRegion(), 0, r.getInFlight());
+      }
+    }
+    wrapper.terminateInstance(logger);
+  }
+}
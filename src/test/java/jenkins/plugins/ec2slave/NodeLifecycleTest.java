@@ -0,0 +1,172 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class NodeLifecycleTest {
+
+  private final EC2ClientRegistry.Handle ec2 = EC2ClientRegistry.get().handle("accessKey", "secretKey", null);
+
+  private LaunchStateMachine newLaunch() {
+    return new LaunchStateMachine(null, System.out, null, null, null, LaunchStateMachine.Phase.REQUESTED);
+  }
+
+  @Test
+  public void testRegistryHandsOutOneLifecyclePerNode() {
+    assertSame(NodeLifecycle.forNode("node-a"), NodeLifecycle.forNode("node-a"));
+    assertTrue(NodeLifecycle.forNode("node-a") != NodeLifecycle.forNode("node-b"));
+  }
+
+  @Test
+  public void testOnlyOneLaunchWinsTheSameSnapshot() {
+    NodeLifecycle lifecycle = new NodeLifecycle(null);
+    NodeLifecycle.Snapshot s = lifecycle.get();
+    LaunchStateMachine first = newLaunch();
+    assertTrue(lifecycle.compareAndSet(s, s.launching(first)));
+    assertFalse(lifecycle.compareAndSet(s, s.launching(newLaunch())));
+    assertSame(first, lifecycle.get().launch);
+  }
+
+  @Test
+  public void testLaunchLifecycle() {
+    NodeLifecycle lifecycle = new NodeLifecycle(null);
+    LaunchStateMachine launch = newLaunch();
+    assertTrue(lifecycle.compareAndSet(lifecycle.get(), lifecycle.get().launching(launch)));
+    assertTrue(lifecycle.assign(launch, "i-1", ec2, null, 1000L, "m1.small"));
+    assertEquals("i-1", lifecycle.get().instanceId);
+    assertEquals(NodeLifecycle.Phase.LAUNCHING, lifecycle.finish(launch, NodeLifecycle.Phase.UP).phase);
+    assertEquals(NodeLifecycle.Phase.UP, lifecycle.get().phase);
+    assertEquals("m1.small", lifecycle.get().instanceType);
+
+    lifecycle.markImpaired();
+    NodeLifecycle.Snapshot released = lifecycle.beginRelease();
+    assertEquals("i-1", released.instanceId);
+    assertTrue(released.impaired);
+    lifecycle.released();
+    assertNull(lifecycle.get().instanceId);
+
+    // the replacement is not trusted before it passed a health check
+    launch = newLaunch();
+    assertTrue(lifecycle.compareAndSet(lifecycle.get(), lifecycle.get().launching(launch)));
+    assertTrue(lifecycle.assign(launch, "i-2", ec2, null, 2000L, "m1.small"));
+    assertTrue(lifecycle.get().impaired);
+    lifecycle.markHealthy("i-1");
+    assertTrue(lifecycle.get().impaired);
+    lifecycle.markHealthy("i-2");
+    assertFalse(lifecycle.get().impaired);
+  }
+
+  @Test
+  public void testSupersededLaunchCanNotAssign() {
+    NodeLifecycle lifecycle = new NodeLifecycle(null);
+    LaunchStateMachine launch = newLaunch();
+    assertTrue(lifecycle.compareAndSet(lifecycle.get(), lifecycle.get().launching(launch)));
+
+    // the node is disconnected while RunInstances is still in flight
+    assertTrue(lifecycle.beginRelease() != null);
+    lifecycle.released();
+
+    assertFalse(lifecycle.assign(launch, "i-1", ec2, null, 1000L, null));
+    assertNull(lifecycle.finish(launch, NodeLifecycle.Phase.UP));
+    assertSame(NodeLifecycle.EMPTY, lifecycle.get());
+  }
+
+  @Test
+  public void testConcurrentReleasesReleaseOnce() throws InterruptedException {
+    final NodeLifecycle lifecycle = new NodeLifecycle(null);
+    LaunchStateMachine launch = newLaunch();
+    lifecycle.compareAndSet(lifecycle.get(), lifecycle.get().launching(launch));
+    lifecycle.assign(launch, "i-1", ec2, null, 1000L, null);
+    lifecycle.finish(launch, NodeLifecycle.Phase.UP);
+
+    final int threads = 20;
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    final AtomicInteger winners = new AtomicInteger();
+    for (int i = 0; i < threads; i++) {
+      new Thread() {
+        public void run() {
+          try {
+            start.await();
+            if (lifecycle.beginRelease() != null) {
+              winners.incrementAndGet();
+            }
+          } catch (InterruptedException e) {
+            // counted as not released
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+    start.countDown();
+    done.await();
+
+    assertEquals(1, winners.get());
+    assertEquals(NodeLifecycle.Phase.RELEASING, lifecycle.get().phase);
+  }
+
+  @Test
+  public void testReleasedAfterImpairedDuringRelease() {
+    NodeLifecycle lifecycle = new NodeLifecycle(null);
+    LaunchStateMachine launch = newLaunch();
+    lifecycle.compareAndSet(lifecycle.get(), lifecycle.get().launching(launch));
+    lifecycle.assign(launch, "i-1", ec2, null, 1000L, null);
+    lifecycle.finish(launch, NodeLifecycle.Phase.UP);
+
+    assertTrue(lifecycle.beginRelease() != null);
+    lifecycle.markImpaired();
+    lifecycle.released();
+    assertEquals(NodeLifecycle.Phase.IDLE, lifecycle.get().phase);
+    assertNull(lifecycle.get().instanceId);
+    assertTrue(lifecycle.get().impaired);
+  }
+
+  @Test
+  public void testPruneDropsIdleLifecyclesOfDeletedNodes() {
+    NodeLifecycle kept = NodeLifecycle.forNode("prune-kept");
+    NodeLifecycle deleted = NodeLifecycle.forNode("prune-deleted");
+    NodeLifecycle launching = NodeLifecycle.forNode("prune-launching");
+    launching.compareAndSet(launching.get(), launching.get().launching(newLaunch()));
+
+    NodeLifecycle.prune(Collections.singleton("prune-kept"));
+
+    assertSame(kept, NodeLifecycle.forNode("prune-kept"));
+    assertTrue(deleted != NodeLifecycle.forNode("prune-deleted"));
+    assertSame(NodeLifecycle.EMPTY, NodeLifecycle.forNode("prune-deleted").get());
+    // still busy, dropped by a later prune
+    assertSame(launching, NodeLifecycle.forNode("prune-launching"));
+  }
+}
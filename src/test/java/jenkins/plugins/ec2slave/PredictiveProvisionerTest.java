@@ -0,0 +1,187 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import hudson.model.Label;
+import hudson.slaves.OfflineCause;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class PredictiveProvisionerTest {
+
+  /**
+   * A slave that takes builds of any label, with one executor
+   */
+  private static final class FakeSlave extends PredictiveProvisioner.Candidate {
+    private final String name;
+    boolean booting, online, busy;
+    int connects, disconnects;
+
+    FakeSlave(String name) {
+      this.name = name;
+    }
+
+    String getName() {
+      return name;
+    }
+
+    boolean matches(Label label) {
+      return true;
+    }
+
+    int getNumExecutors() {
+      return 1;
+    }
+
+    boolean isBooting() {
+      return booting;
+    }
+
+    boolean isOnline() {
+      return online;
+    }
+
+    boolean isTemporarilyOffline() {
+      return false;
+    }
+
+    int countIdle() {
+      return online && !busy ? 1 : 0;
+    }
+
+    boolean isIdle() {
+      return !busy;
+    }
+
+    void connect() {
+      connects++;
+      booting = true;
+    }
+
+    void disconnect(OfflineCause cause) {
+      disconnects++;
+      online = false;
+    }
+  }
+
+  private static List<Label> queued(int n) {
+    return Collections.<Label> nCopies(n, null);
+  }
+
+  private static List<FakeSlave> slaves(int n) {
+    List<FakeSlave> slaves = new ArrayList<FakeSlave>();
+    for (int i = 0; i < n; i++) {
+      slaves.add(new FakeSlave("slave-" + i));
+    }
+    return slaves;
+  }
+
+  private static int connects(List<FakeSlave> slaves) {
+    int n = 0;
+    for (FakeSlave s : slaves) {
+      n += s.connects;
+    }
+    return n;
+  }
+
+  @Test
+  public void testShortfallIsLaunched() {
+    PredictiveProvisioner p = new PredictiveProvisioner();
+    List<FakeSlave> slaves = slaves(4);
+    slaves.get(0).online = true;
+    p.sample(queued(3), new ArrayList<PredictiveProvisioner.Candidate>(slaves), 0);
+
+    // one idle slave covers one of the three builds
+    assertEquals(2, connects(slaves));
+    assertEquals(0, slaves.get(0).connects);
+    assertEquals(2, p.getLaunchedAheadCount());
+  }
+
+  @Test
+  public void testBootingSlavesAreNotLaunchedAgain() {
+    PredictiveProvisioner p = new PredictiveProvisioner();
+    List<FakeSlave> slaves = slaves(3);
+    // e.g. an instance that is still pending
+    slaves.get(0).booting = true;
+    p.sample(queued(2), new ArrayList<PredictiveProvisioner.Candidate>(slaves), 0);
+    assertEquals(1, connects(slaves));
+
+    // the next sample sees the same queue, and both slaves on their way
+    p.sample(queued(2), new ArrayList<PredictiveProvisioner.Candidate>(slaves), 10 * 1000L);
+    assertEquals(1, connects(slaves));
+    assertEquals(0, slaves.get(0).connects);
+  }
+
+  @Test
+  public void testIdleSlaveIsDisconnectedOnceItsLingerExpires() {
+    PredictiveProvisioner p = new PredictiveProvisioner();
+    FakeSlave slave = new FakeSlave("slave");
+    List<PredictiveProvisioner.Candidate> candidates = Arrays.<PredictiveProvisioner.Candidate> asList(slave);
+    p.sample(queued(1), candidates, 0);
+    assertEquals(1, slave.connects);
+    slave.booting = false;
+    slave.online = true;
+
+    // the build went elsewhere, the queue stays empty
+    long lingerMillis = PredictiveProvisioner.LINGER_MINUTES * 60 * 1000L;
+    long now = 0;
+    while (now < lingerMillis) {
+      now += PredictiveProvisioner.SAMPLE_SECONDS * 1000L;
+      p.sample(queued(0), candidates, now - 1);
+      if (now - 1 < lingerMillis) {
+        assertEquals(0, slave.disconnects);
+      }
+    }
+    p.sample(queued(0), candidates, lingerMillis);
+    assertEquals(1, slave.disconnects);
+    assertFalse(slave.online);
+    assertEquals(0, p.getLaunchedAheadCount());
+  }
+
+  @Test
+  public void testSlaveThatTookABuildIsLeftAlone() {
+    PredictiveProvisioner p = new PredictiveProvisioner();
+    FakeSlave slave = new FakeSlave("slave");
+    List<PredictiveProvisioner.Candidate> candidates = Arrays.<PredictiveProvisioner.Candidate> asList(slave);
+    p.sample(queued(1), candidates, 0);
+    slave.booting = false;
+    slave.online = true;
+    slave.busy = true;
+    p.sample(queued(0), candidates, 1000);
+    assertEquals(0, p.getLaunchedAheadCount());
+
+    slave.busy = false;
+    p.sample(queued(0), candidates, PredictiveProvisioner.LINGER_MINUTES * 60 * 1000L * 2);
+    assertEquals(0, slave.disconnects);
+    assertTrue(slave.online);
+  }
+}
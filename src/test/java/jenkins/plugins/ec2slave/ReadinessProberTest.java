@@ -0,0 +1,151 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReadinessProberTest {
+
+  private final ReadinessProber prober = new ReadinessProber(50, 1000);
+
+  private ServerSocket server;
+
+  private int port;
+
+  private volatile String result;
+
+  private final CountDownLatch done = new CountDownLatch(1);
+
+  private final ReadinessProber.Callback callback = new ReadinessProber.Callback() {
+    public void ready() {
+      result = "ready";
+      done.countDown();
+    }
+
+    public void failed(String reason) {
+      result = "failed";
+      done.countDown();
+    }
+  };
+
+  @Before
+  public void setUp() throws IOException {
+    // grab a free port, then let go of it until a test wants it listened on
+    ServerSocket s = new ServerSocket(0);
+    port = s.getLocalPort();
+    s.close();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    if (server != null) {
+      server.close();
+    }
+  }
+
+  private String await() throws InterruptedException {
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    return result;
+  }
+
+  @Test
+  public void testReadyOnceListening() throws Exception {
+    prober.probe("localhost", port, 10 * 1000, false, callback);
+    Thread.sleep(200);
+    assertEquals(null, result);
+    server = new ServerSocket(port);
+    assertEquals("ready", await());
+  }
+
+  @Test
+  public void testFailsAfterDeadline() throws Exception {
+    long start = System.currentTimeMillis();
+    prober.probe("localhost", port, 300, false, callback);
+    assertEquals("failed", await());
+    assertTrue(System.currentTimeMillis() - start >= 200);
+  }
+
+  @Test
+  public void testUnresolvableHostDoesNotHoldUpOthers() throws Exception {
+    final String[] reason = new String[1];
+    final CountDownLatch unresolved = new CountDownLatch(1);
+    prober.probe("no-such-host.invalid", 22, 2000, false, new ReadinessProber.Callback() {
+      public void ready() {
+        unresolved.countDown();
+      }
+
+      public void failed(String why) {
+        reason[0] = why;
+        unresolved.countDown();
+      }
+    });
+    server = new ServerSocket(port);
+    prober.probe("localhost", port, 10 * 1000, false, callback);
+    assertEquals("ready", await());
+
+    assertTrue(unresolved.await(10, TimeUnit.SECONDS));
+    assertTrue(reason[0], reason[0].contains("cannot resolve no-such-host.invalid"));
+  }
+
+  @Test
+  public void testWaitsForSshBanner() throws Exception {
+    server = new ServerSocket(port);
+    prober.probe("localhost", port, 10 * 1000, true, callback);
+    Socket s = server.accept();
+    Thread.sleep(200);
+    assertEquals(null, result);
+    s.getOutputStream().write("SSH-2.0-OpenSSH_5.3\r\n".getBytes("US-ASCII"));
+    s.getOutputStream().flush();
+    assertEquals("ready", await());
+    s.close();
+  }
+
+  @Test
+  public void testManyHostsAtOnce() throws Exception {
+    server = new ServerSocket(port, 100);
+    final CountDownLatch all = new CountDownLatch(50);
+    for (int i = 0; i < 50; i++) {
+      prober.probe("localhost", port, 10 * 1000, false, new ReadinessProber.Callback() {
+        public void ready() {
+          all.countDown();
+        }
+
+        public void failed(String reason) {
+        }
+      });
+    }
+    assertTrue(all.await(10, TimeUnit.SECONDS));
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RegionSelectorTest {
+
+  private static final List<String> REGIONS = Arrays.asList("us-east-1", "eu-west-1");
+
+  @Test
+  public void testEveryRegionGetsTried() {
+    RegionSelector selector = new RegionSelector();
+    assertEquals("us-east-1", selector.select(REGIONS));
+    // the launch under way counts against us-east-1
+    assertEquals("eu-west-1", selector.select(REGIONS));
+  }
+
+  @Test
+  public void testFasterRegionWins() {
+    RegionSelector selector = new RegionSelector();
+    selector.launched(selector.select(REGIONS), 90 * 1000);
+    selector.launched(selector.select(REGIONS), 30 * 1000);
+    // until four launches under way there make up for the 60s
+    for (int i = 0; i < 4; i++) {
+      assertEquals("eu-west-1", selector.select(REGIONS));
+    }
+    assertEquals("us-east-1", selector.select(REGIONS));
+  }
+
+  @Test
+  public void testFailingRegionIsAvoided() {
+    RegionSelector selector = new RegionSelector();
+    selector.launched(selector.select(REGIONS), 30 * 1000);
+    selector.launched(selector.select(REGIONS), 90 * 1000);
+    assertEquals("us-east-1", selector.select(REGIONS));
+    selector.failed("us-east-1");
+    assertEquals("eu-west-1", selector.select(REGIONS));
+    selector.launched("eu-west-1", 90 * 1000);
+
+    // recovers once its launches go through again
+    for (int i = 0; i < 10; i++) {
+      selector.launched("us-east-1", 30 * 1000);
+    }
+    assertEquals("us-east-1", selector.select(REGIONS));
+  }
+
+  @Test
+  public void testAmiPerRegion() {
+    assertEquals("ami-1", EC2ImageLaunchWrapper.amiFor("ami-1", null));
+    assertEquals("ami-1", EC2ImageLaunchWrapper.amiFor("ami-1", "eu-west-1"));
+
+    String amis = "us-east-1=ami-1, eu-west-1=ami-2";
+    assertEquals("ami-1", EC2ImageLaunchWrapper.amiFor(amis, "us-east-1"));
+    assertEquals("ami-2", EC2ImageLaunchWrapper.amiFor(amis, "eu-west-1"));
+    assertNull(EC2ImageLaunchWrapper.amiFor(amis, "ap-southeast-1"));
+    assertEquals("ami-3", EC2ImageLaunchWrapper.amiFor(amis + " ami-3", "ap-southeast-1"));
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Aaron Phillips
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.ec2slave;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import com.amazonaws.services.ec2.model.TerminateInstancesResult;
+
+public class TerminationReaperTest {
+
+  /* instance ID -> state, instances not in here are unknown to EC2 */
+  private final Map<String, String> states = new HashMap<String, String>();
+
+  private final List<List<String>> terminateCalls = new ArrayList<List<String>>();
+
+  private final EC2ClientRegistry.Handle ec2 = new EC2ClientRegistry(new EC2ClientRegistry.ClientFactory() {
+    public AmazonEC2 create(String accessKey, String secretKey, String endpoint) {
+      return (AmazonEC2) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { AmazonEC2.class },
+          new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+              synchronized (states) {
+                if (method.getName().equals("terminateInstances")) {
+                  List<String> ids = ((TerminateInstancesRequest) args[0]).getInstanceIds();
+                  terminateCalls.add(ids);
+                  for (String id : ids) {
+                    if (!states.containsKey(id)) {
+                      AmazonServiceException e = new AmazonServiceException("The instance ID does not exist");
+                      e.setErrorCode("InvalidInstanceID.NotFound");
+                      throw e;
+                    }
+                  }
+                  for (String id : ids) {
+                    states.put(id, "shutting-down");
+                  }
+                  return new TerminateInstancesResult();
+                }
+                List<Instance> instances = new ArrayList<Instance>();
+                for (String id : ((DescribeInstancesRequest) args[0]).getFilters().get(0).getValues()) {
+                  if (states.containsKey(id)) {
+                    instances.add(new Instance().withInstanceId(id).withState(
+                        new InstanceState().withName(states.get(id))));
+                  }
+                }
+                return new DescribeInstancesResult().withReservations(new Reservation().withInstances(instances));
+              }
+            }
+          });
+    }
+  }).handle("accessKey", "secretKey", null);
+
+  @Test
+  public void testTerminationsAreBatchedAndConfirmed() {
+    TerminationReaper reaper = new TerminationReaper(0);
+    for (int i = 0; i < 20; i++) {
+      states.put("i-" + i, "running");
+      reaper.terminate(ec2, "i-" + i);
+    }
+    reaper.flush();
+    assertEquals(1, terminateCalls.size());
+    assertEquals(20, terminateCalls.get(0).size());
+
+    assertEquals(20, reaper.getPendingCount());
+
+    // all of them made it, except for one somebody started again
+    for (int i = 0; i < 20; i++) {
+      states.put("i-" + i, "terminated");
+    }
+    states.put("i-3", "running");
+    reaper.flush();
+    assertEquals(1, reaper.getPendingCount());
+    reaper.flush();
+    assertEquals(2, terminateCalls.size());
+    assertEquals("shutting-down", states.get("i-3"));
+
+    states.put("i-3", "terminated");
+    reaper.flush();
+    assertEquals(0, reaper.getPendingCount());
+  }
+
+  @Test
+  public void testUnknownInstanceDoesNotBlockTheBatch() {
+    TerminationReaper reaper = new TerminationReaper(0);
+    states.put("i-1", "running");
+    reaper.terminate(ec2, "i-1");
+    reaper.terminate(ec2, "i-gone");
+    reaper.flush();
+    assertEquals("shutting-down", states.get("i-1"));
+    assertEquals(1, reaper.getPendingCount());
+  }
+}